@@ -1,4 +1,5 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
@@ -50,7 +51,7 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                    ParallelHeapFileEncoder.convert(sourceTxtFile, targetDatFile,
                             BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
 
                 } catch (IOException e) {
@@ -94,6 +95,55 @@ public class SimpleDb {
                     e.printStackTrace();
                 }
 
+                break;
+            case "standby":
+                // standby catalogFile primaryCatalogFile primaryLogFile [parser args]
+                if (args.length < 4) {
+                    System.err.println("Usage: standby catalogFile primaryCatalogFile primaryLogFile [-explain]");
+                    return;
+                }
+                Database.getCatalog().loadSchema(args[1]);
+                StandbyReplica replica = new StandbyReplica(new File(args[3]),
+                        StandbyReplica.tableIdsByName(new File(args[2])));
+                Thread applier = new Thread(replica, "standby-replica");
+                applier.setDaemon(true);
+                applier.start();
+
+                // serve read-only queries from the local tables
+                String[] parserArgs = new String[args.length - 3];
+                parserArgs[0] = args[1];
+                System.arraycopy(args, 4, parserArgs, 1, args.length - 4);
+                try {
+                    Parser.main(parserArgs);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                replica.stop();
+                break;
+            case "restore":
+                // restore backupDir targetDir [-lsn stopLsn] [-time stopMillis]
+                if (args.length < 3 || args.length % 2 == 0) {
+                    System.err.println("Usage: restore backupDir targetDir [-lsn stopLsn] [-time stopMillis]");
+                    return;
+                }
+                long stopLsn = Long.MAX_VALUE;
+                long stopTime = Long.MAX_VALUE;
+                for (int i = 3; i < args.length; i += 2) {
+                    if (args[i].equals("-lsn"))
+                        stopLsn = Long.parseLong(args[i + 1]);
+                    else if (args[i].equals("-time"))
+                        stopTime = Long.parseLong(args[i + 1]);
+                    else {
+                        System.err.println("Unknown argument " + args[i]);
+                        return;
+                    }
+                }
+                try {
+                    long lsn = OnlineBackup.restore(new File(args[1]), new File(args[2]), stopLsn, stopTime);
+                    System.out.println("Restored " + args[1] + " into " + args[2] + " up to LSN " + lsn);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
                 break;
             default:
                 System.err.println("Unknown command: " + args[0]);
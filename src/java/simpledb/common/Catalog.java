@@ -1,8 +1,13 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.CompressedHeapFile;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PaxHeapFile;
+import simpledb.storage.SlottedHeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -11,6 +16,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -30,6 +36,7 @@ public class Catalog {
         private DbFile dbFile;
         private String name;
         private String pkeyField;
+        private final List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();
 
         private Table(DbFile dbFile, String name, String pkeyField){
             this.dbFile = dbFile;
@@ -82,6 +89,33 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Replaces the DbFile of a table that is already in the catalog by
+     * another one with the same id, such as a new DbFile object for a file
+     * that has been rewritten.  The name, primary key and secondary indexes
+     * of the table are kept.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void replaceFile(DbFile file) {
+        Table t = tables.get(file.getId());
+        if(t == null){
+            throw new NoSuchElementException("can not find table for this " + file.getId());
+        }
+        t.dbFile = file;
+    }
+
+    /**
+     * Removes a table from the catalog, if it is there.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        Table t = tables.remove(tableid);
+        if(t != null){
+            nameToId.remove(t.name, tableid);
+        }
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -137,6 +171,34 @@ public class Catalog {
         return t.pkeyField;
     }
 
+    /**
+     * Adds a secondary index of a table that is already in the catalog.
+     * From now on, tuples inserted into or deleted from the table through
+     * the BufferPool are also inserted into or deleted from the index.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) {
+        Table t = tables.get(index.getTableId());
+        if(t == null){
+            throw new NoSuchElementException("can not find table for this " + index.getTableId());
+        }
+        t.indexes.add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, which are empty
+     * for a table that doesn't exist.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        Table t = tables.get(tableid);
+        if(t == null){
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(t.indexes);
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return tables.keySet().iterator();
@@ -159,6 +221,9 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A line of the form "index name on table (field, ...) include (field, ...)",
+     * where the include clause is optional, opens a secondary index of a table
+     * declared above it, stored in name.dat; see {@link SecondaryIndex#schemaEntry}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -168,7 +233,12 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                String[] words = line.substring(0, line.indexOf("(")).trim().split("\\s+");
+                if (words.length == 4 && words[0].equalsIgnoreCase("index") && words[2].equalsIgnoreCase("on")) {
+                    loadIndex(baseFolder, words[1], words[3], line.substring(line.indexOf("(")));
+                    continue;
+                }
+                //assume line is of the format name (field type, field type, ...) [format]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -199,17 +269,65 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // the page format follows the field list, heap by default
+                String format = line.substring(line.indexOf(")") + 1).trim();
+                File tableFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf;
+                if (format.isEmpty() || format.equalsIgnoreCase("heap"))
+                    tabHf = new HeapFile(tableFile, t);
+                else if (format.equalsIgnoreCase("slotted"))
+                    tabHf = new SlottedHeapFile(tableFile, t);
+                else if (format.equalsIgnoreCase("pax"))
+                    tabHf = new PaxHeapFile(tableFile, t);
+                else if (format.equalsIgnoreCase("compressed"))
+                    tabHf = new CompressedHeapFile(tableFile, t);
+                else {
+                    System.out.println("Unknown page format " + format);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
     }
+
+    // opens the index name of table from name.dat in baseFolder; columns is
+    // "(field, ...)", optionally followed by "include (field, ...)"
+    private void loadIndex(String baseFolder, String name, String table, String columns) {
+        int tableid = getTableId(table);
+        TupleDesc td = getTupleDesc(tableid);
+        int end = columns.indexOf(")");
+        int[] keyFields = fieldIndexes(td, columns.substring(1, end));
+        int[] includeFields = new int[0];
+        String include = columns.substring(end + 1).trim();
+        if (!include.isEmpty()) {
+            if (!include.toLowerCase().startsWith("include")) {
+                System.out.println("Unknown index clause " + include);
+                System.exit(0);
+            }
+            includeFields = fieldIndexes(td, include.substring(include.indexOf("(") + 1, include.indexOf(")")));
+        }
+        BTreeFile bf = new BTreeFile(new File(baseFolder + "/" + name + ".dat"), 0,
+                SecondaryIndex.entryDesc(td, keyFields, includeFields));
+        addTable(bf, name);
+        addIndex(new SecondaryIndex(tableid, keyFields, includeFields, bf));
+        System.out.println("Added index : " + name + " on " + table);
+    }
+
+    private static int[] fieldIndexes(TupleDesc td, String names) {
+        String[] els = names.split(",");
+        int[] fields = new int[els.length];
+        for (int i = 0; i < els.length; i++) {
+            fields[i] = td.fieldNameToIndex(els[i].trim());
+        }
+        return fields;
+    }
 }
 
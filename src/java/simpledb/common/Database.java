@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.WalMetrics;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,8 +24,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final WalMetrics _walmetrics;
 
     private Database() {
+        _walmetrics = new WalMetrics();
+        _walmetrics.register();
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
@@ -43,6 +47,11 @@ public class Database {
         return _instance.get()._logfile;
     }
 
+    /** Return the commit-latency and WAL metrics of the static Database instance */
+    public static WalMetrics getWalMetrics() {
+        return _instance.get()._walmetrics;
+    }
+
     /** Return the buffer pool of the static Database instance */
     public static BufferPool getBufferPool() {
         return _instance.get()._bufferpool;
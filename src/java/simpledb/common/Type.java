@@ -28,6 +28,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) throws ParseException {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -37,15 +42,21 @@ public enum Type implements Serializable {
         @Override
         public Field parse(DataInputStream dis) throws ParseException {
             try {
-                int strLen = dis.readInt();
+                int strLen = checkLen(dis.readInt());
                 byte[] bs = new byte[strLen];
-                dis.read(bs);
+                dis.readFully(bs);
                 dis.skipBytes(STRING_LEN-strLen);
                 return new StringField(new String(bs), STRING_LEN);
             } catch (IOException e) {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) throws ParseException {
+            int strLen = checkLen(readInt(data, offset));
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +75,28 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from data at offset, in the format written by Field.serialize.
+   * @throws ParseException if the data at offset is not a field of this type
+   */
+    public abstract Field parse(byte[] data, int offset) throws ParseException;
+
+    // the length of a string field must fit in the STRING_LEN bytes after it
+    private static int checkLen(int strLen) throws ParseException {
+        if (strLen < 0 || strLen > STRING_LEN) {
+            throw new ParseException("string length " + strLen + " is not between 0 and " + STRING_LEN, 0);
+        }
+        return strLen;
+    }
+
+  /**
+   * @return the big-endian int stored in data at offset, as written by
+   *   DataOutputStream.writeInt
+   */
+    public static int readInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
 }
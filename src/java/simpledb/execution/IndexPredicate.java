@@ -3,9 +3,15 @@ package simpledb.execution;
 import simpledb.storage.Field;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
- * IndexPredicate compares a field which has index on it against a given value
+ * IndexPredicate compares a field which has index on it against a given value.
+ * For an index on several columns, it can also require the leading columns
+ * of the key to equal a prefix, and then compares the column that follows
+ * the prefix.  A range predicate has a lower and an upper bound, each
+ * inclusive or exclusive, so an index scan can seek to the lower bound and
+ * stop at the upper bound.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -14,6 +20,9 @@ public class IndexPredicate implements Serializable {
 	
     private final Predicate.Op op;
     private final Field fieldvalue;
+    private final Field[] prefix;
+    private final Predicate.Op upperOp;
+    private final Field upperValue;
 
     /**
      * Constructor.
@@ -25,8 +34,50 @@ public class IndexPredicate implements Serializable {
      * @see Predicate
      */
     public IndexPredicate(Predicate.Op op, Field fvalue) {
+        this(new Field[0], op, fvalue);
+    }
+
+    /**
+     * Constructor for a predicate on a multi-column key.
+     *
+     * @param prefix The values the leading columns of the key must equal.
+     * @param op The operation applied to the column after the prefix, or
+     *   null to match every key with the prefix.
+     * @param fvalue The value that column is compared against, or null if
+     *   op is null.
+     */
+    public IndexPredicate(Field[] prefix, Predicate.Op op, Field fvalue) {
+        if ((op == null) != (fvalue == null) || (op == null && prefix.length == 0)) {
+            throw new IllegalArgumentException("a predicate needs an operation and value, or a prefix");
+        }
+        this.prefix = prefix.clone();
         this.op = op;
         this.fieldvalue = fvalue;
+        this.upperOp = null;
+        this.upperValue = null;
+    }
+
+    /**
+     * Constructor for a range predicate.
+     *
+     * @param lowerOp Predicate.Op.GREATER_THAN or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param lower The lower bound of the range.
+     * @param upperOp Predicate.Op.LESS_THAN or Predicate.Op.LESS_THAN_OR_EQ
+     * @param upper The upper bound of the range.
+     */
+    public IndexPredicate(Predicate.Op lowerOp, Field lower, Predicate.Op upperOp, Field upper) {
+        if ((lowerOp != Predicate.Op.GREATER_THAN && lowerOp != Predicate.Op.GREATER_THAN_OR_EQ)
+                || (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ)) {
+            throw new IllegalArgumentException("a range needs a lower bound operation and an upper bound operation");
+        }
+        if (lower == null || upper == null || lower.getType() != upper.getType()) {
+            throw new IllegalArgumentException("the bounds of a range must be values of one type");
+        }
+        this.prefix = new Field[0];
+        this.op = lowerOp;
+        this.fieldvalue = lower;
+        this.upperOp = upperOp;
+        this.upperValue = upper;
     }
 
     public Field getField() {
@@ -37,6 +88,37 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return the value of the upper bound of a range predicate, or null
+     */
+    public Field getUpperField() {
+        return upperValue;
+    }
+
+    /**
+     * @return the operation of the upper bound of a range predicate, or null
+     */
+    public Predicate.Op getUpperOp() {
+        return upperOp;
+    }
+
+    /**
+     * @return true if the compared field of a key satisfies the operation
+     *   of this predicate, and its upper bound if it has one
+     */
+    public boolean matches(Field f) {
+        return (op == null || f.compare(op, fieldvalue))
+                && (upperOp == null || f.compare(upperOp, upperValue));
+    }
+
+    /**
+     * @return the values the leading columns of the key must equal, which
+     *   are empty for a predicate on a single column
+     */
+    public Field[] getPrefix() {
+        return prefix.clone();
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -45,7 +127,9 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return (op == ipd.op && (fieldvalue == null ? ipd.fieldvalue == null : fieldvalue.equals(ipd.fieldvalue))
+                && Arrays.equals(prefix, ipd.prefix) && upperOp == ipd.upperOp
+                && (upperValue == null ? ipd.upperValue == null : upperValue.equals(ipd.upperValue)));
     }
 
 }
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -36,6 +37,10 @@ public class Insert extends Operator {
      * 第二次调用返回null。即使是第一次调用但是删除的0行，也要返回0
      */
     private boolean call;
+    /**
+     * 批量追加模式：锁住整张表，元组直接写入文件末尾的新页面
+     */
+    private final boolean bulk;
 
     /**
      * Constructor.
@@ -52,7 +57,31 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor.  In bulk mode, the table is locked and the tuples are
+     * appended to new pages at the end of the table, which must be a
+     * HeapFile.  Bulk mode is meant for loading large amounts of data; if
+     * the transaction aborts, the appended pages are emptied by the log.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableId
+     *            The table in which to insert tuples.
+     * @param bulk
+     *            Whether to append the tuples with {@link BufferPool#bulkAppend}
+     * @throws DbException
+     *             if TupleDesc of child differs from table into which we are to
+     *             insert.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulk)
+            throws DbException {
         // some code goes here
+        this.bulk = bulk;
         this.tid = t;
         this.child = child;
         this.tableId = tableId;
@@ -103,6 +132,21 @@ public class Insert extends Operator {
         // some code goes here
         if (call) return null;
         call = true;
+        if (bulk) {
+            HeapFile.Appender appender = Database.getBufferPool().bulkAppend(tid, tableId);
+            try {
+                while (child.hasNext()) {
+                    appender.add(child.next());
+                    ++affectRows;
+                }
+                appender.close();
+            } catch (IOException e) {
+                throw new DbException("bulk insert failed: " + e.getMessage());
+            }
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(affectRows));
+            return t;
+        }
         while (child.hasNext()) {
             Tuple insert = child.next();
             try {
@@ -0,0 +1,499 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFileEncoder.TupleComparator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a new BTreeFile from the tuples of an existing DbFile,
+ * such as a HeapFile, or of any DbFileIterator, bottom up.  Unlike {@link BTreeFileEncoder}, it does not
+ * need all the tuples in memory: unsorted input is sorted with an external
+ * merge sort whose runs hold at most {@link #runBytes} bytes of tuples.
+ * <p>
+ * Leaves hold {@link #fillFactor} of the tuples they can fit, and internal
+ * pages that fraction of their entries, so that later inserts do not split
+ * every page.  Since the number of tuples is known once the input is sorted,
+ * the shape of the tree is computed up front: the leaves take page numbers
+ * 1 to L, the internal pages of each level follow those of the level below,
+ * and the root is the last page.  Every page is then written exactly once,
+ * in page-number order, with its parent and sibling pointers already set.
+ * <p>
+ * The pages are written directly to the new file, bypassing the BufferPool
+ * and the log.  The pages look up their TupleDesc in the Catalog, so the file
+ * is in the Catalog under a temporary name while it is built, and is added
+ * under the given name only once it is complete; a failed build deletes it.
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+	public static final int DEFAULT_RUN_BYTES = 64 << 20;
+	private static final int BATCH_PAGES = 64;
+
+	private final DbFileIterator source;
+	private final int keyField;
+	private final TupleDesc td;
+	private double fillFactor = DEFAULT_FILL_FACTOR;
+	private boolean sorted = false;
+	private int runBytes = DEFAULT_RUN_BYTES;
+
+	/**
+	 * Creates a loader for an index keyed on keyField over the tuples of
+	 * source, which are read on behalf of tid.
+	 */
+	public BTreeBulkLoader(TransactionId tid, DbFile source, int keyField) {
+		this(source.iterator(tid), source.getTupleDesc(), keyField);
+	}
+
+	/**
+	 * Creates a loader for an index keyed on keyField over the tuples, with
+	 * TupleDesc td, returned by source.  The source is opened and read once
+	 * if it is to be sorted, and twice if it is sorted already.
+	 */
+	public BTreeBulkLoader(DbFileIterator source, TupleDesc td, int keyField) {
+		this.source = source;
+		this.keyField = keyField;
+		this.td = td;
+		if (keyField < 0 || keyField >= td.numFields()) {
+			throw new IllegalArgumentException("invalid key field " + keyField);
+		}
+	}
+
+	/**
+	 * Sets the fraction of each page that is filled, between 0.5 (so that
+	 * pages stay at least half full) and 1.0.
+	 */
+	public BTreeBulkLoader fillFactor(double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0");
+		}
+		this.fillFactor = fillFactor;
+		return this;
+	}
+
+	/**
+	 * Declares that the source is already sorted on the key field, which
+	 * skips the sort.  Building fails if it turns out not to be.
+	 */
+	public BTreeBulkLoader sorted(boolean sorted) {
+		this.sorted = sorted;
+		return this;
+	}
+
+	/**
+	 * Sets the number of bytes of memory that the tuples sorted at a time
+	 * may take, estimated by {@link #tupleBytes}.
+	 */
+	public BTreeBulkLoader runBytes(int runBytes) {
+		if (runBytes <= 0) {
+			throw new IllegalArgumentException("run size must be positive");
+		}
+		this.runBytes = runBytes;
+		return this;
+	}
+
+	/**
+	 * Builds the index in bFile, which is overwritten, and adds it to the
+	 * Catalog under the given name.  If the build fails, bFile is deleted and
+	 * the Catalog is left as it was.
+	 *
+	 * @return the new BTreeFile
+	 * @throws DbException if the source was declared sorted and is not
+	 */
+	public BTreeFile build(File bFile, String name)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		// the pages look up their TupleDesc in the Catalog; a temporary name
+		// does not replace a table of the same name before the build succeeds
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		List<File> runs = new ArrayList<>();
+		boolean built = false;
+		try {
+			long numTuples = sorted ? count() : sortRuns(runs);
+			Iterator<Tuple> tuples = sorted ? new SourceIterator() : merge(runs);
+			new Writer(bf, numTuples).write(tuples);
+			built = true;
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+			Database.getCatalog().removeTable(bf.getId());
+			if (!built) {
+				bFile.delete();
+				PageChecksums.discard(bFile);
+			}
+		}
+		Database.getCatalog().addTable(bf, name, td.getFieldName(keyField));
+		return bf;
+	}
+
+	private long count() throws DbException, TransactionAbortedException {
+		DbFileIterator it = source;
+		long count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * Sorts the source into runs of tuples taking at most runBytes bytes of memory, in temporary files.
+	 * @return the number of tuples
+	 */
+	private long sortRuns(List<File> runs) throws DbException, IOException, TransactionAbortedException {
+		int runTuples = Math.max(1, runBytes / tupleBytes(td));
+		List<Tuple> run = new ArrayList<>();
+		long count = 0;
+		DbFileIterator it = source;
+		it.open();
+		while (it.hasNext()) {
+			run.add(it.next());
+			count++;
+			if (run.size() == runTuples) {
+				runs.add(writeRun(run));
+				run.clear();
+			}
+		}
+		it.close();
+		if (!run.isEmpty() || runs.isEmpty()) {
+			runs.add(writeRun(run));
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates the heap bytes taken by a Tuple of td held in a run: its
+	 * serialized size, which the Tuple may keep as part of its page, plus the
+	 * Tuple object, its field array, a Field object per field, with a copy of
+	 * the bytes of strings, and its slot in the run.
+	 */
+	public static int tupleBytes(TupleDesc td) {
+		int bytes = td.getSize() + 48 + 8 * td.numFields() + 8;
+		for (int j = 0; j < td.numFields(); j++) {
+			bytes += td.getFieldType(j) == Type.INT_TYPE ? 16 : 64 + Type.STRING_LEN;
+		}
+		return bytes;
+	}
+
+	private File writeRun(List<Tuple> run) throws IOException {
+		run.sort(new TupleComparator(keyField));
+		File f = File.createTempFile("btree_run", ".dat");
+		f.deleteOnExit();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			for (Tuple t : run) {
+				for (int j = 0; j < td.numFields(); j++) {
+					t.getField(j).serialize(out);
+				}
+			}
+		}
+		return f;
+	}
+
+	/** Reads the tuples of a sorted run back in order. */
+	private class RunReader implements Closeable {
+		final int index;
+		final DataInputStream in;
+		final byte[] record = new byte[td.getSize()];
+		Tuple current;
+
+		RunReader(File run, int index) throws IOException {
+			this.index = index;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+		}
+
+		boolean advance() throws IOException {
+			try {
+				in.readFully(record);
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			current = new Tuple(td);
+			for (int j = 0; j < td.numFields(); j++) {
+				try {
+					current.setField(j, td.getFieldType(j).parse(record, td.getFieldOffset(j)));
+				} catch (ParseException e) {
+					throw new IOException("corrupt record in sorted run: " + e.getMessage());
+				}
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/** Merges the sorted runs; ties are taken in run order, so the sort is stable. */
+	private Iterator<Tuple> merge(List<File> runs) throws IOException {
+		TupleComparator keys = new TupleComparator(keyField);
+		PriorityQueue<RunReader> heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+			int cmp = keys.compare(a.current, b.current);
+			return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+		});
+		for (int i = 0; i < runs.size(); i++) {
+			RunReader reader = new RunReader(runs.get(i), i);
+			if (reader.advance()) {
+				heap.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+		return new Iterator<Tuple>() {
+			public boolean hasNext() {
+				return !heap.isEmpty();
+			}
+
+			public Tuple next() {
+				RunReader reader = heap.poll();
+				if (reader == null) {
+					throw new NoSuchElementException();
+				}
+				Tuple t = reader.current;
+				try {
+					if (reader.advance()) {
+						heap.add(reader);
+					} else {
+						reader.close();
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return t;
+			}
+		};
+	}
+
+	/** Iterates over an already sorted source, checking the order. */
+	private class SourceIterator implements Iterator<Tuple> {
+		private DbFileIterator it = null;
+		private Tuple prev = null;
+
+		public boolean hasNext() {
+			try {
+				if (it == null) {
+					it = source;
+					it.open();
+				}
+				if (it.hasNext()) {
+					return true;
+				}
+				it.close();
+				return false;
+			} catch (DbException | TransactionAbortedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Tuple next() {
+			try {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Tuple t = it.next();
+				if (prev != null && prev.getField(keyField).compare(Op.GREATER_THAN, t.getField(keyField))) {
+					throw new IllegalStateException(new DbException("input is not sorted on field " + keyField));
+				}
+				prev = t;
+				return t;
+			} catch (DbException | TransactionAbortedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/** Lays out the tree and writes its pages in page-number order. */
+	private class Writer {
+		final BTreeFile bf;
+		final int tableid;
+		final int pageSize = BufferPool.getPageSize();
+		final long numTuples;
+		// number of pages and first page number of each level, leaves first
+		final List<Integer> levelPages = new ArrayList<>();
+		final List<Integer> levelBase = new ArrayList<>();
+		// the smallest key under each page of the current level
+		List<Field> firstKeys = new ArrayList<>();
+
+		final ByteBuffer batch;
+		int batchStart = 1;
+		int batchPages = 0;
+		final FileOutputStream out;
+
+		Writer(BTreeFile bf, long numTuples) throws IOException {
+			this.bf = bf;
+			this.tableid = bf.getId();
+			this.numTuples = numTuples;
+			this.batch = ByteBuffer.allocate(BATCH_PAGES * pageSize);
+			PageChecksums.discard(bf.getFile());
+			this.out = new FileOutputStream(bf.getFile());
+
+			int maxTuples = maxTuples();
+			int maxEntries = maxEntries();
+			int leafCapacity = Math.max(1, (int) (maxTuples * fillFactor));
+			int childCapacity = Math.max(2, (int) (maxEntries * fillFactor) + 1);
+			int pages = pagesFor(numTuples, leafCapacity, maxTuples / 2);
+			int base = 1;
+			while (true) {
+				levelPages.add(pages);
+				levelBase.add(base);
+				if (pages == 1) {
+					break;
+				}
+				base += pages;
+				pages = pagesFor(pages, childCapacity, maxEntries / 2 + 1);
+			}
+		}
+
+		int maxTuples() throws IOException {
+			return new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+					BTreePage.createEmptyPageData(), keyField).getMaxTuples();
+		}
+
+		int maxEntries() throws IOException {
+			return new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+					BTreePage.createEmptyPageData(), keyField).getMaxEntries();
+		}
+
+		/**
+		 * The number of pages that count items filled to capacity take, but
+		 * without leaving any page with fewer than min items when the items
+		 * are spread evenly; with min at half of what a page holds, no page
+		 * overflows either.
+		 */
+		int pagesFor(long count, int capacity, int min) {
+			long pages = Math.max(1, (count + capacity - 1) / capacity);
+			while (pages > 1 && count / pages < min) {
+				pages--;
+			}
+			return (int) pages;
+		}
+
+		// the first of count items spread evenly over pages that goes on page i
+		long start(long i, long count, int pages) {
+			return i * count / pages;
+		}
+
+		// the page of the level above that holds child i of count children
+		BTreePageId parent(int level, int i) {
+			if (level == levelPages.size() - 1) {
+				return BTreeRootPtrPage.getId(tableid);
+			}
+			long count = levelPages.get(level);
+			int parents = levelPages.get(level + 1);
+			int j = (int) (((i + 1L) * parents - 1) / count);
+			return new BTreePageId(tableid, levelBase.get(level + 1) + j, BTreePageId.INTERNAL);
+		}
+
+		BTreePageId pageId(int level, int i) {
+			return new BTreePageId(tableid, levelBase.get(level) + i,
+					level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		}
+
+		void write(Iterator<Tuple> tuples) throws DbException, IOException {
+			try {
+				int top = levelPages.size() - 1;
+				byte[] rootPtr = BTreeFileEncoder.convertToRootPtrPage(levelBase.get(top),
+						top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0);
+				bf.getPageChecksums().append(0, rootPtr, 0, rootPtr.length);
+				out.write(rootPtr);
+
+				writeLeaves(tuples);
+				for (int level = 1; level <= top; level++) {
+					writeInternalPages(level);
+				}
+				flush();
+			} catch (IllegalStateException e) {
+				if (e.getCause() instanceof DbException) {
+					throw (DbException) e.getCause();
+				}
+				throw e;
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				out.close();
+			}
+		}
+
+		void writeLeaves(Iterator<Tuple> tuples) throws DbException, IOException {
+			int leaves = levelPages.get(0);
+			Type[] types = new Type[td.numFields()];
+			for (int j = 0; j < types.length; j++) {
+				types[j] = td.getFieldType(j);
+			}
+			List<Tuple> page = new ArrayList<>();
+			for (int i = 0; i < leaves; i++) {
+				long size = start(i + 1, numTuples, leaves) - start(i, numTuples, leaves);
+				page.clear();
+				while (page.size() < size && tuples.hasNext()) {
+					page.add(tuples.next());
+				}
+				if (page.size() < size) {
+					throw new DbException("source shrank while the index was built");
+				}
+				firstKeys.add(page.isEmpty() ? null : page.get(0).getField(keyField));
+				BTreeLeafPage leaf = new BTreeLeafPage(pageId(0, i),
+						BTreeFileEncoder.convertToLeafPage(page, pageSize, types.length, types, keyField), keyField);
+				leaf.setParentId(parent(0, i));
+				leaf.setLeftSiblingId(i > 0 ? pageId(0, i - 1) : null);
+				leaf.setRightSiblingId(i < leaves - 1 ? pageId(0, i + 1) : null);
+				append(leaf);
+			}
+			if (tuples.hasNext()) {
+				throw new DbException("source grew while the index was built");
+			}
+		}
+
+		void writeInternalPages(int level) throws DbException, IOException {
+			int children = levelPages.get(level - 1);
+			int pages = levelPages.get(level);
+			int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			List<Field> keys = new ArrayList<>();
+			for (int j = 0; j < pages; j++) {
+				int first = (int) start(j, children, pages);
+				int end = (int) start(j + 1, children, pages);
+				List<BTreeEntry> entries = new ArrayList<>();
+				for (int c = first + 1; c < end; c++) {
+					entries.add(new BTreeEntry(firstKeys.get(c), pageId(level - 1, c - 1), pageId(level - 1, c)));
+				}
+				keys.add(firstKeys.get(first));
+				BTreeInternalPage page = new BTreeInternalPage(pageId(level, j),
+						BTreeFileEncoder.convertToInternalPage(entries, pageSize,
+								td.getFieldType(keyField), childCategory), keyField);
+				page.setParentId(parent(level, j));
+				append(page);
+			}
+			firstKeys = keys;
+		}
+
+		void append(BTreePage page) throws IOException {
+			batch.put(page.getPageData());
+			if (++batchPages == BATCH_PAGES) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			if (batchPages == 0) {
+				return;
+			}
+			bf.getPageChecksums().appendPages(batchStart, batch.array(), 0, batchPages, pageSize);
+			out.write(batch.array(), 0, batch.position());
+			batchStart += batchPages;
+			batchPages = 0;
+			batch.clear();
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -19,6 +22,8 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * Pages read from disk are checked against their PageChecksums, in which the root
+ * pointer page is page 0.
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -32,6 +37,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageChecksums checksums;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +52,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.checksums = new PageChecksums(f);
 	}
 
 	/**
@@ -98,8 +105,11 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read "
                             + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
                 }
+                verify(id, pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
+                BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(id, pageBuf);
+                checkFormat(rootPtr);
+                return rootPtr;
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
                 if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
@@ -115,6 +125,7 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read "
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
+                verify(id, pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
                     return new BTreeInternalPage(id, pageBuf, keyField);
@@ -131,6 +142,31 @@ public class BTreeFile implements DbFile {
         // Ignore failures closing the file
     }
 
+	private void verify(BTreePageId id, byte[] pageBuf) throws IOException {
+		int pgNo = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.getPageNumber();
+		if (!checksums.verify(pgNo, pageBuf, 0, pageBuf.length)) {
+			throw new IllegalArgumentException(String.format("table %d page %d fails its checksum, it may be torn",
+					tableid, id.getPageNumber()));
+		}
+	}
+
+	/**
+	 * Rejects a tree keyed on a string whose internal pages were written with
+	 * whole string keys, before they were truncated to separators: reading
+	 * them with the current layout would give wrong keys and child pointers.
+	 * Trees keyed on other types, or whose root is still a leaf, have no such
+	 * pages and take the current format the next time the root pointer is
+	 * written.
+	 */
+	private void checkFormat(BTreeRootPtrPage rootPtr) {
+		BTreePageId root = rootPtr.getRootId();
+		if (td.getFieldType(keyField) == Type.STRING_TYPE && root != null
+				&& root.pgcateg() == BTreePageId.INTERNAL && !rootPtr.hasSeparatorFormat()) {
+			throw new IllegalArgumentException(f.getName() + " stores whole string keys in its "
+					+ "internal pages and must be reloaded from its tuples");
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -140,18 +176,28 @@ public class BTreeFile implements DbFile {
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
 		
-		byte[] data = page.getPageData();
+		ByteBuffer data = PageBuffers.get();
+		page.writePageData(data);
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
+			checksums.update(0, data.array(), 0, data.position());
+			rf.write(data.array(), 0, data.position());
 			rf.close();
 		}
 		else {
+			checksums.update(id.getPageNumber(), data.array(), 0, data.position());
 			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
+			rf.write(data.array(), 0, data.position());
 			rf.close();
 		}
 	}
+
+	/**
+	 * Returns the checksums that detect torn pages of this file.
+	 */
+	public PageChecksums getPageChecksums() {
+		return checksums;
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -194,17 +240,9 @@ public class BTreeFile implements DbFile {
 		if (type == BTreePageId.LEAF) return (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
 		//3.读取internal page要使用READ_ONLY perm
 		BTreeInternalPage internalPage = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		//4.获取该页面的entries
-		Iterator<BTreeEntry> it = internalPage.iterator();
-		//这里需要把entry声明在循环外，如果找到最后一个entry还没找到，返回最后一个entry的右孩子
-		BTreeEntry entry = null;
-		while (it.hasNext()) {
-			entry = it.next();
-			if (f == null) return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-			Field key = entry.getKey();
-			if (key.compare(Op.GREATER_THAN_OR_EQ, f)) return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-		}
-		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+		//4.二分查找第一个>=f的key，沿它的左孩子向下；没有则沿最后一个entry的右孩子
+		BTreePageId child = internalPage.getChildId(internalPage.findChildIndex(f));
+		return findLeafPage(tid, dirtypages, child, perm, f);
 	}
 	
 	/**
@@ -224,6 +262,28 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Recursive function which finds and locks the right-most leaf page in the B+ tree
+	 * that may contain a key less than or equal to f, for a scan that walks left from it.
+	 * Internal pages are locked with READ_ONLY permission, and so is the leaf page.
+	 * If f is null, it finds the right-most leaf page -- used for descending scans.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param f - the field to search for
+	 * @return the right-most leaf page possibly containing a key less than or equal to f
+	 * @see BTreeInternalPage#findLastChildIndex(Field)
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Field f)
+					throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = internalPage.getChildId(internalPage.findLastChildIndex(f));
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -284,8 +344,10 @@ public class BTreeFile implements DbFile {
 		rightPage.setLeftSiblingId(page.getId());
 
 		//找出父节点并创建entry进行插入，最后标记脏页
-		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-		Field mid = it.next().getField(parent.keyField);
+		//父节点分裂后，page的父指针指向真正包含它的那一半（截断的字符串key可能相等，不能只比较key）
+		Field mid = it.next().getField(keyField);
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid);
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
 		BTreeEntry entry = new BTreeEntry(mid, page.pid, rightPage.pid);
 		parent.insertEntry(entry);
 		dirtypages.put(parent.pid, parent);
@@ -363,13 +425,15 @@ public class BTreeFile implements DbFile {
 		updateParentPointers(tid, dirtypages, rightPage);
 
 		//7.根据中间节点获取父节点，将midEntry插入到父节点中，并更新脏页和指针
-		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midEntry.getKey());
+		//父节点分裂后，沿page的父指针找到真正包含它的那一半
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midEntry.getKey());
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
 		parent.insertEntry(midEntry);
 		dirtypages.put(parent.pid, parent);
 		updateParentPointers(tid, dirtypages, parent);
 
 		//8.根据field去决定返回哪个页面
-		boolean right = field.compare(Op.GREATER_THAN_OR_EQ, midEntry.getKey());
+		boolean right = BTreeInternalPage.separator(field).compare(Op.GREATER_THAN_OR_EQ, midEntry.getKey());
 		return right ? rightPage : page;
 	}
 	
@@ -535,6 +599,7 @@ public class BTreeFile implements DbFile {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
 		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		leafPage = moveRight(tid, dirtypages, leafPage, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -545,6 +610,37 @@ public class BTreeFile implements DbFile {
         return new ArrayList<>(dirtypages.values());
 	}
 	
+	/**
+	 * The left-most leaf page for a string key f may be followed by leaves with
+	 * keys less than f, when f and the separator between them truncate to the
+	 * same prefix.  Moves right past those leaves, so that f is inserted after
+	 * every key less than it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the left-most leaf page possibly containing f, locked READ_WRITE
+	 * @param f - the key of the tuple to insert
+	 * @return the leaf page into which f should be inserted, locked READ_WRITE
+	 */
+	private BTreeLeafPage moveRight(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field f)
+			throws DbException, TransactionAbortedException {
+		if (td.getFieldType(keyField) != Type.STRING_TYPE)
+			return page;
+		while (page.getRightSiblingId() != null) {
+			// keys of page greater than or equal to f keep f on it
+			Iterator<Tuple> last = page.reverseIterator();
+			if (last.hasNext() && last.next().getField(keyField).compare(Op.GREATER_THAN_OR_EQ, f))
+				return page;
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(),
+					Permissions.READ_ONLY);
+			Iterator<Tuple> first = right.iterator();
+			if (!first.hasNext() || first.next().getField(keyField).compare(Op.GREATER_THAN_OR_EQ, f))
+				return page;
+			page = (BTreeLeafPage) getPage(tid, dirtypages, right.getId(), Permissions.READ_WRITE);
+		}
+		return page;
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -777,25 +873,23 @@ public class BTreeFile implements DbFile {
 		int targetEntries = (curEntries + leftSiblingNumEntries) >> 1;
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
 
-		//先处理parentEntry和leftSibling的倒数第一个节点，注意左右孩子指针的更新
+		//先把parentEntry的key拉下来，放在左兄弟最后一个孩子和本页第一个孩子之间
 		BTreeEntry right = page.iterator().next();
 		BTreeEntry left = it.next();
-		leftSibling.deleteKeyAndRightChild(left);
 		BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), right.getLeftChild());
 		page.insertEntry(entry);
-		page.insertEntry(left);
-		curEntries += 2;
+		curEntries++;
 
-		while (it.hasNext() && curEntries < targetEntries) {
-			BTreeEntry e = it.next();
+		while (curEntries < targetEntries) {
 			//先删除后插入
-			leftSibling.deleteKeyAndRightChild(e);
-			page.insertEntry(e);
+			leftSibling.deleteKeyAndRightChild(left);
+			page.insertEntry(left);
 			++curEntries;
+			left = it.next();
 		}
-		BTreeEntry e = it.next();
-		leftSibling.deleteKeyAndRightChild(e);
-		parentEntry.setKey(e.getKey());
+		//左兄弟剩下的最后一个key推到父节点
+		leftSibling.deleteKeyAndRightChild(left);
+		parentEntry.setKey(left.getKey());
 		parent.updateEntry(parentEntry);
 		//被移动的entry其所属page变化了，它们的左右孩子的parent属性需要更新
 		updateParentPointers(tid, dirtypages, page);
@@ -830,26 +924,24 @@ public class BTreeFile implements DbFile {
 		int rightSiblingNumEntries = rightSibling.getNumEntries();
 		int targetEntries = (curEntries + rightSiblingNumEntries) >> 1;
 
+		//先把parentEntry的key拉下来，放在本页最后一个孩子和右兄弟第一个孩子之间
 		Iterator<BTreeEntry> it = rightSibling.iterator();
 		BTreeEntry right = it.next();
-		rightSibling.deleteKeyAndLeftChild(right);
 		BTreeEntry left = page.reverseIterator().next();
 		BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), right.getLeftChild());
-		//注意这里要先插入entry再插入right，如果先插入right，recordId会被更新
 		page.insertEntry(entry);
-		page.insertEntry(right);
-		curEntries += 2;
-
-		while (it.hasNext() && curEntries < targetEntries) {
-			BTreeEntry e = it.next();
-			rightSibling.deleteKeyAndRightChild(e);
-			page.insertEntry(e);
-			curEntries ++;
+		curEntries++;
+
+		while (curEntries < targetEntries) {
+			//从右兄弟的开头移走entry，它的左孩子随之移走
+			rightSibling.deleteKeyAndLeftChild(right);
+			page.insertEntry(right);
+			curEntries++;
+			right = it.next();
 		}
-
-		BTreeEntry next = it.next();
-		rightSibling.deleteKeyAndRightChild(next);
-		parentEntry.setKey(next.getKey());
+		//右兄弟剩下的第一个key推到父节点
+		rightSibling.deleteKeyAndLeftChild(right);
+		parentEntry.setKey(right.getKey());
 		parent.updateEntry(parentEntry);
 		updateParentPointers(tid, dirtypages, page);
 	}
@@ -1044,10 +1136,12 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				checksums.append(0, emptyRootPtrData, 0, emptyRootPtrData.length);
+				checksums.append(1, emptyLeafData, 0, emptyLeafData.length);
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
@@ -1106,12 +1200,13 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
+				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+				emptyPageNo = numPages() + 1;
+				checksums.append(emptyPageNo, emptyData, 0, emptyData.length);
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
 				bw.write(emptyData);
 				bw.close();
-				emptyPageNo = numPages();
 			}
 		}
 
@@ -1141,9 +1236,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
+		byte[] emptyData = BTreePage.createEmptyPageData();
+		checksums.update(emptyPageNo, emptyData, 0, emptyData.length);
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
+		rf.write(emptyData);
 		rf.close();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
@@ -1246,13 +1343,147 @@ public class BTreeFile implements DbFile {
 	 * acquired.
 	 * 
 	 * @param tid - the transaction id
-	 * @param ipred - the index predicate value to filter on
+	 * @param ipred - the index predicate value to filter on, which may not
+	 *              have a prefix since the key is a single field; a range
+	 *              predicate is read from its lower to its upper bound
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getPrefix().length > 0) {
+			throw new IllegalArgumentException("a BTreeFile key has a single field");
+		}
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples matching an IndexPredicate in descending key order.  The scan
+	 * starts at the leaf page of the upper bound of the predicate, if it has one,
+	 * and follows left sibling pointers, so a scan that is stopped after its first
+	 * tuples only reads the pages it needs.  This method will acquire a read lock
+	 * on the affected pages of the file, and may block until the lock can be
+	 * acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, or null for all tuples
+	 * @return an iterator for the filtered tuples, in descending key order
+	 */
+	public DbFileIterator descendingIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred != null && ipred.getPrefix().length > 0) {
+			throw new IllegalArgumentException("a BTreeFile key has a single field");
+		}
+		return new BTreeReverseSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Split the key space of this tree into at most k ranges of about the same number
+	 * of subtrees, using the separator keys of its internal pages.  The levels of the
+	 * tree are read from the root down until one has at least k pages or the leaves are
+	 * reached, and k-1 of the keys between the pages of that level are picked at even
+	 * intervals.  Internal pages are locked with READ_ONLY permission.
+	 *
+	 * @param tid - the transaction id
+	 * @param k - the number of ranges wanted
+	 * @return the keys between the ranges, in increasing order and without duplicates;
+	 *         none if the tree has a single leaf page
+	 */
+	List<Field> partitionKeys(TransactionId tid, int k) throws DbException, TransactionAbortedException {
+		if (k < 1) {
+			throw new IllegalArgumentException("cannot split a tree into " + k + " ranges");
+		}
+		List<Field> bounds = new ArrayList<>();
+		if (f.length() == 0) {
+			return bounds;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		// keys.get(i) separates the subtrees of level.get(i) and level.get(i + 1)
+		List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+		List<Field> keys = new ArrayList<>();
+		while (level.size() < k && level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<BTreePageId> children = new ArrayList<>();
+			List<Field> childKeys = new ArrayList<>();
+			for (int i = 0; i < level.size(); i++) {
+				if (i > 0) {
+					childKeys.add(keys.get(i - 1));
+				}
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, level.get(i), Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				while (it.hasNext()) {
+					BTreeEntry e = it.next();
+					if (children.size() == childKeys.size()) {
+						children.add(e.getLeftChild());
+					}
+					childKeys.add(e.getKey());
+					children.add(e.getRightChild());
+				}
+			}
+			level = children;
+			keys = childKeys;
+		}
+		int parts = Math.min(k, level.size());
+		for (int i = 1; i < parts; i++) {
+			Field key = keys.get(i * level.size() / parts - 1);
+			// duplicate keys may separate several subtrees
+			if (bounds.isEmpty() || key.compare(Op.GREATER_THAN, bounds.get(bounds.size() - 1))) {
+				bounds.add(key);
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Split this tree into at most k key ranges, and get an index scan of each range,
+	 * in key order, so reading them one after the other returns the tuples of
+	 * {@link #iterator(TransactionId)}.  The ranges are bounded by separator keys of
+	 * the internal pages, and each scan seeks to the first leaf page of its range, so
+	 * the ranges can be read by separate threads of the same transaction.  This method
+	 * will acquire a read lock on the internal pages it reads, and so will each scan on
+	 * the pages of its range.
+	 *
+	 * @param tid - the transaction id
+	 * @param k - the number of ranges wanted
+	 * @return one iterator per range, in key order
+	 * @see #partitionKeys(TransactionId, int)
+	 */
+	public List<DbFileIterator> partitionIterators(TransactionId tid, int k)
+			throws DbException, TransactionAbortedException {
+		List<Field> keys = partitionKeys(tid, k);
+		List<DbFileIterator> its = new ArrayList<>();
+		if (keys.isEmpty()) {
+			its.add(iterator(tid));
+			return its;
+		}
+		its.add(indexIterator(tid, new IndexPredicate(Op.LESS_THAN, keys.get(0))));
+		for (int i = 1; i < keys.size(); i++) {
+			its.add(indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, keys.get(i - 1),
+					Op.LESS_THAN, keys.get(i))));
+		}
+		its.add(indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, keys.get(keys.size() - 1))));
+		return its;
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order, which reads
+	 * the key ranges of {@link #partitionIterators(TransactionId, int)} on a pool of
+	 * parallelism threads.  The tree is split into several ranges per thread, and the
+	 * range being returned and the ranges after it are read at the same time, each a
+	 * bounded number of tuples ahead.  {@link BufferPool#getPage} reads a page missing
+	 * from the BufferPool without holding the BufferPool, so the threads read the pages
+	 * of their ranges from disk in parallel.  This method will acquire a read lock on
+	 * the affected pages of the file, and may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param parallelism - the number of threads
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator parallelIterator(TransactionId tid, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("cannot scan with " + parallelism + " threads");
+		}
+		return new BTreeParallelIterator(this, tid, parallelism);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1383,11 +1614,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, ipred.getField());
+			// skip the tuples of the first page with smaller keys
+			it = curp.iterator(curp.lowerBound(ipred.getField()));
 		}
 		else {
 			curp = f.findLeafPage(tid, root, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1403,7 +1636,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = t.getField(f.keyField());
+				if (ipred.matches(key)) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1412,11 +1646,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
 				}
+				else if(ipred.getUpperOp() != null && !key.compare(ipred.getUpperOp(), ipred.getUpperField())) {
+					// the key is past the upper bound of a range
+					return null;
+				}
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
@@ -1450,3 +1688,264 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for descending search tuples on a
+ * B+ Tree File
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(ipred != null && ipred.getUpperOp() != null) {
+			curp = f.findLastLeafPage(tid, root, ipred.getUpperField());
+		}
+		else if(ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
+				|| ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+			curp = f.findLastLeafPage(tid, root, ipred.getField());
+		}
+		else {
+			curp = f.findLastLeafPage(tid, root, null);
+		}
+		it = curp.reverseIterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || ipred.matches(t.getField(f.keyField()))) {
+					return t;
+				}
+				else if((ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+						|| ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+						&& t.getField(f.keyField()).compare(Op.LESS_THAN_OR_EQ, ipred.getField())) {
+					// keys only get smaller from here, so we have passed the lower bound
+					return null;
+				}
+				// otherwise the key is above the upper bound of the predicate, or not
+				// equal to its field, so keep going left
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if(prevp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator of BTreeFile.parallelIterator.
+ * The tree is split into RANGES_PER_THREAD key ranges per thread, each read by a
+ * task of a fixed thread pool into a bounded queue of its own, and the queues are
+ * drained in key order, so the tuples come out sorted while the ranges after the
+ * current one are read ahead.  The tasks start in key order, and a task only
+ * waits for the ranges before it to be drained, so the range being drained always
+ * has a thread.
+ */
+class BTreeParallelIterator extends AbstractDbFileIterator {
+
+	/** the number of tuples a range is read ahead of the consumer */
+	static final int QUEUE_SIZE = 1024;
+
+	/** the number of key ranges the tree is split into per thread */
+	static final int RANGES_PER_THREAD = 4;
+
+	// marks the end of a range in its queue
+	private static final Tuple END = new Tuple(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+	final BTreeFile f;
+	final TransactionId tid;
+	final int parallelism;
+
+	private ExecutorService pool = null;
+	private List<BlockingQueue<Tuple>> queues = null;
+	private List<Future<Void>> tasks = null;
+	private int current;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param parallelism - the number of threads
+	 */
+	public BTreeParallelIterator(BTreeFile f, TransactionId tid, int parallelism) {
+		this.f = f;
+		this.tid = tid;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Open this iterator by splitting the tree into key ranges and starting
+	 * to read them
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		List<DbFileIterator> ranges = f.partitionIterators(tid, parallelism * RANGES_PER_THREAD);
+		closed = false;
+		pool = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()));
+		queues = new ArrayList<>();
+		tasks = new ArrayList<>();
+		current = 0;
+		for (DbFileIterator range : ranges) {
+			BlockingQueue<Tuple> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+			queues.add(queue);
+			tasks.add(pool.submit(() -> {
+				if (closed) {
+					return null;
+				}
+				try {
+					range.open();
+					while (!closed && range.hasNext()) {
+						queue.put(range.next());
+					}
+					return null;
+				} finally {
+					range.close();
+					// a closed iterator has stopped reading the queue
+					if (!closed) {
+						queue.put(END);
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Read the next tuple of the current range, moving to the next range at the
+	 * end of one.
+	 * 
+	 * @return the next tuple, or null if all ranges have been read
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (queues != null && current < queues.size()) {
+			try {
+				Tuple t = queues.get(current).take();
+				if (t != END) {
+					return t;
+				}
+				// report why the range ended, if it failed
+				tasks.get(current).get();
+			} catch (InterruptedException e) {
+				throw new DbException("interrupted while reading key range " + current);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof TransactionAbortedException) {
+					throw (TransactionAbortedException) e.getCause();
+				}
+				if (e.getCause() instanceof DbException) {
+					throw (DbException) e.getCause();
+				}
+				throw new DbException("reading key range " + current + " failed: " + e.getCause());
+			}
+			current++;
+		}
+		// every task has finished, let the threads exit
+		if (pool != null) {
+			pool.shutdown();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator.  The tasks that are still reading stop at their next
+	 * tuple, and are waited for, so that none of them locks a page for the
+	 * transaction after this returns; they are not interrupted, which would
+	 * abort a task waiting for a lock in the BufferPool.
+	 */
+	public void close() {
+		super.close();
+		closed = true;
+		if (pool != null) {
+			pool.shutdown();
+			// the tasks that have not started return at once, and a task blocked
+			// on a full queue puts one more tuple and returns
+			for (BlockingQueue<Tuple> queue : queues) {
+				queue.clear();
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+						break;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		pool = null;
+		queues = null;
+		tasks = null;
+	}
+}
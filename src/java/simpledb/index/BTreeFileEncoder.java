@@ -70,7 +70,8 @@ public class BTreeFileEncoder {
 			int keyField, int numFields)
 					throws IOException {
 		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
+		ParallelHeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields,
+				Utility.getTypes(numFields), ',');
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
 		// add the heap file to B+ tree file
@@ -202,7 +203,7 @@ public class BTreeFileEncoder {
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
 		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
+		ParallelHeapFileEncoder.convert(inFile, hFile, npagebytes, numFields, typeAr, fieldSeparator);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
 		// read all the tuples from the heap file and sort them on the keyField
@@ -230,7 +231,7 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = BTreeInternalPage.keySize(keyType) + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -621,7 +622,7 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = BTreeInternalPage.keySize(keyType) + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -666,11 +667,11 @@ public class BTreeFileEncoder {
 
 		entries.sort(new EntryComparator());
 		for(int e = 0; e < entrycount; e++) {
-			entries.get(e).getKey().serialize(dos);
+			BTreeInternalPage.separator(entries.get(e).getKey()).serialize(dos);
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<BTreeInternalPage.keySize(keyType); j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -710,7 +711,7 @@ public class BTreeFileEncoder {
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
-		dos.writeByte((byte) rootCategory); // root page category
+		dos.writeByte((byte) (rootCategory | BTreeRootPtrPage.SEPARATOR_FORMAT)); // root page category
 
 		dos.writeInt(header); // header pointer
 
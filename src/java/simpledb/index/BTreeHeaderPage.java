@@ -70,8 +70,6 @@ public class BTreeHeaderPage implements Page {
 			header[i] = dis.readByte();
 
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/**
@@ -106,6 +104,10 @@ public class BTreeHeaderPage implements Page {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
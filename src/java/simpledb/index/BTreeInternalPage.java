@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -12,21 +13,34 @@ import simpledb.common.Debug;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.PageBuffers;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * String keys are stored as separators truncated to {@link #SEPARATOR_LEN}
+ * characters, so a string-keyed page holds several times more entries than
+ * it would with whole keys.  Truncation keeps keys in order, so the keys in
+ * the left subtree of a separator still truncate to no more than it, and the
+ * keys in the right subtree to no less; two keys with the same prefix route
+ * like duplicate keys.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/** the number of characters of a string key kept in an internal page */
+	public static final int SEPARATOR_LEN = 32;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private int[] keySlots = null; // used key slots in key order, rebuilt after a slot changes
 	
 	private int childCategory; // either leaf or internal
 
@@ -112,15 +126,13 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = keySize(td.getFieldType(keyField));
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -128,6 +140,24 @@ public class BTreeInternalPage extends BTreePage {
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
 	}
 
+	/**
+	 * Returns the number of bytes an internal page stores for a key of the
+	 * given type.
+	 */
+	public static int keySize(Type type) {
+		return type == Type.STRING_TYPE ? SEPARATOR_LEN + 4 : type.getLen();
+	}
+
+	/**
+	 * Returns the separator an internal page stores for the key f: f itself,
+	 * or its first {@link #SEPARATOR_LEN} characters if f is a string.
+	 */
+	public static Field separator(Field f) {
+		if (f instanceof StringField)
+			return new StringField(((StringField) f).getValue(), SEPARATOR_LEN);
+		return f;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -149,6 +179,10 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -172,7 +206,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keySize(td.getFieldType(keyField)); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +219,16 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			if (td.getFieldType(keyField) == Type.STRING_TYPE) {
+				byte[] bs = new byte[dis.readInt()];
+				dis.readFully(bs);
+				dis.skipBytes(SEPARATOR_LEN - bs.length);
+				f = new StringField(new String(bs), SEPARATOR_LEN);
+			} else {
+				f = td.getFieldType(keyField).parse(dis);
+			}
+		} catch (IOException e) {
+			throw new NoSuchElementException("error reading key");
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -236,105 +279,39 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		writePageData(buf);
+		return buf.array();
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	public void writePageData(ByteBuffer buf) {
+		// write out the parent pointer and the child page category
+		buf.putInt(parent);
+		buf.put((byte) childCategory);
 
 		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+		buf.put(header);
 
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
+		int keySize = keySize(td.getFieldType(keyField));
 		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (isSlotUsed(i)) {
+				keys[i].serialize(buf);
+			} else {
+				PageBuffers.putZeroes(buf, keySize);
 			}
-
 		}
 
 		// create the child pointers
 		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			buf.putInt(isSlotUsed(i) ? children[i] : 0);
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length +
+				keySize * (keys.length - 1) + INDEX_SIZE * children.length));
 	}
 
 	/**
@@ -413,6 +390,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		e.setKey(separator(e.getKey()));
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -447,6 +425,7 @@ public class BTreeInternalPage extends BTreePage {
 	public void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
+		e.setKey(separator(e.getKey()));
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
@@ -599,12 +578,86 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		keySlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Returns the used key slots of this page; since entries are kept in sorted
+	 * order, their keys are in ascending order.
+	 */
+	private int[] keySlots() {
+		if (keySlots == null) {
+			int[] slots = new int[numSlots];
+			int count = 0;
+			for (int i=1; i<numSlots; i++)
+				if (isSlotUsed(i))
+					slots[count++] = i;
+			keySlots = Arrays.copyOf(slots, count);
+		}
+		return keySlots;
+	}
+
+	/**
+	 * Binary searches the keys of this page for the child that may contain f:
+	 * the left child of the first entry with a key greater than or equal to
+	 * the separator of f, or the right child of the last entry if there is no
+	 * such key.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the slot of the child, to be passed to {@link #getChildId}
+	 */
+	public int findChildIndex(Field f) {
+		int[] slots = keySlots();
+		if (f == null || slots.length == 0)
+			return 0;
+		f = separator(f);
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[slots[mid]].compare(Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		// the left child of entry lo is the right child of entry lo - 1
+		if (lo == slots.length)
+			return slots[slots.length - 1];
+		return lo == 0 ? 0 : slots[lo - 1];
+	}
+
+	/**
+	 * Binary searches the keys of this page for the right-most child that may
+	 * contain f: the left child of the first entry with a key greater than the
+	 * separator of f, or the right child of the last entry if there is no such
+	 * key.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the slot of the child, to be passed to {@link #getChildId}
+	 */
+	public int findLastChildIndex(Field f) {
+		int[] slots = keySlots();
+		if (slots.length == 0)
+			return 0;
+		if (f == null)
+			return slots[slots.length - 1];
+		f = separator(f);
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[slots[mid]].compare(Op.LESS_THAN_OR_EQ, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo == slots.length)
+			return slots[slots.length - 1];
+		return lo == 0 ? 0 : slots[lo - 1];
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -765,8 +818,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the previous used slot, which may not be entry - 1
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev))
+					prev--;
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -10,6 +10,7 @@ import simpledb.storage.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -23,6 +24,7 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	private int[] usedSlots = null; // used slots in key order, rebuilt after a slot changes
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -39,7 +41,9 @@ public class BTreeLeafPage extends BTreePage {
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
-        assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+        // the upper bound is a separator, which may be a truncated key
+        assert null == upperBound || null == prev ||
+                (BTreeInternalPage.separator(prev).compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
         assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
 	}
@@ -106,8 +110,6 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
@@ -140,6 +142,10 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -202,84 +208,37 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		writePageData(buf);
+		return buf.array();
+	}
 
+	public void writePageData(ByteBuffer buf) {
 		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.putInt(parent);
+		buf.putInt(leftSibling);
+		buf.putInt(rightSibling);
 
 		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+		buf.put(header);
 
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
+				PageBuffers.putZeroes(buf, td.getSize());
 				continue;
 			}
 
 			// non-empty slot
 			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				tuples[i].getField(j).serialize(buf);
 			}
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE));
 	}
 
 	/**
@@ -325,17 +284,19 @@ public class BTreeLeafPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
+		// binary search for the last key less than or equal to the key being inserted
 		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		int[] slots = usedSlots();
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuples[slots[mid]].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lo = mid + 1;
+			else
+				hi = mid;
 		}
+		int lessOrEqKey = lo == 0 ? -1 : slots[lo - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -472,12 +433,51 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Returns the used slots of this page; since tuples are kept in sorted
+	 * order, their keys are in ascending order.
+	 */
+	private int[] usedSlots() {
+		if (usedSlots == null) {
+			int[] slots = new int[numSlots];
+			int count = 0;
+			for (int i=0; i<numSlots; i++)
+				if (isSlotUsed(i))
+					slots[count++] = i;
+			usedSlots = Arrays.copyOf(slots, count);
+		}
+		return usedSlots;
+	}
+
+	/**
+	 * Binary searches the keys of this page for the first tuple with a key
+	 * greater than or equal to f.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or {@link #getMaxTuples()} if every key
+	 *         on this page is less than f
+	 * @see #iterator(int)
+	 */
+	public int lowerBound(Field f) {
+		int[] slots = usedSlots();
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuples[slots[mid]].getField(keyField).compare(Predicate.Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo == slots.length ? numSlots : slots[lo];
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -486,6 +486,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page from the given slot on
+	 * @see #lowerBound(Field)
+	 */
+	public Iterator<Tuple> iterator(int slot) {
+		return new BTreeLeafPageIterator(this, slot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,7 +537,12 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 	final BTreeLeafPage p;
 
 	public BTreeLeafPageIterator(BTreeLeafPage p) {
+		this(p, 0);
+	}
+
+	public BTreeLeafPageIterator(BTreeLeafPage p, int slot) {
 		this.p = p;
+		this.curTuple = slot;
 	}
 
 	public boolean hasNext() {
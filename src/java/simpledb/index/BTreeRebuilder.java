@@ -0,0 +1,415 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeRebuilder rebuilds a BTreeFile online: it compacts the tree into a new
+ * file with {@link BTreeBulkLoader} while transactions keep reading and
+ * writing the table, and then swaps the new file in place of the old one.
+ * <p>
+ * The rebuild takes a snapshot of the file, which on disk holds the pages
+ * of the transactions that committed before the current end of the log,
+ * since the BufferPool forces the pages of a transaction at commit and logs
+ * them first, and the pages that live transactions had stolen, which were
+ * logged too.  The snapshot is loaded into the new file, and the changes
+ * committed since are then read back from the log and applied to the new
+ * file, in rounds, until a round finds nothing left.  Only then is the table
+ * locked, for the last round and the swap, so writers are blocked for a
+ * short time rather than for the whole rebuild.
+ * <p>
+ * The log holds page images, not operations, so the changes are the tuples
+ * that the logged leaf pages gained and lost; the internal pages of the old
+ * tree do not matter to the new one.  As in recovery, a transaction counts
+ * as committed once its COMMIT record is logged: the images of a transaction
+ * are kept until its COMMIT or ABORT record is read, and only then applied
+ * or dropped, and the stolen pages in the snapshot of a transaction that
+ * aborts are undone.  Writes of transactions that never log a COMMIT record,
+ * such as those completed directly through the BufferPool, are not applied.
+ * <p>
+ * The new file is written directly, bypassing the BufferPool and the log.
+ * The log still holds images of the pages of the old file under the same
+ * table id, so before the swap a REBUILD record is logged, and recovery and
+ * standby replicas skip the images of the table logged before it.  The
+ * record is forced before the file is moved, and once the last changes are
+ * applied no transaction that has not committed has pages of the table in
+ * the log, so the old file needs nothing from those images either, should
+ * the database crash before the move.  The rebuild fails if the log is
+ * truncated by a checkpoint meanwhile.
+ *
+ * @see LogFile#logRebuild(int)
+ */
+public class BTreeRebuilder {
+
+	public static final int MAX_ROUNDS = 16;
+	private static final int SWAP_ATTEMPTS = 10;
+	// how long the swap waits for the COMMIT records of transactions that
+	// released their locks
+	private static final long COMMIT_WAIT_MS = 10000;
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final String REBUILD_SUFFIX = ".rebuild";
+
+	private final BTreeFile file;
+	private double fillFactor = BTreeBulkLoader.DEFAULT_FILL_FACTOR;
+
+	// the position in the log up to which the new file is up to date
+	private long offset;
+	// the leaf pages logged by transactions that have not committed or
+	// aborted yet, by transaction and page
+	private final Map<Long, Map<PageId, LeafImages>> pending = new HashMap<>();
+
+	/**
+	 * The images of a leaf page logged by one transaction: the page before
+	 * the transaction wrote it, the image whose tuples the new file holds,
+	 * and the last image logged.
+	 */
+	private static class LeafImages {
+		final BTreeLeafPage before;
+		BTreeLeafPage applied;
+		BTreeLeafPage latest;
+
+		LeafImages(BTreeLeafPage before, BTreeLeafPage applied) {
+			this.before = before;
+			this.applied = applied;
+		}
+	}
+
+	/**
+	 * Creates a rebuilder for file, which must be in the Catalog.
+	 */
+	public BTreeRebuilder(BTreeFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Sets the fraction of each page of the new file that is filled.
+	 * @see BTreeBulkLoader#fillFactor
+	 */
+	public BTreeRebuilder fillFactor(double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0");
+		}
+		this.fillFactor = fillFactor;
+		return this;
+	}
+
+	/**
+	 * Rebuilds the file.  The table keeps its id and name in the Catalog, but
+	 * is stored by the returned BTreeFile from then on, and the BTreeFile
+	 * object this rebuilder was created with must not be used anymore.
+	 *
+	 * @return the new BTreeFile of the table
+	 * @throws DbException if the log was truncated during the rebuild, or a
+	 *         transaction that wrote the table released its locks but did
+	 *         not log its COMMIT record in time
+	 * @throws TransactionAbortedException if the table could not be locked
+	 *         for the swap
+	 */
+	public BTreeFile rebuild() throws DbException, IOException, TransactionAbortedException {
+		File path = file.getFile().getAbsoluteFile();
+		File copyPath = new File(path.getPath() + REBUILD_SUFFIX);
+		BTreeFile copy = null;
+		try {
+			copy = load(path, copyPath);
+			if (copy == null) {
+				return file;
+			}
+			progress(0);
+			for (int round = 1; round <= MAX_ROUNDS; round++) {
+				int n = catchUp(copy);
+				progress(round);
+				if (n == 0) {
+					break;
+				}
+			}
+			return swap(path, copy);
+		} finally {
+			// after a successful swap the copy is already gone
+			if (copy != null && copyPath.exists()) {
+				drop(copy);
+				copyPath.delete();
+				PageChecksums.discard(copyPath);
+			}
+		}
+	}
+
+	/**
+	 * Bulk loads the committed tuples of the file into copyPath.
+	 * @return the new file, or null if the file is empty
+	 */
+	private BTreeFile load(File path, File copyPath)
+			throws DbException, IOException, TransactionAbortedException {
+		File snapPath = new File(path.getPath() + SNAPSHOT_SUFFIX);
+		Map<Long, Long> live;
+		synchronized (Database.getBufferPool()) {
+			// no transaction can commit while the BufferPool is held
+			if (path.length() == 0) {
+				return null;
+			}
+			offset = Database.getLogFile().getCurrentOffset();
+			live = Database.getLogFile().getLiveTransactions();
+			Files.copy(path.toPath(), snapPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			File crc = new PageChecksums(path).getFile();
+			if (crc.exists()) {
+				Files.copy(crc.toPath(), new PageChecksums(snapPath).getFile().toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		// the pages the live transactions stole are in the snapshot
+		if (!live.isEmpty()) {
+			List<LogFile.Update> stolen = new ArrayList<>();
+			readLog(Collections.min(live.values()), offset, stolen, new HashSet<>(), new HashSet<>());
+			for (LogFile.Update u : stolen) {
+				if (live.containsKey(u.tid)) {
+					track(u, true);
+				}
+			}
+		}
+
+		BTreeFile snap = new BTreeFile(snapPath, file.keyField(), file.getTupleDesc());
+		Database.getCatalog().addTable(snap, UUID.randomUUID().toString());
+		TransactionId tid = new TransactionId();
+		try {
+			return new BTreeBulkLoader(snap.iterator(tid), file.getTupleDesc(), file.keyField())
+					.sorted(true)
+					.fillFactor(fillFactor)
+					.build(copyPath, UUID.randomUUID().toString());
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+			drop(snap);
+			snapPath.delete();
+			PageChecksums.discard(snapPath);
+		}
+	}
+
+	/**
+	 * Called with round 0 once the snapshot is loaded into the new file, and
+	 * with the number of each round of catching up after it.  Does nothing;
+	 * subclasses may override it to follow the progress of a rebuild.
+	 */
+	protected void progress(int round) {
+	}
+
+	// reads the records of the table between two offsets of the log
+	private long readLog(long start, long end, List<LogFile.Update> updates, Set<Long> committed,
+			Set<Long> aborted) throws DbException {
+		try {
+			return Database.getLogFile().readUpdates(start, end, file.getId(), updates, committed, aborted);
+		} catch (IOException e) {
+			throw new DbException("the log was truncated during the rebuild: " + e.getMessage());
+		}
+	}
+
+	// keeps the images of a logged leaf page until its transaction completes;
+	// the images logged before the snapshot are already in the new file
+	private void track(LogFile.Update u, boolean inSnapshot) {
+		if (!(u.after instanceof BTreeLeafPage)) {
+			return;
+		}
+		Map<PageId, LeafImages> pages = pending.computeIfAbsent(u.tid, tid -> new HashMap<>());
+		LeafImages images = pages.get(u.after.getId());
+		if (images == null) {
+			images = new LeafImages((BTreeLeafPage) u.before,
+					(BTreeLeafPage) (inSnapshot ? u.after : u.before));
+			pages.put(u.after.getId(), images);
+		} else if (inSnapshot) {
+			images.applied = (BTreeLeafPage) u.after;
+		}
+		images.latest = (BTreeLeafPage) u.after;
+	}
+
+	/**
+	 * Applies the changes committed to the file since the last round to copy,
+	 * and undoes those of the aborted transactions that are in the snapshot.
+	 * @return the number of tuples inserted or deleted
+	 */
+	private int catchUp(BTreeFile copy) throws DbException, IOException, TransactionAbortedException {
+		List<LogFile.Update> updates = new ArrayList<>();
+		Set<Long> committed = new HashSet<>();
+		Set<Long> aborted = new HashSet<>();
+		offset = readLog(offset, Database.getLogFile().getCurrentOffset(), updates, committed, aborted);
+		for (LogFile.Update u : updates) {
+			track(u, false);
+		}
+
+		// the tuples each leaf gained minus those it lost; a tuple moved to
+		// another leaf by a split or a merge cancels out
+		Map<List<Field>, Integer> changes = new HashMap<>();
+		for (Long tid : committed) {
+			complete(changes, tid, true);
+		}
+		for (Long tid : aborted) {
+			complete(changes, tid, false);
+		}
+		changes.values().removeIf(n -> n == 0);
+
+		TransactionId tid = new TransactionId();
+		int n = 0;
+		try {
+			for (Map.Entry<List<Field>, Integer> e : changes.entrySet()) {
+				for (int i = 0; i < e.getValue(); i++) {
+					write(copy, copy.insertTuple(tid, tuple(e.getKey())));
+				}
+				for (int i = 0; i > e.getValue(); i--) {
+					delete(tid, copy, e.getKey());
+				}
+				n += Math.abs(e.getValue());
+			}
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+		}
+		return n;
+	}
+
+	// counts the tuples a completed transaction changed in the new file: from
+	// the images applied so far to its last images if it committed, or back
+	// to the pages it started from if it aborted
+	private void complete(Map<List<Field>, Integer> changes, long tid, boolean commit) {
+		Map<PageId, LeafImages> pages = pending.remove(tid);
+		if (pages == null) {
+			return;
+		}
+		for (LeafImages images : pages.values()) {
+			count(changes, commit ? images.latest : images.before, 1);
+			count(changes, images.applied, -1);
+		}
+	}
+
+	private static void count(Map<List<Field>, Integer> changes, BTreeLeafPage page, int sign) {
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			changes.merge(fields(it.next()), sign, Integer::sum);
+		}
+	}
+
+	private static List<Field> fields(Tuple t) {
+		List<Field> fields = new ArrayList<>();
+		t.fields().forEachRemaining(fields::add);
+		return fields;
+	}
+
+	private Tuple tuple(List<Field> fields) {
+		Tuple t = new Tuple(file.getTupleDesc());
+		for (int i = 0; i < fields.size(); i++) {
+			t.setField(i, fields.get(i));
+		}
+		return t;
+	}
+
+	private void delete(TransactionId tid, BTreeFile copy, List<Field> fields)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = copy.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, fields.get(file.keyField())));
+		it.open();
+		Tuple match = null;
+		while (match == null && it.hasNext()) {
+			Tuple t = it.next();
+			if (fields(t).equals(fields)) {
+				match = t;
+			}
+		}
+		it.close();
+		if (match == null) {
+			throw new DbException("the rebuilt file lost the tuple " + fields);
+		}
+		write(copy, copy.deleteTuple(tid, match));
+	}
+
+	// the pages of the copy are never marked dirty, so they are neither
+	// logged nor flushed by the BufferPool
+	private static void write(BTreeFile copy, List<Page> pages) throws IOException {
+		for (Page p : pages) {
+			copy.writePage(p);
+		}
+	}
+
+	/**
+	 * Locks the table, applies the last changes, logs a REBUILD record and
+	 * moves the copy over the file.
+	 */
+	private BTreeFile swap(File path, BTreeFile copy)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		BTreeFile rebuilt;
+		try {
+			for (int attempt = 1; ; attempt++) {
+				try {
+					bp.lockTable(tid, file.getId());
+					break;
+				} catch (TransactionAbortedException e) {
+					if (attempt == SWAP_ATTEMPTS) {
+						throw e;
+					}
+					// let the writers that hold page locks finish
+					catchUp(copy);
+				}
+			}
+			awaitCommits(copy);
+
+			synchronized (bp) {
+				drop(copy);
+				bp.discardPages(file.getId());
+				Database.getLogFile().logRebuild(file.getId());
+				File crc = new PageChecksums(path).getFile();
+				crc.delete();
+				Files.move(copy.getFile().toPath(), path.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				File copyCrc = new PageChecksums(copy.getFile()).getFile();
+				if (copyCrc.exists()) {
+					Files.move(copyCrc.toPath(), crc.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				rebuilt = new BTreeFile(path, file.keyField(), file.getTupleDesc());
+				Database.getCatalog().replaceFile(rebuilt);
+			}
+		} finally {
+			bp.transactionComplete(tid);
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * Applies the last changes once the table is locked.  A transaction
+	 * releases its locks before it logs its COMMIT record, so the pages of a
+	 * transaction that is still live are waited for; the live transactions
+	 * are taken before each round, so that one whose COMMIT record is logged
+	 * meanwhile is read by the round.
+	 */
+	private void awaitCommits(BTreeFile copy) throws DbException, IOException, TransactionAbortedException {
+		long deadline = System.currentTimeMillis() + COMMIT_WAIT_MS;
+		while (true) {
+			Set<Long> live = Database.getLogFile().getLiveTransactions().keySet();
+			catchUp(copy);
+			Set<Long> waiting = new HashSet<>(pending.keySet());
+			waiting.retainAll(live);
+			if (waiting.isEmpty()) {
+				return;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new DbException("transactions " + waiting + " released their locks without committing");
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				throw new DbException("interrupted while waiting for transactions " + waiting + " to commit");
+			}
+		}
+	}
+
+	// removes a temporary file from the Catalog and its pages from the BufferPool
+	private static void drop(BTreeFile f) {
+		Database.getBufferPool().discardPages(f.getId());
+		Database.getCatalog().removeTable(f.getId());
+	}
+}
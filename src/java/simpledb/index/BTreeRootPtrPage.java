@@ -17,6 +17,15 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	/**
+	 * Set in the root category byte of files whose internal pages hold string
+	 * keys as separators of {@link BTreeInternalPage#SEPARATOR_LEN} characters.
+	 * Files written before separators were truncated lack it, and their
+	 * internal pages cannot be read with the current layout.
+	 */
+	public final static int SEPARATOR_FORMAT = 0x40;
+	private final static int CATEGORY_MASK = 0x0f;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -25,6 +34,7 @@ public class BTreeRootPtrPage implements Page {
     private int root;
 	private int rootCategory;
 	private int header;
+	private boolean separatorFormat;
 
 	private byte[] oldData;
 
@@ -35,7 +45,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page.  The category byte also carries the
+	 * {@link #SEPARATOR_FORMAT} flag.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,12 +54,12 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = dis.readByte();
+		int category = dis.readByte();
+		rootCategory = category & CATEGORY_MASK;
+		separatorFormat = (category & SEPARATOR_FORMAT) != 0;
 
 		// read in the header pointer
 		header = dis.readInt();
-		
-		setBeforeImage();
 	}
 
 	public void setBeforeImage() {
@@ -92,9 +103,10 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
-		// write out the category of the root page (leaf or internal)
+		// write out the category of the root page (leaf or internal); the
+		// internal pages of the tree are in the current layout once written
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | SEPARATOR_FORMAT));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -144,7 +156,12 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			byte[] oldDataRef = oldData;
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
+			return new BTreeRootPtrPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -185,6 +202,14 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * @return true if the internal pages of this tree store string keys as
+	 *         truncated separators, or if this page was written since
+	 */
+	public boolean hasSeparatorFormat() {
+		return separatorFormat;
+	}
+
 	/**
 	 * Get the id of the first header page, or null if none exists
 	 * @return the id of the first header page
@@ -15,7 +15,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending or descending key order
  */
 public class BTreeScan implements OpIterator {
 
@@ -25,6 +25,7 @@ public class BTreeScan implements OpIterator {
 	private final TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private final boolean descending;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -49,11 +50,33 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan that returns the tuples in ascending or
+	 * descending key order.  A descending scan starts at the upper bound of
+	 * the predicate, if it has one, and walks left.
+	 * 
+	 * @param descending
+	 *            true to return the tuples in descending key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * @return true if this scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -87,7 +110,10 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).descendingIterator(tid, ipred);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
@@ -0,0 +1,318 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket
+ * of a HashFile, in no particular order, and implements the Page interface
+ * that is used by BufferPool.  The primary page of a bucket points to a
+ * chain of overflow pages, which have the same format.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	// the next page of an overflow page that is not linked into a bucket
+	final static int FREE = -1;
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+
+	private int next; // overflow page, 0, or FREE
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is an integer for the page number of
+	 * the next overflow page of the bucket, or 0, or -1 for an overflow page
+	 * that is not part of any bucket yet, followed by a set of header
+	 * bytes indicating the slots of the page that are in use, and some number
+	 * of tuple slots.  Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - 4*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this
+	 * database table, which can be determined via {@link Catalog#getTupleDesc}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		next = dis.readInt();
+		header = new byte[getHeaderSize()];
+		dis.readFully(header);
+
+		tuples = new Tuple[numSlots];
+		for (int i = 0; i < numSlots; i++) {
+			tuples[i] = readNextTuple(dis, i);
+		}
+		dis.close();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: next overflow page pointer
+		int extraBits = INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		return (getMaxTuples() + 7) / 8;
+	}
+
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * overflow page that is not part of any bucket yet.
+	 *
+	 * @see #isFree()
+	 */
+	public static byte[] createFreePageData() {
+		byte[] data = createEmptyPageData();
+		ByteBuffer.wrap(data).putInt(FREE);
+		return data;
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException {
+		if (!isSlotUsed(slotId)) {
+			dis.skipBytes(td.getSize());
+			return null;
+		}
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error in slot " + slotId, e);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		writePageData(buf);
+		return buf.array();
+	}
+
+	public void writePageData(ByteBuffer buf) {
+		buf.putInt(next);
+		buf.put(header);
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				PageBuffers.putZeroes(buf, td.getSize());
+				continue;
+			}
+			for (int j = 0; j < td.numFields(); j++) {
+				tuples[i].getField(j).serialize(buf);
+			}
+		}
+		PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (INDEX_SIZE + header.length + td.getSize() * numSlots));
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return true if this is an overflow page that is not part of any
+	 *   bucket, until {@link #setNextId} is called on it
+	 */
+	public boolean isFree() {
+		return next == FREE;
+	}
+
+	/**
+	 * Get the id of the next overflow page of the bucket
+	 * @return the id of the next page, or null if this is the last page
+	 */
+	public HashPageId getNextId() {
+		if (next == 0 || next == FREE) {
+			return null;
+		}
+		return new HashPageId(pid.getTableId(), next);
+	}
+
+	/**
+	 * Set the id of the next overflow page of the bucket
+	 * @param id - the id of the next page, or null
+	 * @throws DbException if the id is not valid
+	 */
+	public void setNextId(HashPageId id) throws DbException {
+		if (id == null) {
+			next = 0;
+		} else {
+			if (id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setNextId");
+			}
+			if (id.isMeta()) {
+				throw new DbException("the next page of a bucket cannot be the meta page");
+			}
+			next = id.getPageNumber();
+		}
+	}
+
+	/**
+	 * Adds the specified tuple to the first empty slot of the page; the
+	 * tuple is updated to reflect that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in insertTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called insertTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple is updated to
+	 * reflect that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if (!pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= 1 << (i % 8);
+		else
+			header[i / 8] &= (0xFF ^ (1 << (i % 8)));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on
+	 * this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> used = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				used.add(tuples[i]);
+			}
+		}
+		return Collections.unmodifiableList(used).iterator();
+	}
+}
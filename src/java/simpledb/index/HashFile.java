@@ -0,0 +1,639 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores a linear hash table
+ * of tuples, keyed on one field.  It stores a meta page and a set of bucket
+ * pages, each bucket a primary page followed by a chain of overflow pages.
+ * HashFile works closely with HashMetaPage and HashBucketPage.  The format
+ * of these pages is described in their constructors.
+ * <p>
+ * A lookup of a key reads the meta page, which stays in the BufferPool, and
+ * the pages of one bucket, so an equality predicate costs about one page
+ * read however many tuples the file holds.  When an insert has to add an
+ * overflow page to a bucket, the next bucket in order is split off an older
+ * one, so the number of buckets grows with the file.  Deletes never merge
+ * buckets.  Pages read from disk are checked against their PageChecksums.
+ * <p>
+ * Inserts and lookups hold a read lock on the meta page only while they find
+ * their bucket, and then hold locks on the pages of the bucket until they
+ * complete.  A split runs in a transaction of its own, which commits at
+ * once; if it cannot lock the meta page and the pages of the bucket it
+ * splits without waiting, because a scan of the whole file holds the meta
+ * page or another transaction holds a page of the bucket, the split is left
+ * to a later insert.  Pages appended for a transaction that aborts are not
+ * part of the table anymore, and are reused by later inserts.
+ *
+ * @see HashMetaPage#HashMetaPage
+ * @see HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final PageChecksums checksums;
+
+	// splits owed by inserts that added an overflow page, made by later inserts
+	private final AtomicInteger pendingSplits = new AtomicInteger();
+	// overflow pages that were free or linked by a transaction that may
+	// abort, found by a scan of the file when the first one is needed
+	private Set<Integer> freePages = null;
+	// the first page of each split point that was allocated, which a later
+	// split reuses if the split that allocated it aborted
+	private final Map<Integer, Integer> splitPages = new HashMap<>();
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            file.
+	 * @param key - the field which the hash table is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.checksums = new PageChecksums(f);
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash of the
+	 * absolute file name of the file underlying it.
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash table is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the checksums that detect torn pages of this file.
+	 */
+	public PageChecksums getPageChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the meta page.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * @return the hash value of a key, with its bits mixed so that the low
+	 *   bits, which pick the bucket, depend on all of them
+	 */
+	public static int hash(Field key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		int pageSize = BufferPool.getPageSize();
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			if ((long) (id.getPageNumber() + 1) * pageSize > rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			byte[] pageBuf = new byte[pageSize];
+			rf.seek((long) id.getPageNumber() * pageSize);
+			rf.readFully(pageBuf);
+			if (!checksums.verify(id.getPageNumber(), pageBuf, 0, pageSize)) {
+				throw new IllegalArgumentException(String.format("table %d page %d fails its checksum, it may be torn",
+						tableid, id.getPageNumber()));
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			if (id.isMeta()) {
+				return new HashMetaPage(id, pageBuf);
+			}
+			return new HashBucketPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		int pgNo = page.getId().getPageNumber();
+		ByteBuffer data = PageBuffers.get();
+		page.writePageData(data);
+		checksums.update(pgNo, data.array(), 0, data.position());
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) pgNo * BufferPool.getPageSize());
+			rf.write(data.array(), 0, data.position());
+		}
+	}
+
+	/**
+	 * Appends pages to the file, creating the meta page and the primary page
+	 * of bucket 0 first if the file is empty.  The appended pages are not
+	 * logged, so they stay in the file if the transaction that appends them
+	 * aborts.
+	 *
+	 * @param n - the number of pages to append
+	 * @param pageData - the contents of each appended page
+	 * @return the page number of the first appended page
+	 */
+	private synchronized int appendPages(int n, byte[] pageData) throws IOException {
+		boolean create = f.length() == 0;
+		int first = create ? 2 : numPages();
+		try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+			if (create) {
+				byte[] metaData = HashMetaPage.createEmptyPageData();
+				byte[] bucketData = HashBucketPage.createEmptyPageData();
+				checksums.append(0, metaData, 0, metaData.length);
+				checksums.append(1, bucketData, 0, bucketData.length);
+				bw.write(metaData);
+				bw.write(bucketData);
+			}
+			for (int i = 0; i < n; i++) {
+				checksums.append(first + i, pageData, 0, pageData.length);
+				bw.write(pageData);
+			}
+			return first;
+		}
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Get a read lock on the meta page, creating the file if it is empty.
+	 */
+	HashMetaPage getMetaPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if (f.length() == 0) {
+			appendPages(0, null);
+		}
+		return (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Lock the primary page of the bucket of a hash value.  The meta page is
+	 * locked while the bucket is found, and unlocked again unless tid held it
+	 * before, so that splits are not held up until tid completes; the lock on
+	 * the primary page keeps the bucket from being split instead, since a
+	 * split locks every page of the bucket.  An insert locks the primary page
+	 * for writing at once, as two inserts that read it first would both wait
+	 * for the other to upgrade its lock; the page is only added to dirtypages
+	 * once it is changed.
+	 *
+	 * @param perm - the permissions on the primary page
+	 */
+	HashBucketPage getBucket(TransactionId tid, Map<PageId, Page> dirtypages, int hash, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId metaId = HashMetaPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, metaId);
+		HashMetaPage meta = getMetaPage(tid, dirtypages);
+		HashPageId pid = meta.getBucketId(meta.bucketFor(hash));
+		HashBucketPage page = (HashBucketPage) (dirtypages.containsKey(pid) ? dirtypages.get(pid)
+				: Database.getBufferPool().getPage(tid, pid, perm));
+		if (!held) {
+			Database.getBufferPool().unsafeReleasePage(tid, metaId);
+		}
+		return page;
+	}
+
+	/**
+	 * Locks a page for writing like getPage, but only if the lock can be
+	 * granted right away.
+	 *
+	 * @return the page, or null if another transaction holds a lock on it
+	 */
+	private Page tryGetPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid) throws DbException {
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, Permissions.READ_WRITE);
+		if (p != null) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key.  If every page of the bucket
+	 * is full, an overflow page is added to it, and the next bucket is split
+	 * off by a later insert, before it locks its own bucket.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #splitIfOwed()
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in insertTuple");
+		}
+		splitIfOwed();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashBucketPage page = getBucket(tid, dirtypages, hash(t.getField(keyField)), Permissions.READ_WRITE);
+
+		// find the first page of the bucket with an empty slot
+		while (page.getNumEmptySlots() == 0 && page.getNextId() != null) {
+			page = (HashBucketPage) getPage(tid, dirtypages, page.getNextId(), Permissions.READ_ONLY);
+		}
+		page = (HashBucketPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+		if (page.getNumEmptySlots() == 0) {
+			page = addOverflowPage(tid, dirtypages, page);
+			pendingSplits.incrementAndGet();
+		}
+		page.insertTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Makes the splits owed by inserts that added an overflow page, each in a
+	 * transaction of its own, until one cannot lock the pages it needs.  That
+	 * split stays owed, and is made by a later insert.
+	 */
+	private void splitIfOwed() throws DbException, IOException {
+		while (pendingSplits.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+			if (!splitBucket()) {
+				pendingSplits.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Appends a new overflow page to the end of a bucket.
+	 *
+	 * @param last - the last page of the bucket, locked READ_WRITE
+	 * @return the new page, locked READ_WRITE
+	 */
+	private HashBucketPage addOverflowPage(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage last)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage page = freePage(tid, dirtypages);
+		page.setNextId(null);
+		last.setNextId(page.getId());
+		return page;
+	}
+
+	/**
+	 * Returns a free overflow page locked READ_WRITE for tid, appending one
+	 * if there is none.  Overflow pages are appended marked free, and linking
+	 * one into a bucket clears the mark, so the mark is back if the
+	 * transaction that linked it aborts.  A page nobody holds a lock on is
+	 * as its last transaction left it.
+	 *
+	 * @see HashBucketPage#isFree()
+	 */
+	private synchronized HashBucketPage freePage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if (freePages == null) {
+			freePages = readFreePages();
+		}
+		Iterator<Integer> it = freePages.iterator();
+		while (it.hasNext()) {
+			HashPageId id = new HashPageId(tableid, it.next());
+			if (Database.getBufferPool().holdsLock(tid, id)) {
+				continue; // linked by tid
+			}
+			HashBucketPage page = (HashBucketPage) tryGetPage(tid, dirtypages, id);
+			if (page == null) {
+				continue; // linked by a transaction that has not completed, or read by a scan
+			}
+			if (page.isFree()) {
+				return page;
+			}
+			// linked by a transaction that committed
+			it.remove();
+			dirtypages.remove(id);
+			Database.getBufferPool().unsafeReleasePage(tid, id);
+		}
+		HashPageId id = new HashPageId(tableid, appendPages(1, HashBucketPage.createFreePageData()));
+		freePages.add(id.getPageNumber());
+		return (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * @return the page numbers of the overflow pages marked free on disk
+	 */
+	private Set<Integer> readFreePages() throws IOException {
+		Set<Integer> pages = new TreeSet<>();
+		int pageSize = BufferPool.getPageSize();
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			for (int pgNo = 1; pgNo < numPages(); pgNo++) {
+				rf.seek((long) pgNo * pageSize);
+				if (rf.readInt() == HashBucketPage.FREE) {
+					pages.add(pgNo);
+				}
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Adds the next bucket to the table in a transaction of its own, and
+	 * moves into it the tuples of the bucket it is split off from whose keys
+	 * now hash to it.  Bucket b is split off bucket b - 2^(i-1), where
+	 * 2^(i-1) is the highest power of two not greater than b.
+	 * <p>
+	 * The split first locks the meta page and every page of the bucket it
+	 * splits for writing, without waiting, and gives up if another
+	 * transaction holds any of them: the abort of a transaction restores the
+	 * pages it changed as they were before, and would undo the split.
+	 *
+	 * @return false if the split could not lock the pages it needs
+	 */
+	private boolean splitBucket() throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		Transaction split = new Transaction();
+		TransactionId tid = split.getId();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashMetaPage meta = (HashMetaPage) tryGetPage(tid, dirtypages, HashMetaPage.getId(tableid));
+		if (meta == null) {
+			bp.transactionComplete(tid, false);
+			return false;
+		}
+		int bucket = meta.getMaxBucket() + 1;
+		if (bucket < 0) {
+			bp.transactionComplete(tid, false);
+			return true; // every int hash value has a bucket of its own
+		}
+		List<HashBucketPage> from = new ArrayList<>();
+		HashPageId fromId = meta.getBucketId(bucket - Integer.highestOneBit(bucket));
+		while (fromId != null) {
+			HashBucketPage page = (HashBucketPage) tryGetPage(tid, dirtypages, fromId);
+			if (page == null) {
+				bp.transactionComplete(tid, false);
+				return false;
+			}
+			from.add(page);
+			fromId = page.getNextId();
+		}
+
+		split.start();
+		boolean done = false;
+		try {
+			// the first bucket of a split point allocates the primary pages of all
+			// its buckets, unless a split that aborted allocated them already
+			int firstPage = -1;
+			if (Integer.bitCount(bucket) == 1) {
+				synchronized (this) {
+					Integer allocated = splitPages.get(HashMetaPage.splitPoint(bucket));
+					firstPage = allocated != null ? allocated : appendPages(bucket, HashBucketPage.createEmptyPageData());
+					splitPages.put(HashMetaPage.splitPoint(bucket), firstPage);
+				}
+			}
+			meta.addBucket(firstPage);
+
+			HashBucketPage to = (HashBucketPage) getPage(tid, dirtypages, meta.getBucketId(bucket), Permissions.READ_WRITE);
+			for (HashBucketPage page : from) {
+				Iterator<Tuple> it = page.iterator();
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (meta.bucketFor(hash(t.getField(keyField))) != bucket) {
+						continue;
+					}
+					page.deleteTuple(t);
+					while (to.getNumEmptySlots() == 0) {
+						to = to.getNextId() != null
+								? (HashBucketPage) getPage(tid, dirtypages, to.getNextId(), Permissions.READ_WRITE)
+								: addOverflowPage(tid, dirtypages, to);
+					}
+					to.insertTuple(t);
+				}
+			}
+			done = true;
+		} catch (TransactionAbortedException e) {
+			// a page of the new bucket is locked by a scan
+		} finally {
+			// pages changed by a split that failed are restored by the abort
+			for (Page page : dirtypages.values()) {
+				page.markDirty(true, tid);
+			}
+			if (done) {
+				split.commit();
+			} else {
+				split.abort();
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Delete a tuple from this HashFile.  Pages and buckets left empty stay
+	 * in the file, and are refilled by later inserts.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tuple is not in this table");
+		}
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashPageId pid = new HashPageId(tableid, rid.getPageId().getPageNumber());
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in page order. This
+	 * method will acquire a read lock on the affected pages of the file, and
+	 * may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+	/**
+	 * Get the tuples matching an IndexPredicate.  An EQUALS predicate only
+	 * reads the pages of the bucket of its value; since the tuples are not
+	 * kept in key order, any other predicate reads the whole file.  This
+	 * method will acquire a read lock on the affected pages of the file, and
+	 * may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, which may not
+	 *              have a prefix since the key is a single field
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getPrefix().length > 0) {
+			throw new IllegalArgumentException("a HashFile key has a single field");
+		}
+		return new HashFileIterator(this, tid, ipred);
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a
+ * HashFile matching an IndexPredicate, or for all of them
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	private final boolean lookup;
+	private Iterator<Tuple> it = null;
+	private HashPageId next = null;
+	private int lastPage;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.lookup = ipred != null && ipred.getOp() == Op.EQUALS;
+	}
+
+	/**
+	 * Open this iterator on the primary page of the bucket of an EQUALS
+	 * predicate, or on the first bucket page of the file.  A scan of the
+	 * whole file keeps its lock on the meta page, so that no bucket is split
+	 * into pages it has passed.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		try {
+			if (lookup) {
+				HashBucketPage page = f.getBucket(tid, new HashMap<>(), HashFile.hash(ipred.getField()),
+						Permissions.READ_ONLY);
+				it = page.iterator();
+				next = page.getNextId();
+			} else {
+				f.getMetaPage(tid, new HashMap<>());
+				it = Collections.emptyIterator();
+				next = new HashPageId(f.getId(), 1);
+				lastPage = f.numPages() - 1;
+			}
+		} catch (IOException e) {
+			throw new DbException("cannot create " + f.getFile() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the next matching tuple from the current page, or from the next
+	 * page of the bucket, or of the file.
+	 *
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || ipred.matches(t.getField(f.keyField()))) {
+					return t;
+				}
+			}
+			if (next == null) {
+				return null;
+			}
+			HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+			it = page.iterator();
+			if (lookup) {
+				next = page.getNextId();
+			} else {
+				next = next.getPageNumber() < lastPage ? new HashPageId(f.getId(), next.getPageNumber() + 1) : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		next = null;
+	}
+}
@@ -0,0 +1,196 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.storage.PageBuffers;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * HashMetaPage is page 0 of a HashFile.  It stores the number of buckets of
+ * the linear hash table, and where the primary page of each bucket is, and
+ * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Buckets are created one at a time, each by splitting an older bucket, and
+ * a key with hash value h is in bucket h mod 2^i, where 2^i is the smallest
+ * power of two greater than the highest bucket number, or in bucket
+ * h mod 2^(i-1) if the former does not exist yet.  Buckets 2^(i-1) up to
+ * 2^i - 1 form split point i, whose primary pages are allocated together
+ * when its first bucket is created, so the primary page of a bucket is
+ * found from the number of overflow pages allocated before its split point.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashMetaPage implements Page {
+	/** the number of split points, enough for any int bucket number */
+	public final static int SPLIT_POINTS = 32;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+
+	private int maxBucket;
+	private final int[] spares = new int[SPLIT_POINTS];
+
+	private byte[] oldData;
+
+	/**
+	 * Constructor.
+	 * Construct the HashMetaPage from a set of bytes of data read from disk.
+	 * The format of a HashMetaPage is an integer for the highest bucket
+	 * number, followed by SPLIT_POINTS integers for the number of overflow
+	 * pages allocated before each split point, padded to the page size
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		maxBucket = dis.readInt();
+		for (int i = 0; i < SPLIT_POINTS; i++) {
+			spares[i] = dis.readInt();
+		}
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * There is only one instance of a HashMetaPage per table. This static
+	 * method is separate from getId() in order to maintain the Page interface
+	 * @param tableid - the tableid of this table
+	 * @return the meta page id for the given table
+	 */
+	public static HashPageId getId(int tableid) {
+		return new HashPageId(tableid, 0);
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this meta page.
+	 * Used to serialize this meta page to disk.
+	 * The invariant here is that it should be possible to pass the byte array
+	 * generated by getPageData to the HashMetaPage constructor and have it
+	 * produce an identical HashMetaPage object.
+	 *
+	 * @return A byte array corresponding to the bytes of this meta page.
+	 */
+	public byte[] getPageData() {
+		ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+		writePageData(buf);
+		return buf.array();
+	}
+
+	public void writePageData(ByteBuffer buf) {
+		buf.putInt(maxBucket);
+		for (int s : spares) {
+			buf.putInt(s);
+		}
+		PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (SPLIT_POINTS + 1) * 4);
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashMetaPage, of a table with the single bucket 0 on page 1.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashMetaPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = oldData;
+			if (oldDataRef == null) {
+				// not fetched for writing since it was read
+				oldDataRef = getPageData();
+			}
+			return new HashMetaPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the highest bucket number of the table
+	 */
+	public int getMaxBucket() {
+		return maxBucket;
+	}
+
+	/**
+	 * @return the split point of a bucket: 0 for bucket 0, and i for the
+	 *   buckets from 2^(i-1) up to 2^i - 1
+	 */
+	public static int splitPoint(int bucket) {
+		return 32 - Integer.numberOfLeadingZeros(bucket);
+	}
+
+	/**
+	 * @return the bucket that holds the keys with the given hash value
+	 */
+	public int bucketFor(int hash) {
+		int highMask = maxBucket == 0 ? 0 : (Integer.highestOneBit(maxBucket) << 1) - 1;
+		int bucket = hash & highMask;
+		if (bucket > maxBucket) {
+			bucket = hash & (highMask >>> 1);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return the id of the primary page of a bucket
+	 */
+	public HashPageId getBucketId(int bucket) {
+		return new HashPageId(pid.getTableId(), 1 + bucket + spares[splitPoint(bucket)]);
+	}
+
+	/**
+	 * Add the next bucket to the table.  The primary page of a bucket that
+	 * starts a split point must be given, as the first of the pages of the
+	 * split point, which follow every overflow page allocated so far.
+	 *
+	 * @param firstPage - the first page of the split point of the new bucket,
+	 *   or -1 if the new bucket does not start one
+	 * @return the number of the new bucket
+	 */
+	public int addBucket(int firstPage) {
+		int bucket = maxBucket + 1;
+		if (Integer.bitCount(bucket) == 1) {
+			if (firstPage < 0) {
+				throw new IllegalArgumentException("bucket " + bucket + " starts a split point");
+			}
+			spares[splitPoint(bucket)] = firstPage - 1 - bucket;
+		}
+		maxBucket = bucket;
+		return bucket;
+	}
+
+}
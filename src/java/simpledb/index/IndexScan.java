@@ -0,0 +1,217 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexScan is an operator which reads the tuples of a HeapFile whose
+ * indexed field matches a predicate, through a {@link SecondaryIndex}.
+ * <p>
+ * The RecordIds of up to {@link #BATCH_SIZE} matching entries are read from
+ * the index at a time and sorted by page and slot, so each heap page of a
+ * batch is fetched from the BufferPool once and its tuples are read in slot
+ * order.  The tuples are therefore not returned in key order.
+ * <p>
+ * A scan can be limited to some fields of the table.  If the index covers
+ * them, as key or INCLUDE fields, the tuples are made from the entries in
+ * key order, and the heap is not read at all.
+ */
+public class IndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** the number of RecordIds sorted together */
+	public static final int BATCH_SIZE = 1024;
+
+	private static final Comparator<RecordId> PAGE_ORDER =
+			Comparator.<RecordId>comparingInt(rid -> rid.getPageId().getPageNumber())
+					.thenComparingInt(RecordId::getTupleNumber);
+
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final int[] fields;
+	private final int[] entryFields;
+	private final TupleDesc myTd;
+	private transient DbFileIterator entries;
+	private transient Iterator<Tuple> batch;
+	private boolean isOpen = false;
+
+	/**
+	 * Creates an index scan over the table of the given index as a part of
+	 * the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to look the tuples up in
+	 * @param tableAlias
+	 *            the alias of the table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan returns all
+	 *            tuples of the table
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, ipred, null);
+	}
+
+	/**
+	 * Creates an index scan that only returns the given fields of the table.
+	 *
+	 * @param fields
+	 *            the fields of the table to return, in order, or null for
+	 *            all of them
+	 * @see #IndexScan(TransactionId, SecondaryIndex, String, IndexPredicate)
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+			int[] fields) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		if (fields == null) {
+			fields = new int[td.numFields()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = i;
+			}
+		}
+		this.fields = fields.clone();
+		String[] names = new String[fields.length];
+		Type[] types = new Type[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			names[i] = tableAlias + "." + td.getFieldName(fields[i]);
+			types[i] = td.getFieldType(fields[i]);
+		}
+		this.myTd = new TupleDesc(types, names);
+		if (index.covers(fields)) {
+			entryFields = new int[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				entryFields[i] = index.entryField(fields[i]);
+			}
+		} else {
+			entryFields = null;
+		}
+	}
+
+	public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return true if the tuples are made from the index entries alone
+	 */
+	public boolean isCovering() {
+		return entryFields != null;
+	}
+
+	/**
+	 * @return the actual name of the table in the catalog of the database
+	 * */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 * */
+	public String getAlias() {
+		return alias;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+		entries = index.entryIterator(tid, ipred);
+		entries.open();
+		batch = Collections.emptyIterator();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the scanned fields of the indexed table, with
+	 * field names prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		while (!batch.hasNext() && entries.hasNext()) {
+			if (entryFields != null) {
+				Tuple e = entries.next();
+				batch = Collections.singletonList(project(e, entryFields, index.recordId(e))).iterator();
+			} else {
+				batch = readBatch();
+			}
+		}
+		return batch.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return batch.next();
+	}
+
+	// reads the tuples of the next BATCH_SIZE entries, in page order
+	private Iterator<Tuple> readBatch() throws DbException, TransactionAbortedException {
+		List<RecordId> rids = new ArrayList<>();
+		while (rids.size() < BATCH_SIZE && entries.hasNext()) {
+			rids.add(index.recordId(entries.next()));
+		}
+		rids.sort(PAGE_ORDER);
+		List<Tuple> tuples = new ArrayList<>(rids.size());
+		TuplePage page = null;
+		for (RecordId rid : rids) {
+			if (page == null || !page.getId().equals(rid.getPageId())) {
+				page = (TuplePage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			}
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if (t == null) {
+				throw new DbException("index entry points to the empty slot " + rid.getTupleNumber()
+						+ " of page " + rid.getPageId().getPageNumber());
+			}
+			tuples.add(project(t, fields, rid));
+		}
+		return tuples.iterator();
+	}
+
+	// the given fields of t, as a tuple of the heap tuple rid
+	private Tuple project(Tuple t, int[] from, RecordId rid) {
+		Tuple out = new Tuple(myTd);
+		for (int i = 0; i < from.length; i++) {
+			out.setField(i, t.getField(from[i]));
+		}
+		out.setRecordId(rid);
+		return out;
+	}
+
+	public void close() {
+		if (entries != null) {
+			entries.close();
+		}
+		batch = Collections.emptyIterator();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
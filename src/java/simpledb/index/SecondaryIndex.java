@@ -0,0 +1,510 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a non-clustered B+ tree index over one or more columns
+ * of a HeapFile.  The tuples stay in the HeapFile; the index is a separate
+ * BTreeFile of entries that point to the RecordIds of the heap tuples.  A
+ * table can have any number of them.
+ * <p>
+ * An entry holds the key columns, any INCLUDE columns, and the page and slot
+ * of the heap tuple.  An index on one column is keyed on that column.  An
+ * index on several columns is keyed on an extra first field, a string that
+ * encodes the key columns so that strings compare like the keys do,
+ * lexicographically: every int column is the 32 bits of its value, with the
+ * sign bit flipped, in {@link #INT_CHARS} characters of 7 bits each, which
+ * StringField stores as one byte each, and a string column, which can only
+ * be the last, is copied as far as it fits.  Int columns are encoded
+ * exactly, so only keys whose last string column is longer than the room
+ * left by the int columns can compare equal in the tree while differing;
+ * scans check the key columns themselves, and such keys come out of a scan
+ * in the order of their encoded prefixes.  The encoded key is short, so the
+ * internal pages, which keep only the first
+ * {@link BTreeInternalPage#SEPARATOR_LEN} characters of a string key, still
+ * tell apart keys that differ in their first six int columns.
+ * <p>
+ * The INCLUDE columns do not order anything; they make the index cover
+ * queries that only need them and the key columns, which {@link IndexScan}
+ * then answers without reading the heap.
+ * <p>
+ * The BTreeFile of an index is registered in the Catalog like a table, and
+ * the index itself with {@link simpledb.common.Catalog#addIndex}, after
+ * which {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}
+ * keep it up to date in the same transaction as the heap tuple.  Tuples
+ * added by DbFile.insertTuple directly, bypassing the BufferPool, are not
+ * indexed.  The Catalog only holds the index in memory: to open it again
+ * with the tables of a catalog file, the file needs the line returned by
+ * {@link #schemaEntry}, and the BTreeFile must be in that file's directory,
+ * named after the index with the suffix ".dat".
+ *
+ * @see IndexScan
+ */
+public class SecondaryIndex {
+
+	/** the number of characters of the encoding of an int key column */
+	public static final int INT_CHARS = 5;
+
+	private final int tableid;
+	private final int[] keyFields;
+	private final int[] includeFields;
+	private final BTreeFile file;
+	// the entry field of the first key column, and of the page number
+	private final int keyStart;
+	private final int pageField;
+
+	/**
+	 * Opens an existing index over the given field of table tableid.
+	 *
+	 * @param file the entries of the index, whose TupleDesc must be
+	 *             {@link #entryDesc} of the field
+	 */
+	public SecondaryIndex(int tableid, int field, BTreeFile file) {
+		this(tableid, new int[] { field }, new int[0], file);
+	}
+
+	/**
+	 * Opens an existing index over the given key fields of table tableid,
+	 * which also carries the given include fields.
+	 *
+	 * @param file the entries of the index, whose TupleDesc must be
+	 *             {@link #entryDesc} of the fields
+	 */
+	public SecondaryIndex(int tableid, int[] keyFields, int[] includeFields, BTreeFile file) {
+		TupleDesc etd = entryDesc(Database.getCatalog().getTupleDesc(tableid), keyFields, includeFields);
+		if (!file.getTupleDesc().equals(etd) || file.keyField() != 0) {
+			throw new IllegalArgumentException("file does not hold index entries for fields "
+					+ Arrays.toString(keyFields));
+		}
+		this.tableid = tableid;
+		this.keyFields = keyFields.clone();
+		this.includeFields = includeFields.clone();
+		this.file = file;
+		this.keyStart = keyFields.length > 1 ? 1 : 0;
+		this.pageField = keyStart + keyFields.length + includeFields.length;
+	}
+
+	/**
+	 * @return the TupleDesc of the entries of an index on the given key
+	 *         fields of a table with TupleDesc td, carrying the include fields
+	 * @throws IllegalArgumentException if the key fields cannot be encoded
+	 *         into one key
+	 */
+	public static TupleDesc entryDesc(TupleDesc td, int[] keyFields, int[] includeFields) {
+		if (keyFields.length == 0) {
+			throw new IllegalArgumentException("an index needs a key field");
+		}
+		boolean composite = keyFields.length > 1;
+		int n = (composite ? 1 : 0) + keyFields.length + includeFields.length + 2;
+		Type[] types = new Type[n];
+		String[] names = new String[n];
+		int i = 0;
+		if (composite) {
+			int room = Type.STRING_LEN;
+			for (int k = 0; k < keyFields.length; k++) {
+				if (td.getFieldType(keyFields[k]) == Type.INT_TYPE) {
+					room -= INT_CHARS;
+				} else if (k < keyFields.length - 1) {
+					throw new IllegalArgumentException("only the last key field can be a string");
+				} else {
+					room -= 1;
+				}
+			}
+			if (room < 0) {
+				throw new IllegalArgumentException("too many key fields");
+			}
+			types[i] = Type.STRING_TYPE;
+			names[i++] = "key";
+		}
+		for (int f : keyFields) {
+			types[i] = td.getFieldType(f);
+			names[i++] = td.getFieldName(f);
+		}
+		for (int f : includeFields) {
+			types[i] = td.getFieldType(f);
+			names[i++] = td.getFieldName(f);
+		}
+		types[i] = Type.INT_TYPE;
+		names[i++] = "page";
+		types[i] = Type.INT_TYPE;
+		names[i] = "slot";
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * Creates an index over the given field of the HeapFile tableid.
+	 *
+	 * @see #create(TransactionId, int, int[], int[], File)
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int field, File file)
+			throws DbException, IOException, TransactionAbortedException {
+		return create(tid, tableid, new int[] { field }, new int[0], file);
+	}
+
+	/**
+	 * Creates an index over the given key fields of the HeapFile tableid,
+	 * carrying the given include fields, in file, which is overwritten, from
+	 * the tuples the table has now, and adds it to the Catalog; its BTreeFile
+	 * is named after the table and the key field numbers, as in
+	 * "table_1_2_idx".  The index is bulk loaded, so tid should keep other
+	 * transactions from changing the table until it is registered.
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int[] keyFields, int[] includeFields,
+			File file) throws DbException, IOException, TransactionAbortedException {
+		DbFile heap = Database.getCatalog().getDatabaseFile(tableid);
+		if (!(heap instanceof HeapFile)) {
+			throw new DbException("secondary indexes need a HeapFile, not " + heap.getClass().getName());
+		}
+		StringBuilder name = new StringBuilder(Database.getCatalog().getTableName(tableid));
+		for (int f : keyFields) {
+			name.append('_').append(f);
+		}
+		TupleDesc etd = entryDesc(heap.getTupleDesc(), keyFields, includeFields);
+		EntryIterator entries = new EntryIterator(heap.iterator(tid), keyFields, includeFields, etd);
+		BTreeFile bf = new BTreeBulkLoader(entries, etd, 0).build(file, name.append("_idx").toString());
+		SecondaryIndex index = new SecondaryIndex(tableid, keyFields, includeFields, bf);
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the first key field of the table
+	 */
+	public int getField() {
+		return keyFields[0];
+	}
+
+	/**
+	 * @return the key fields of the table, in key order
+	 */
+	public int[] getKeyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the fields of the table carried in the entries besides the key
+	 */
+	public int[] getIncludeFields() {
+		return includeFields.clone();
+	}
+
+	/**
+	 * @return the BTreeFile holding the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the line of a catalog file that opens this index, as in
+	 *         "index t_1_idx on t (b) include (c)"
+	 * @see simpledb.common.Catalog#loadSchema
+	 */
+	public String schemaEntry() {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		StringBuilder sb = new StringBuilder("index ");
+		sb.append(Database.getCatalog().getTableName(file.getId())).append(" on ")
+				.append(Database.getCatalog().getTableName(tableid));
+		appendFields(sb.append(" ("), td, keyFields);
+		if (includeFields.length > 0) {
+			appendFields(sb.append(" include ("), td, includeFields);
+		}
+		return sb.toString();
+	}
+
+	private static void appendFields(StringBuilder sb, TupleDesc td, int[] fields) {
+		for (int i = 0; i < fields.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(td.getFieldName(fields[i]));
+		}
+		sb.append(')');
+	}
+
+	/**
+	 * @return the field of the entries holding the given field of the table,
+	 *         or -1 if the entries do not have it
+	 */
+	public int entryField(int field) {
+		for (int k = 0; k < keyFields.length; k++) {
+			if (keyFields[k] == field) {
+				return keyStart + k;
+			}
+		}
+		for (int k = 0; k < includeFields.length; k++) {
+			if (includeFields[k] == field) {
+				return keyStart + keyFields.length + k;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the entries hold all the given fields of the table
+	 */
+	public boolean covers(int[] fields) {
+		for (int f : fields) {
+			if (entryField(f) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Tuple entry(TupleDesc etd, Tuple t, int[] keyFields, int[] includeFields) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(etd);
+		int i = 0;
+		if (keyFields.length > 1) {
+			StringBuilder key = new StringBuilder();
+			for (int f : keyFields) {
+				encode(key, t.getField(f));
+			}
+			e.setField(i++, new StringField(key.toString(), Type.STRING_LEN));
+		}
+		for (int f : keyFields) {
+			e.setField(i++, t.getField(f));
+		}
+		for (int f : includeFields) {
+			e.setField(i++, t.getField(f));
+		}
+		e.setField(i++, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(i, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	// appends the order-preserving encoding of f, cut to what fits in a key
+	private static void encode(StringBuilder key, Field f) {
+		if (f.getType() == Type.INT_TYPE) {
+			long bits = (((IntField) f).getValue() ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+			for (int shift = 7 * (INT_CHARS - 1); shift >= 0; shift -= 7) {
+				key.append((char) ((bits >>> shift) & 0x7F));
+			}
+		} else {
+			String s = ((StringField) f).getValue();
+			key.append(s, 0, Math.min(s.length(), Type.STRING_LEN - key.length()));
+		}
+	}
+
+	/**
+	 * @return the RecordId of the heap tuple an entry of this index points to
+	 */
+	public RecordId recordId(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(pageField)).getValue()),
+				((IntField) entry.getField(pageField + 1)).getValue());
+	}
+
+	/**
+	 * Adds the entry of heap tuple t, which must have its RecordId set.
+	 */
+	public void insert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry(file.getTupleDesc(), t, keyFields, includeFields));
+	}
+
+	/**
+	 * Removes the entry of heap tuple t.
+	 *
+	 * @throws DbException if the index has no entry for t
+	 */
+	public void delete(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		Field[] key = new Field[keyFields.length];
+		for (int k = 0; k < key.length; k++) {
+			key[k] = t.getField(keyFields[k]);
+		}
+		DbFileIterator it = entryIterator(tid, new IndexPredicate(key, null, null));
+		Tuple match = null;
+		it.open();
+		while (match == null && it.hasNext()) {
+			Tuple e = it.next();
+			if (recordId(e).equals(rid)) {
+				match = e;
+			}
+		}
+		it.close();
+		if (match == null) {
+			throw new DbException("index on fields " + Arrays.toString(keyFields) + " of table " + tableid
+					+ " has no entry for " + rid);
+		}
+		Database.getBufferPool().deleteTuple(tid, match);
+	}
+
+	/**
+	 * Returns an iterator over the entries whose key matches ipred, in key
+	 * order, or over all entries if ipred is null.  The prefix of ipred is
+	 * matched against the leading key fields, and its operation applies to
+	 * the key field that follows them.
+	 *
+	 * @throws IllegalArgumentException if ipred has more fields than the key,
+	 *         or fields of the wrong types
+	 */
+	public DbFileIterator entryIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred == null) {
+			return file.iterator(tid);
+		}
+		Field[] prefix = ipred.getPrefix();
+		int used = prefix.length + (ipred.getOp() == null ? 0 : 1);
+		if (used > keyFields.length) {
+			throw new IllegalArgumentException("the predicate has more fields than the key");
+		}
+		TupleDesc etd = file.getTupleDesc();
+		for (int k = 0; k < used; k++) {
+			Field f = k < prefix.length ? prefix[k] : ipred.getField();
+			if (f.getType() != etd.getFieldType(keyStart + k)) {
+				throw new IllegalArgumentException("key field " + k + " is not of type " + f.getType());
+			}
+		}
+		if (keyFields.length == 1) {
+			return file.indexIterator(tid, prefix.length == 0 ? ipred : new IndexPredicate(Op.EQUALS, prefix[0]));
+		}
+		return new PrefixIterator(tid, prefix, ipred);
+	}
+
+	/**
+	 * Iterates over the entries of a multi-column index whose key starts
+	 * with a prefix, and whose next key field satisfies an operation, or a
+	 * range.  The scan seeks to the smallest encoded key that can match and
+	 * stops at the first encoded key past the matches.
+	 */
+	private class PrefixIterator extends AbstractDbFileIterator {
+		private final Field[] prefix;
+		private final IndexPredicate ipred;
+		private final Field value;
+		private final String encodedPrefix;
+		private final String encodedUpper;
+		private final DbFileIterator entries;
+		private boolean done;
+
+		PrefixIterator(TransactionId tid, Field[] prefix, IndexPredicate ipred) {
+			this.prefix = prefix;
+			this.ipred = ipred;
+			Op op = ipred.getOp();
+			this.value = ipred.getField();
+			StringBuilder key = new StringBuilder();
+			for (Field f : prefix) {
+				encode(key, f);
+			}
+			this.encodedPrefix = key.toString();
+			// the field after the prefix is bounded above by the upper bound of a range,
+			// or by the value of an EQUALS or LESS_THAN operation
+			Field upper = ipred.getUpperOp() != null ? ipred.getUpperField()
+					: op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ ? value : null;
+			if (upper != null) {
+				StringBuilder u = new StringBuilder();
+				encode(u, upper);
+				this.encodedUpper = u.toString();
+			} else {
+				this.encodedUpper = null;
+			}
+			if (value != null) {
+				encode(key, value);
+			}
+			String low = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ
+					? key.toString() : encodedPrefix;
+			this.entries = low.isEmpty() ? file.iterator(tid)
+					: file.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+							new StringField(low, Type.STRING_LEN)));
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			done = false;
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (!done && entries.hasNext()) {
+				Tuple e = entries.next();
+				String key = ((StringField) e.getField(0)).getValue();
+				if (!key.startsWith(encodedPrefix) || pastUpperBound(key)) {
+					done = true;
+				} else if (matches(e)) {
+					return e;
+				}
+			}
+			return null;
+		}
+
+		// true if no later key can satisfy an upper bound on the next field
+		private boolean pastUpperBound(String key) {
+			if (encodedUpper == null) {
+				return false;
+			}
+			int start = encodedPrefix.length();
+			int end = value.getType() == Type.INT_TYPE ? start + INT_CHARS : key.length();
+			return key.substring(start, end).compareTo(encodedUpper) > 0;
+		}
+
+		private boolean matches(Tuple e) {
+			for (int k = 0; k < prefix.length; k++) {
+				if (!e.getField(keyStart + k).equals(prefix[k])) {
+					return false;
+				}
+			}
+			return ipred.getOp() == null || ipred.matches(e.getField(keyStart + prefix.length));
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	/** Turns the tuples of a heap file into index entries. */
+	private static class EntryIterator extends AbstractDbFileIterator {
+		private final DbFileIterator heap;
+		private final int[] keyFields;
+		private final int[] includeFields;
+		private final TupleDesc etd;
+
+		EntryIterator(DbFileIterator heap, int[] keyFields, int[] includeFields, TupleDesc etd) {
+			this.heap = heap;
+			this.keyFields = keyFields;
+			this.includeFields = includeFields;
+			this.etd = etd;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			heap.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (!heap.hasNext()) {
+				return null;
+			}
+			return entry(etd, heap.next(), keyFields, includeFields);
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			heap.close();
+		}
+	}
+}
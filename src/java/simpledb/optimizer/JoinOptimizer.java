@@ -279,6 +279,8 @@ public class JoinOptimizer {
         // some code goes here
         //Replace the following
         //后面再看看
+        //单表查询没有需要排序的join
+        if (joins.isEmpty()) return joins;
         CostCard bestCostCard = new CostCard();
         PlanCache planCache = new PlanCache();
         int size = joins.size();
@@ -4,6 +4,10 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.HashFile;
+import simpledb.index.HashScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,6 +278,123 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter into a field of the given type. */
+    private static Field constant(Type type, String c) {
+        if (type == Type.INT_TYPE)
+            return new IntField(Integer.parseInt(c));
+        return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * Replaces the scan of each hash file with an equality filter on its key
+     * by a {@link HashScan} that only reads the bucket of that key.
+     * @param t The transaction that the scans will run as a part of
+     * @param applied Collects the filters that the lookups apply
+     */
+    private void scanHashKeys(TransactionId t, Set<LogicalFilterNode> applied) {
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(file instanceof HashFile))
+                continue;
+            int keyField = ((HashFile) file).keyField();
+            TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+            for (LogicalFilterNode lf : filters) {
+                try {
+                    if (!lf.tableAlias.equals(table.alias) || lf.p != Predicate.Op.EQUALS
+                            || td.fieldNameToIndex(lf.fieldQuantifiedName) != keyField)
+                        continue;
+                    IndexPredicate ipred = new IndexPredicate(lf.p, constant(td.getFieldType(keyField), lf.c));
+                    subplanMap.put(table.alias, new HashScan(t, file.getId(), table.alias, ipred));
+                    applied.add(lf);
+                    break;
+                } catch (NoSuchElementException | NumberFormatException e) {
+                    // not a filter on the key
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the scan of each B+ tree whose key is bounded from below or
+     * from above by the filters of the query with a {@link BTreeScan} of
+     * that range, which seeks to the lower bound and stops at the upper
+     * bound, if it has them, instead of reading the whole tree.
+     * @param t The transaction that the scans will run as a part of
+     * @param applied Collects the filters that the range scans apply
+     * @return the range of each replaced scan, by table alias
+     */
+    private Map<String, IndexPredicate> scanKeyRanges(TransactionId t, Set<LogicalFilterNode> applied) {
+        Map<String, IndexPredicate> ranges = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(file instanceof BTreeFile))
+                continue;
+            int keyField = ((BTreeFile) file).keyField();
+            TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+            LogicalFilterNode lower = null, upper = null;
+            for (LogicalFilterNode lf : filters) {
+                try {
+                    if (!lf.tableAlias.equals(table.alias) || td.fieldNameToIndex(lf.fieldQuantifiedName) != keyField)
+                        continue;
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                if (lower == null && (lf.p == Predicate.Op.GREATER_THAN || lf.p == Predicate.Op.GREATER_THAN_OR_EQ))
+                    lower = lf;
+                else if (upper == null && (lf.p == Predicate.Op.LESS_THAN || lf.p == Predicate.Op.LESS_THAN_OR_EQ))
+                    upper = lf;
+            }
+            if (lower == null && upper == null)
+                continue;
+            Type type = td.getFieldType(keyField);
+            IndexPredicate range;
+            try {
+                if (upper == null)
+                    range = new IndexPredicate(lower.p, constant(type, lower.c));
+                else if (lower == null)
+                    range = new IndexPredicate(upper.p, constant(type, upper.c));
+                else
+                    range = new IndexPredicate(lower.p, constant(type, lower.c), upper.p, constant(type, upper.c));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            ranges.put(table.alias, range);
+            subplanMap.put(table.alias, new BTreeScan(t, file.getId(), table.alias, range));
+            if (lower != null)
+                applied.add(lower);
+            if (upper != null)
+                applied.add(upper);
+        }
+        return ranges;
+    }
+
+    /**
+     * Replaces the scan of a query over a single B+ tree, ordered by the key
+     * of the tree, with a {@link BTreeScan} in that order.  The tuples then
+     * need not be sorted, and a descending scan starts at the leaf of the upper
+     * bound of its range, or at the right-most leaf if the range has none.
+     * @param t The transaction that the scan will run as a part of
+     * @param ranges The key range of each table scanned by {@link #scanKeyRanges}
+     * @return true if the scan was replaced
+     */
+    private boolean scanInKeyOrder(TransactionId t, Map<String, IndexPredicate> ranges) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty())
+            return false;
+        LogicalScanNode table = tables.get(0);
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof BTreeFile))
+            return false;
+        BTreeScan scan = new BTreeScan(t, file.getId(), table.alias, ranges.get(table.alias), !oByAsc);
+        try {
+            if (scan.getTupleDesc().fieldNameToIndex(oByField) != ((BTreeFile) file).keyField())
+                return false;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        subplanMap.put(table.alias, scan);
+        return true;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -308,6 +429,9 @@ public class LogicalPlan {
             filterSelectivities.put(table.alias, 1.0);
 
         }
+        Set<LogicalFilterNode> indexFilters = new HashSet<>();
+        scanHashKeys(t, indexFilters);
+        boolean inKeyOrder = scanInKeyOrder(t, scanKeyRanges(t, indexFilters));
 
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
@@ -324,10 +448,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = constant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -335,7 +456,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -471,7 +593,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !inKeyOrder) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
@@ -4,8 +4,11 @@ import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.HashFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
 
 import java.util.HashMap;
 import java.util.Iterator;
@@ -94,10 +97,18 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
-        HeapFile dbFile = (HeapFile)Database.getCatalog().getDatabaseFile(tableid);
-        this.numPages = dbFile.numPages();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        if (dbFile instanceof BTreeFile) {
+            this.numPages = ((BTreeFile) dbFile).numPages();
+        } else if (dbFile instanceof HashFile) {
+            this.numPages = ((HashFile) dbFile).numPages();
+        } else {
+            this.numPages = ((HeapFile) dbFile).numPages();
+        }
         this.ioCostPerPage = ioCostPerPage;
-        DbFileIterator child = dbFile.iterator(null);
+        //在自己的事务中扫描表，扫描完成后释放锁
+        TransactionId tid = new TransactionId();
+        DbFileIterator child = dbFile.iterator(tid);
         this.td = dbFile.getTupleDesc();
         Map<Integer, Integer> minMap = new HashMap<>();
         Map<Integer, Integer> maxMap = new HashMap<>();
@@ -151,6 +162,8 @@ public class TableStats {
                 }
             }
 //            System.out.println("Finish Fill");
+            child.close();
+            Database.getBufferPool().transactionComplete(tid);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -4,12 +4,14 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -106,12 +108,18 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Neither the wait for the lock nor the read of a page from disk holds
+     * the BufferPool, so threads that miss different pages read them at the
+     * same time.  A caller that holds the BufferPool, like insertTuple, lets
+     * go of it while it waits for a lock, so that the transaction holding
+     * the lock can complete.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
         int type;
@@ -120,11 +128,18 @@ public class BufferPool {
         } else {
             type = 1;
         }
+        boolean firstWrite = type == 1 && !lockManager.holdsWriteLock(pid, tid);
         long st = System.currentTimeMillis();
         while (true) {
             //获取锁，如果获取不到会阻塞
             try {
-                if (lockManager.requireLock(pid, tid, type)) {
+                if (Thread.holdsLock(this)) {
+                    //持有BufferPool时在LockManager里等待会让持锁的事务无法提交，改为等待BufferPool并释放它
+                    if (lockManager.requireLock(pid, tid, type, false)) {
+                        break;
+                    }
+                    wait(10);
+                } else if (lockManager.requireLock(pid, tid, type)) {
                     break;
                 }
             } catch (InterruptedException e) {
@@ -133,12 +148,60 @@ public class BufferPool {
             long now = System.currentTimeMillis();
             if (now - st > 500) throw new TransactionAbortedException();
         }
-        if(!pageCache.containsKey(pid.hashCode())){
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
+        return lockedPage(pid, type, firstWrite);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions like
+     * {@link #getPage}, but only if the lock can be granted right away.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws DbException {
+        int type = perm == Permissions.READ_ONLY ? 0 : 1;
+        boolean firstWrite = type == 1 && !lockManager.holdsWriteLock(pid, tid);
+        if (!lockManager.tryRequireLock(pid, tid, type)) {
+            return null;
+        }
+        return lockedPage(pid, type, firstWrite);
+    }
+
+    // returns the page pid, which the caller has just locked
+    private Page lockedPage(PageId pid, int type, boolean firstWrite) throws DbException {
+        synchronized (this) {
+            Page page = pageCache.get(pid.hashCode());
+            if (page != null) {
+                if (firstWrite && page.isDirty() == null) {
+                    //事务第一次写这个页面之前保存before image，只读的页面不需要复制
+                    page.setBeforeImage();
+                }
+                return page;
+            }
+        }
+        //读磁盘时不持有BufferPool；持有写锁时没有其他事务能读这个页面，持有读锁时其他读者可能同时读入它
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page page = dbFile.readPage(pid);
+        synchronized (this) {
+            Page cached = pageCache.get(pid.hashCode());
+            if (cached != null) {
+                //另一个读者先读入了这个页面
+                if (firstWrite && cached.isDirty() == null) {
+                    cached.setBeforeImage();
+                }
+                return cached;
+            }
+            //刚从磁盘读出的页面；要写的话也要保存before image，否则被checkpoint偷写后before image就是修改后的内容
+            if (type == 1) {
+                page.setBeforeImage();
+            }
             pageCache.put(pid.hashCode(), page);
+            //缓存满且都是脏页时新页面被丢弃，返回null
+            return pageCache.get(pid.hashCode());
         }
-        return pageCache.get(pid.hashCode());
     }
 
     /**
@@ -154,6 +217,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         lockManager.releaseLock(pid, tid);
+        notifyAll();
     }
 
     /**
@@ -174,6 +238,14 @@ public class BufferPool {
         return lockManager.isHoldLock(p, tid);
     }
 
+    /**
+     * Return true if a transaction other than tid has a lock on the specified
+     * page, so that tid could not lock it for writing without waiting
+     */
+    public boolean isLockedByOthers(TransactionId tid, PageId p) {
+        return lockManager.isLockedByOthers(p, tid);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -195,13 +267,16 @@ public class BufferPool {
             //如果提交失败，回滚，将脏页的原页面写回磁盘
             recoverPages(tid);
         }
+        long start = System.nanoTime();
         lockManager.completeTransaction(tid);
+        Database.getWalMetrics().addCommitPhase(WalMetrics.LOCK_RELEASE, System.nanoTime() - start);
+        //唤醒在getPage中等待锁的插入和删除
+        notifyAll();
     }
 
     private synchronized void recoverPages(TransactionId tid) {
-        //从磁盘重新读回page
-        for(Map.Entry<Integer, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
+        //从磁盘重新读回page；pageCache按访问顺序排列，put会改变顺序，所以遍历它的副本
+        for(Page page : new ArrayList<>(pageCache.values())) {
             if (page.isDirty() == tid) {
                 int tableId = page.getId().getTableId();
                 DbFile file = Database.getCatalog().getDatabaseFile(tableId);
@@ -223,6 +298,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also added to the secondary indexes of the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -238,6 +315,54 @@ public class BufferPool {
             p.markDirty(true, tid);
             pageCache.put(p.getId().hashCode(), p);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
+        }
+    }
+
+    /**
+     * Lock the whole table for tid and return an Appender that adds tuples to
+     * new pages at the end of the table, without going through the pages
+     * in the BufferPool.  Other transactions cannot read or write the table
+     * until tid completes.  If tid aborts, its appended pages are emptied
+     * by rolling back the log, so tid should be run by a Transaction.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to, which must be a HeapFile
+     */
+    public HeapFile.Appender bulkAppend(TransactionId tid, int tableId)
+        throws DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile)) {
+            throw new DbException("bulk append needs a HeapFile, not " + file.getClass().getName());
+        }
+        lockTable(tid, tableId);
+        return ((HeapFile) file).appender(tid);
+    }
+
+    /**
+     * Lock the whole table for tid.  Waits until no other transaction holds
+     * a lock on the table or on one of its pages, and other transactions
+     * cannot read or write the table until tid completes.
+     *
+     * @param tid the transaction locking the table
+     * @param tableId the table to lock
+     * @throws TransactionAbortedException if the lock is not granted in time
+     */
+    public void lockTable(TransactionId tid, int tableId) throws TransactionAbortedException {
+        long st = System.currentTimeMillis();
+        while (true) {
+            //获取表锁，如果获取不到会阻塞
+            try {
+                if (lockManager.requireTableLock(tableId, tid)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            long now = System.currentTimeMillis();
+            if (now - st > 500) throw new TransactionAbortedException();
+        }
     }
 
     /**
@@ -250,6 +375,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also deleted from the secondary indexes of its table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -257,7 +384,8 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = file.deleteTuple(tid, t);
         //将页面写到缓存中
         for (Page p : pages) {
@@ -265,6 +393,9 @@ public class BufferPool {
             //后期需要保证线程安全
             pageCache.put(p.getId().hashCode(), p);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.delete(tid, t);
+        }
     }
 
     /**
@@ -297,6 +428,14 @@ public class BufferPool {
         pageCache.remove(pid.hashCode());
     }
 
+    /** Remove every page of the specified table from the buffer pool,
+        without flushing them.  Used when the file of a table is replaced
+        on disk, so that its old pages are not read or written again.
+    */
+    public synchronized void discardPages(int tableId) {
+        pageCache.values().removeIf(p -> p.getId().getTableId() == tableId);
+    }
+
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
@@ -320,7 +459,9 @@ public class BufferPool {
         //将脏页保存下来再刷入磁盘
         Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
         Database.getLogFile().force();
+        long start = System.nanoTime();
         file.writePage(page);
+        Database.getWalMetrics().addCommitPhase(WalMetrics.PAGE_FLUSH, System.nanoTime() - start);
         page.markDirty(false, null);
     }
 
@@ -331,11 +472,11 @@ public class BufferPool {
         // not necessary for lab1|lab2
         for(Map.Entry<Integer, Page> entry : pageCache.entrySet()) {
             Page page = entry.getValue();
-            //要先保存before image
-            //更新page的oldData
-            page.setBeforeImage();
+            //先刷盘（日志中记录的是提交前的before image），再更新page的oldData
+            //其他事务的页面不能更新，否则它们的before image会丢失
             if (page.isDirty() == tid) {
                 flushPage(page.getId());
+                page.setBeforeImage();
             }
         }
     }
@@ -0,0 +1,303 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ColumnCodec compresses the bytes of a HeapPage for a CompressedHeapFile.
+ * The header bitmap is stored as is, followed by the fields of the used slots,
+ * one column at a time.  Each column of each page gets the smallest of these
+ * encodings:
+ * <ul>
+ * <li>INT_TYPE columns are stored plain, as runs of equal values (RLE),
+ *     bit-packed as offsets from the smallest value, or as a dictionary of
+ *     their distinct values followed by the codes of the values;
+ * <li>STRING_TYPE columns are always stored as a dictionary of their
+ *     distinct strings, without padding.
+ * </ul>
+ * The codes of a dictionary are encoded like an INT_TYPE column.  Every
+ * encoded column starts with a byte telling its encoding, so pages of the
+ * same file can use different encodings.  Decompressing gives back exactly
+ * the bytes that were compressed, as long as they came from
+ * {@link HeapPage#getPageData}, which zeroes empty slots and the padding.
+ */
+final class ColumnCodec {
+
+    static final byte PLAIN = 0;
+    static final byte RLE = 1;
+    static final byte BIT_PACKED = 2;
+    static final byte DICTIONARY = 3;
+
+    private ColumnCodec() {
+    }
+
+    private static int numSlots(TupleDesc td) {
+        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+    }
+
+    private static int[] usedSlots(byte[] header, int numSlots) {
+        int count = 0;
+        int[] used = new int[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if (((header[i / 8] >> (i % 8)) & 1) == 1) {
+                used[count++] = i;
+            }
+        }
+        return Arrays.copyOf(used, count);
+    }
+
+    /**
+     * Compresses the data of a HeapPage of a table with the given TupleDesc.
+     */
+    static byte[] compress(TupleDesc td, byte[] page) throws IOException {
+        int numSlots = numSlots(td);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        int[] used = usedSlots(page, numSlots);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.write(page, 0, headerSize);
+        for (int j = 0; j < td.numFields(); j++) {
+            int offset = headerSize + td.getFieldOffset(j);
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int[] values = new int[used.length];
+                for (int k = 0; k < used.length; k++) {
+                    values[k] = Type.readInt(page, offset + used[k] * tupleSize);
+                }
+                out.write(encodeInts(values, true));
+            } else {
+                // strings are keyed by their bytes; ISO-8859-1 maps bytes to chars one to one
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                int[] codes = new int[used.length];
+                for (int k = 0; k < used.length; k++) {
+                    int pos = offset + used[k] * tupleSize;
+                    String s = new String(page, pos + 4, Type.readInt(page, pos), "ISO-8859-1");
+                    Integer code = dictionary.get(s);
+                    if (code == null) {
+                        code = dictionary.size();
+                        dictionary.put(s, code);
+                    }
+                    codes[k] = code;
+                }
+                out.writeByte(DICTIONARY);
+                out.writeInt(dictionary.size());
+                for (String s : dictionary.keySet()) {
+                    out.writeByte(s.length());
+                    out.writeBytes(s);
+                }
+                out.write(encodeInts(codes, false));
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Restores the data of a HeapPage from the output of {@link #compress}.
+     *
+     * @throws IOException if the block is not a valid compressed page
+     */
+    static byte[] decompress(TupleDesc td, byte[] block) throws IOException {
+        int numSlots = numSlots(td);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        byte[] page = new byte[BufferPool.getPageSize()];
+        ByteBuffer out = ByteBuffer.wrap(page);
+        ByteBuffer in = ByteBuffer.wrap(block);
+        try {
+            in.get(page, 0, headerSize);
+            int[] used = usedSlots(page, numSlots);
+            for (int j = 0; j < td.numFields(); j++) {
+                int offset = headerSize + td.getFieldOffset(j);
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    int[] values = decodeInts(in, used.length);
+                    for (int k = 0; k < used.length; k++) {
+                        out.putInt(offset + used[k] * tupleSize, values[k]);
+                    }
+                } else {
+                    if (in.get() != DICTIONARY) {
+                        throw new IOException("string column is not dictionary encoded");
+                    }
+                    byte[][] dictionary = new byte[in.getInt()][];
+                    for (int d = 0; d < dictionary.length; d++) {
+                        dictionary[d] = new byte[in.get() & 0xFF];
+                        in.get(dictionary[d]);
+                    }
+                    int[] codes = decodeInts(in, used.length);
+                    for (int k = 0; k < used.length; k++) {
+                        int pos = offset + used[k] * tupleSize;
+                        byte[] s = dictionary[codes[k]];
+                        out.putInt(pos, s.length);
+                        System.arraycopy(s, 0, page, pos + 4, s.length);
+                    }
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("compressed page is truncated or corrupt", e);
+        }
+        return page;
+    }
+
+    /**
+     * Encodes values with whichever encoding gives the fewest bytes.
+     */
+    private static byte[] encodeInts(int[] values, boolean allowDictionary) throws IOException {
+        byte[] best = encodePlain(values);
+        byte[] rle = encodeRle(values);
+        if (rle.length < best.length) {
+            best = rle;
+        }
+        byte[] packed = encodeBitPacked(values);
+        if (packed.length < best.length) {
+            best = packed;
+        }
+        if (allowDictionary) {
+            byte[] dictionary = encodeDictionary(values);
+            if (dictionary.length < best.length) {
+                best = dictionary;
+            }
+        }
+        return best;
+    }
+
+    private static byte[] encodePlain(int[] values) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1 + values.length * 4);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(PLAIN);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeRle(int[] values) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(RLE);
+        int runs = 0;
+        for (int k = 0; k < values.length; k++) {
+            if (k == 0 || values[k] != values[k - 1]) {
+                runs++;
+            }
+        }
+        out.writeInt(runs);
+        for (int k = 0; k < values.length; ) {
+            int end = k + 1;
+            while (end < values.length && values[end] == values[k]) {
+                end++;
+            }
+            out.writeInt(values[k]);
+            out.writeInt(end - k);
+            k = end;
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeBitPacked(int[] values) throws IOException {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        int bits = values.length == 0 ? 0 : 64 - Long.numberOfLeadingZeros((long) max - min);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(6 + (values.length * bits + 7) / 8);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(BIT_PACKED);
+        out.writeInt(min);
+        out.writeByte(bits);
+        long acc = 0;
+        int accBits = 0;
+        for (int v : values) {
+            acc |= ((long) v - min) << accBits;
+            accBits += bits;
+            while (accBits >= 8) {
+                out.writeByte((int) acc);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        if (accBits > 0) {
+            out.writeByte((int) acc);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeDictionary(int[] values) throws IOException {
+        Map<Integer, Integer> dictionary = new LinkedHashMap<>();
+        int[] codes = new int[values.length];
+        for (int k = 0; k < values.length; k++) {
+            Integer code = dictionary.get(values[k]);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.put(values[k], code);
+            }
+            codes[k] = code;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(DICTIONARY);
+        out.writeInt(dictionary.size());
+        for (int v : dictionary.keySet()) {
+            out.writeInt(v);
+        }
+        out.write(encodeInts(codes, false));
+        return baos.toByteArray();
+    }
+
+    private static int[] decodeInts(ByteBuffer in, int n) throws IOException {
+        int[] values = new int[n];
+        byte encoding = in.get();
+        switch (encoding) {
+        case PLAIN:
+            for (int k = 0; k < n; k++) {
+                values[k] = in.getInt();
+            }
+            break;
+        case RLE:
+            int runs = in.getInt();
+            for (int r = 0, k = 0; r < runs; r++) {
+                int v = in.getInt();
+                int end = k + in.getInt();
+                while (k < end) {
+                    values[k++] = v;
+                }
+            }
+            break;
+        case BIT_PACKED:
+            long min = in.getInt();
+            int bits = in.get();
+            long mask = (1L << bits) - 1;
+            long acc = 0;
+            int accBits = 0;
+            for (int k = 0; k < n; k++) {
+                while (accBits < bits) {
+                    acc |= (long) (in.get() & 0xFF) << accBits;
+                    accBits += 8;
+                }
+                values[k] = (int) (min + (acc & mask));
+                acc >>>= bits;
+                accBits -= bits;
+            }
+            break;
+        case DICTIONARY:
+            int[] dictionary = new int[in.getInt()];
+            for (int d = 0; d < dictionary.length; d++) {
+                dictionary[d] = in.getInt();
+            }
+            int[] codes = decodeInts(in, n);
+            for (int k = 0; k < n; k++) {
+                values[k] = dictionary[codes[k]];
+            }
+            break;
+        default:
+            throw new IOException("unknown column encoding " + encoding);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,253 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are compressed on disk with
+ * {@link ColumnCodec}, for large tables of mostly low-cardinality ints and
+ * repeated strings.  Pages are HeapPages in the BufferPool: they are
+ * decompressed when read and compressed when written, so scans read only
+ * the compressed bytes from disk.
+ * <p>
+ * Since compressed pages have different sizes, the file is a sequence of
+ * blocks, each made of the page number, the length of the block's data, and
+ * the compressed page, which may be followed by unused bytes.  A page that
+ * still fits in its block is rewritten in place; otherwise writing it
+ * appends a new block, and the last block of a page is its current version.
+ * The offsets of the current blocks are found by reading the block headers
+ * when the file is first used; a block cut short by a crash is ignored, and
+ * recovery writes the page again.  {@link #compact} drops the blocks of
+ * older page versions, and runs by itself once they take more bytes than the
+ * current blocks.  The PageChecksums of the file are those of the
+ * uncompressed pages, so a block torn in the middle of an in-place rewrite
+ * is detected when its page is read.
+ *
+ * @see ColumnCodec
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private List<Long> blocks = null; // offset of the current block of each page, loaded lazily
+    private long liveBytes;           // bytes of the current blocks, headers included
+
+    /**
+     * Constructs a compressed heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    private List<Long> blocks() throws IOException {
+        if (blocks == null) {
+            List<Long> offsets = new ArrayList<>();
+            long live = 0;
+            if (getFile().exists()) {
+                try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
+                    offsets = readBlocks(raf);
+                    for (long pos : offsets) {
+                        raf.seek(pos + 4);
+                        live += BLOCK_HEADER_SIZE + raf.readInt();
+                    }
+                }
+            }
+            blocks = offsets;
+            liveBytes = live;
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads the block headers of raf.
+     *
+     * @return the offset of the current block of each page
+     */
+    static List<Long> readBlocks(RandomAccessFile raf) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        long pos = 0;
+        while (pos + BLOCK_HEADER_SIZE <= raf.length()) {
+            raf.seek(pos);
+            int pgNo = raf.readInt();
+            int len = raf.readInt();
+            if (pgNo < 0 || pgNo > offsets.size() || len < 0
+                    || pos + BLOCK_HEADER_SIZE + len > raf.length()) {
+                break;
+            }
+            if (pgNo == offsets.size()) {
+                offsets.add(pos);
+            } else {
+                offsets.set(pgNo, pos);
+            }
+            pos += BLOCK_HEADER_SIZE + len;
+        }
+        return offsets;
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized Page readPage(PageId pid) {
+        int pgNo = pid.getPageNumber();
+        try {
+            List<Long> blocks = blocks();
+            if (pgNo < 0 || pgNo >= blocks.size()) {
+                throw new IllegalArgumentException(String.format("table %d page %d is invalid", pid.getTableId(), pgNo));
+            }
+            byte[] block;
+            try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
+                raf.seek(blocks.get(pgNo) + 4);
+                block = new byte[raf.readInt()];
+                raf.readFully(block);
+            }
+            byte[] data = ColumnCodec.decompress(getTupleDesc(), block);
+            if (!getPageChecksums().verify(pgNo, data, 0, data.length)) {
+                throw new IllegalArgumentException(String.format("table %d page %d fails its checksum, it may be torn", pid.getTableId(), pgNo));
+            }
+            HeapPageId id = new HeapPageId(pid.getTableId(), pgNo);
+            return createPage(id, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException(String.format("table %d page %d is invalid", pid.getTableId(), pgNo));
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized void writePage(Page page) throws IOException {
+        int pgNo = page.getId().getPageNumber();
+        if (pgNo > numPages()) {
+            throw new IllegalArgumentException();
+        }
+        byte[] data = page.getPageData();
+        getPageChecksums().update(pgNo, data, 0, data.length);
+        writeBlock(pgNo, data);
+        getFreeSpaceMap().setFull(pgNo, ((TuplePage) page).isFull());
+    }
+
+    @Override
+    protected synchronized void writePages(List<TuplePage> pages) throws IOException {
+        for (TuplePage page : pages) {
+            writePage(page);
+        }
+    }
+
+    private void writeBlock(int pgNo, byte[] data) throws IOException {
+        List<Long> blocks = blocks();
+        byte[] block = ColumnCodec.compress(getTupleDesc(), data);
+        long length;
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "rw")) {
+            if (pgNo < blocks.size()) {
+                raf.seek(blocks.get(pgNo) + 4);
+                int capacity = raf.readInt();
+                if (block.length <= capacity) {
+                    // decompressing ignores the rest of the old version
+                    raf.write(block);
+                    return;
+                }
+                liveBytes -= BLOCK_HEADER_SIZE + capacity;
+            }
+            long pos = appendBlock(raf, pgNo, block);
+            liveBytes += BLOCK_HEADER_SIZE + block.length;
+            if (pgNo == blocks.size()) {
+                blocks.add(pos);
+            } else {
+                blocks.set(pgNo, pos);
+            }
+            length = raf.length();
+        }
+        if (length - liveBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Compresses the page data of page pgNo of a table with the given
+     * TupleDesc and appends it to raf as the page's current block.
+     *
+     * @return the offset of the block
+     */
+    static long appendBlock(RandomAccessFile raf, TupleDesc td, int pgNo, byte[] data) throws IOException {
+        return appendBlock(raf, pgNo, ColumnCodec.compress(td, data));
+    }
+
+    private static long appendBlock(RandomAccessFile raf, int pgNo, byte[] block) throws IOException {
+        long pos = raf.length();
+        raf.seek(pos);
+        raf.writeInt(pgNo);
+        raf.writeInt(block.length);
+        raf.write(block);
+        return pos;
+    }
+
+    /**
+     * Copies the file to target while no page of it is being written.
+     */
+    synchronized void copyTo(File target) throws IOException {
+        Files.copy(getFile().toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Forgets the offsets of the blocks, after the file was replaced.
+     */
+    synchronized void reload() {
+        blocks = null;
+    }
+
+    @Override
+    protected synchronized void appendEmptyPage() throws IOException {
+        int pgNo = blocks().size();
+        byte[] data = HeapPage.createEmptyPageData();
+        getPageChecksums().append(pgNo, data, 0, data.length);
+        writeBlock(pgNo, data);
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public synchronized int numPages() {
+        try {
+            return blocks().size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Rewrites the file with only the current block of each page, each
+     * compressed again without unused bytes.  The file is replaced
+     * atomically, so a crash leaves either the old or the new file.
+     */
+    public synchronized void compact() throws IOException {
+        List<Long> blocks = blocks();
+        File tmp = new File(getFile().getPath() + ".compact");
+        List<Long> offsets = new ArrayList<>();
+        long pos = 0;
+        try (RandomAccessFile in = new RandomAccessFile(getFile(), "r");
+             FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (int pgNo = 0; pgNo < blocks.size(); pgNo++) {
+                in.seek(blocks.get(pgNo) + 4);
+                byte[] block = new byte[in.readInt()];
+                in.readFully(block);
+                block = ColumnCodec.compress(getTupleDesc(), ColumnCodec.decompress(getTupleDesc(), block));
+                out.writeInt(pgNo);
+                out.writeInt(block.length);
+                out.write(block);
+                offsets.add(pos);
+                pos += BLOCK_HEADER_SIZE + block.length;
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), getFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.blocks = offsets;
+        this.liveBytes = pos;
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap keeps one bit per page of a HeapFile telling whether the page
+ * is full, so that inserts can go straight to a page with room instead of
+ * locking and reading every page of the file.
+ * <p>
+ * The map is stored next to the heap file, in a file with the suffix
+ * {@value #SUFFIX}, and is only a hint: a missing or short map file reads as
+ * "no page is full".  The map is updated when a page is written to disk, so
+ * it only reflects committed (or stolen) page contents, and when an insert
+ * finds a clean page full.  A page wrongly marked as having room costs one
+ * extra page visit; a page wrongly marked full loses its free space until
+ * the page is written again.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    public static final String SUFFIX = ".fsm";
+
+    private final File file;
+    private BitSet full = null; // loaded lazily, protected by this
+
+    /**
+     * Create the free-space map of the given heap file.
+     *
+     * @param heapFile the file backing the heap file
+     */
+    public FreeSpaceMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /** @return the file the map is stored in */
+    public File getFile() {
+        return file;
+    }
+
+    private BitSet bits() throws IOException {
+        if (full == null) {
+            if (file.exists()) {
+                byte[] data = new byte[(int) file.length()];
+                try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                    in.readFully(data);
+                }
+                full = BitSet.valueOf(data);
+            } else {
+                full = new BitSet();
+            }
+        }
+        return full;
+    }
+
+    /**
+     * Returns the first page at or after pgNo that is not known to be full.
+     * Pages past the end of the heap file are never full.
+     */
+    public synchronized int nextFreePage(int pgNo) throws IOException {
+        return bits().nextClearBit(pgNo);
+    }
+
+    /** @return true if the page is known to be full */
+    public synchronized boolean isFull(int pgNo) throws IOException {
+        return bits().get(pgNo);
+    }
+
+    /**
+     * Record whether a page is full, writing the changed byte of the map to
+     * disk if the bit changed.
+     */
+    public synchronized void setFull(int pgNo, boolean isFull) throws IOException {
+        BitSet bits = bits();
+        if (bits.get(pgNo) == isFull) {
+            return;
+        }
+        bits.set(pgNo, isFull);
+        int index = pgNo / 8;
+        int b = 0;
+        for (int i = 0; i < 8; i++) {
+            if (bits.get(index * 8 + i)) {
+                b |= 1 << i;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(index);
+            raf.writeByte(b);
+        }
+    }
+}
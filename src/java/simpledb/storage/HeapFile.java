@@ -4,10 +4,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -15,15 +17,21 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor. Inserts consult a FreeSpaceMap to skip the pages that are
+ * known to be full, and pages read from disk are checked against their
+ * PageChecksums to catch torn writes.
  * 
  * @see HeapPage#HeapPage
+ * @see FreeSpaceMap
+ * @see PageChecksums
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
     private final File file;
     private final TupleDesc td;
+    private final FreeSpaceMap freeSpaceMap;
+    private final PageChecksums checksums;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,6 +44,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.freeSpaceMap = new FreeSpaceMap(f);
+        this.checksums = new PageChecksums(f);
     }
 
     /**
@@ -93,8 +103,11 @@ public class HeapFile implements DbFile {
             if(read != pageSize){
                 throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
             }
+            if(!checksums.verify(pgNo, bytes, 0, pageSize)){
+                throw new IllegalArgumentException(String.format("table %d page %d fails its checksum, it may be torn", tableId, pgNo));
+            }
             HeapPageId id = new HeapPageId(pid.getTableId(), pid.getPageNumber());
-            return new HeapPage(id, bytes);
+            return createPage(id, bytes);
 
         }catch (IOException e){
             e.printStackTrace();
@@ -108,6 +121,14 @@ public class HeapFile implements DbFile {
         throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
     }
 
+    /**
+     * Creates a page of this file from the bytes read from disk.  Subclasses
+     * override this to store their tuples in a different page format.
+     */
+    protected TuplePage createPage(HeapPageId id, byte[] data) throws IOException {
+        return new HeapPage(id, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -117,14 +138,31 @@ public class HeapFile implements DbFile {
             throw new IllegalArgumentException();
         }
         int pgSize = BufferPool.getPageSize();
+        ByteBuffer data = PageBuffers.get();
+        page.writePageData(data);
+        checksums.update(pgNo, data.array(), 0, data.position());
         //write IO
         RandomAccessFile f = new RandomAccessFile(file,"rw");
         // set offset
         f.seek(pgNo*pgSize);
         // write
-        byte[] data = page.getPageData();
-        f.write(data);
+        f.write(data.array(), 0, data.position());
         f.close();
+        freeSpaceMap.setFull(pgNo, ((TuplePage) page).isFull());
+    }
+
+    /**
+     * Returns the free-space map that tracks which pages of this file are full.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
+    /**
+     * Returns the checksums that detect torn pages of this file.
+     */
+    public PageChecksums getPageChecksums() {
+        return checksums;
     }
 
     /**
@@ -142,14 +180,21 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> pageList= new ArrayList<>();
-        for(int i=0;i<numPages();++i){
+        int numPages = numPages();
+        // skip the pages the free-space map knows to be full
+        for(int i=freeSpaceMap.nextFreePage(0);i<numPages;i=freeSpaceMap.nextFreePage(i+1)){
             // took care of getting new page
             PageId pid = new HeapPageId(this.getId(), i);
-            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+            TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid,
                     pid,Permissions.READ_WRITE);
             //虽然违背严格两阶段协议，看lab4 exercise2的说明
-            if(p.getNumEmptySlots() == 0){
-                Database.getBufferPool().unsafeReleasePage(tid, pid);
+            if(!p.hasRoomFor(t)){
+                // a page filled by this transaction keeps its lock, and is
+                // only marked full once it is written to disk
+                if (p.isDirty() == null) {
+                    Database.getBufferPool().unsafeReleasePage(tid, pid);
+                    freeSpaceMap.setFull(i, p.isFull());
+                }
                 continue;
             }
             p.insertTuple(t);
@@ -159,12 +204,9 @@ public class HeapFile implements DbFile {
         }
         // no new page
         //写一块空的进去（一张页面的大小）numPages()已经变了
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file,true));
-        byte[] emptyData = HeapPage.createEmptyPageData();
-        bw.write(emptyData);
-        bw.close();
+        appendEmptyPage();
         // load into cache
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid,
                 new HeapPageId(getId(),numPages()-1),Permissions.READ_WRITE);
         p.insertTuple(t);
         p.markDirty(true, tid);
@@ -173,12 +215,132 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * Adds an empty page at the end of the file.  Subclasses that do not
+     * store pages at fixed offsets override this along with readPage,
+     * writePage and numPages.
+     */
+    protected void appendEmptyPage() throws IOException {
+        int pgNo = numPages();
+        byte[] emptyData = HeapPage.createEmptyPageData();
+        checksums.append(pgNo, emptyData, 0, emptyData.length);
+        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file,true));
+        bw.write(emptyData);
+        bw.close();
+    }
+
+    /**
+     * Writes consecutive pages to the file with one sequential write.  The
+     * first page must be at most one past the end of the file.
+     */
+    protected void writePages(List<TuplePage> pages) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        int pgNo = pages.get(0).getId().getPageNumber();
+        if (pgNo > numPages()) {
+            throw new IllegalArgumentException();
+        }
+        ByteBuffer data = ByteBuffer.allocate(pages.size() * pgSize);
+        for (TuplePage page : pages) {
+            page.writePageData(data);
+        }
+        checksums.appendPages(pgNo, data.array(), 0, pages.size(), pgSize);
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek((long) pgNo * pgSize);
+            f.write(data.array(), 0, data.position());
+        }
+        for (TuplePage page : pages) {
+            freeSpaceMap.setFull(page.getId().getPageNumber(), page.isFull());
+        }
+    }
+
+    /**
+     * Returns an Appender that adds tuples to new pages at the end of this
+     * file on behalf of tid, bypassing the BufferPool.  Obtain it through
+     * {@link BufferPool#bulkAppend}, which locks the whole table.
+     */
+    Appender appender(TransactionId tid) {
+        return new Appender(tid);
+    }
+
+    /**
+     * Appender fills new pages in memory and writes them behind the last page
+     * of the file, {@value #BATCH_PAGES} pages at a time.  Each batch is
+     * logged with empty before images and the log is forced once, before
+     * the pages are written with one sequential write.  The pages never
+     * enter the BufferPool, so committing does not write them again, and
+     * aborting relies on the log to empty them.
+     */
+    public class Appender {
+
+        static final int BATCH_PAGES = 64;
+
+        private final TransactionId tid;
+        private final List<SecondaryIndex> indexes;
+        private final List<TuplePage> batch = new ArrayList<>();
+        private TuplePage current;
+        private int nextPgNo;
+
+        private Appender(TransactionId tid) {
+            this.tid = tid;
+            this.indexes = Database.getCatalog().getIndexes(getId());
+            this.nextPgNo = numPages();
+        }
+
+        /**
+         * Adds t to the page being filled, starting a new page if t does not
+         * fit, and sets its RecordId.  Its entries in the secondary indexes
+         * of the table are inserted through the BufferPool.
+         */
+        public void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+            if (current == null || !current.hasRoomFor(t)) {
+                if (current != null) {
+                    batch.add(current);
+                    if (batch.size() >= BATCH_PAGES) {
+                        flush();
+                    }
+                }
+                current = createPage(new HeapPageId(getId(), nextPgNo++), HeapPage.createEmptyPageData());
+                // the before image of a new page is an empty page
+                current.setBeforeImage();
+            }
+            current.insertTuple(t);
+            for (SecondaryIndex index : indexes) {
+                index.insert(tid, t);
+            }
+        }
+
+        /**
+         * Writes the pages filled so far, including the last, partly filled
+         * page.
+         */
+        public void close() throws IOException {
+            if (current != null) {
+                batch.add(current);
+                current = null;
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            LogFile log = Database.getLogFile();
+            for (TuplePage page : batch) {
+                log.logWrite(tid, page.getBeforeImage(), page);
+            }
+            log.force();
+            writePages(batch);
+            batch.clear();
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         ArrayList<Page> pageList = new ArrayList<Page>();
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid,
                 t.getRecordId().getPageId(),Permissions.READ_WRITE);
         p.deleteTuple(t);
         p.markDirty(true, tid);
@@ -229,7 +391,7 @@ public class HeapFile implements DbFile {
         private Iterator<Tuple> getTupleIterator(int pageNo) throws TransactionAbortedException, DbException{
             if(pageNo >= 0 && pageNo < file.numPages()) {
                 HeapPageId pid = new HeapPageId(file.getId(), pageNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
                 if(page == null) throw new DbException("get iterator fail! pageNo #" + pageNo + "# is invalid!");
                 Iterator<Tuple> it = page.iterator();
                 return it;
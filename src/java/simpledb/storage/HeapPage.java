@@ -8,23 +8,35 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * HeapPage keeps the bytes it was read from and hands out tuples that decode
+ * their fields from those bytes on demand, so reading a page does not
+ * allocate any Tuple or Field objects, and a scan that looks at one column
+ * only decodes that column.  Inserted tuples are serialized into the page
+ * bytes right away, so getPageData only copies them.  Since handed-out
+ * tuples keep referring to the bytes, the first write after a tuple was
+ * handed out copies them.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
-    final Tuple[] tuples;
+    final Tuple[] tuples; // tuples handed out so far, by slot
     final int numSlots;
 
+    private byte[] data; // the page bytes the slots are read from; the header is kept in header
+    private boolean dataShared; // data may be referenced by tuples or the caller
+
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
 
@@ -51,24 +63,17 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        if (data.length < header.length + numSlots * td.getSize()) {
+            throw new IOException("page " + id.getPageNumber() + " is too short");
         }
-        dis.close();
+        System.arraycopy(data, 0, header, 0, header.length);
 
-        setBeforeImage();
+        // the records are decoded from data when they are first used
+        tuples = new Tuple[numSlots];
+        this.data = data;
+        this.dataShared = true;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -100,6 +105,10 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // not fetched for writing since it was read
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -125,37 +134,17 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in the given slot, which must be used, creating it on
+     * first use.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    private Tuple tuple(int slotId) {
+        if (tuples[slotId] == null) {
+            Tuple t = new Tuple(td, data, header.length + slotId * td.getSize());
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+            dataShared = true;
         }
-
-        return t;
+        return tuples[slotId];
     }
 
     /**
@@ -170,64 +159,24 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        writePageData(buf);
+        return buf.array();
+    }
 
-                }
-                continue;
-            }
+    public void writePageData(ByteBuffer buf) {
+        buf.put(header);
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        // copy the used slots; empty slots and the padding are zero
+        int tupleSize = td.getSize();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                buf.put(data, header.length + i * tupleSize, tupleSize);
+            } else {
+                PageBuffers.putZeroes(buf, tupleSize);
             }
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (header.length + numSlots * tupleSize));
     }
 
     /**
@@ -255,10 +204,10 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         int slotId = t.getRecordId().getTupleNumber();
-        if (slotId < 0 || slotId >= tuples.length || tuples[slotId] == null || !isSlotUsed(slotId)) {
+        if (slotId < 0 || slotId >= tuples.length || !isSlotUsed(slotId)) {
             throw new DbException("slot is already null");
         }
-        if (!tuples[slotId].equals(t)) {
+        if (!tuple(slotId).equals(t)) {
             throw new DbException("no exist tuple error!");
         }
         markSlotUsed(slotId, false);
@@ -279,7 +228,8 @@ public class HeapPage implements Page {
             throw new DbException("the TupleDesc of t is mismatch!--HeapPage");
         }
         for (int i = 0; i < numSlots; i++) {
-            if(!isSlotUsed(i) && tuples[i] == null) {
+            if(!isSlotUsed(i)) {
+                writeTuple(i, t);
                 markSlotUsed(i, true);
                 RecordId recordId = new RecordId(pid, i);
                 t.setRecordId(recordId);
@@ -290,6 +240,22 @@ public class HeapPage implements Page {
         throw new DbException("the page is full!--HeapPage");
     }
 
+    /**
+     * Serializes t into the given slot of the page data.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        if (dataShared) {
+            // handed-out tuples keep the bytes they were created from
+            data = data.clone();
+            dataShared = false;
+        }
+        int tupleSize = td.getSize();
+        ByteBuffer buf = ByteBuffer.wrap(data, header.length + slotId * tupleSize, tupleSize);
+        for (int j = 0; j < td.numFields(); j++) {
+            t.getField(j).serialize(buf);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -324,6 +290,14 @@ public class HeapPage implements Page {
         return count;
     }
 
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    public boolean isFull() {
+        return getNumEmptySlots() == 0;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -353,6 +327,13 @@ public class HeapPage implements Page {
         }
     }
 
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            return null;
+        }
+        return tuple(slot);
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -362,7 +343,7 @@ public class HeapPage implements Page {
         List<Tuple> list = new ArrayList<>();
         for(int i=0; i<numSlots; ++i){
             if(isSlotUsed(i)){
-                list.add(tuples[i]);
+                list.add(tuple(i));
             }
         }
         return list.iterator();
@@ -2,12 +2,15 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.*;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -49,21 +52,32 @@ last written checkpoint, or -1 if there are no checkpoints
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and a long integer file offset of the previous record
+written by the same transaction (-1 if there is none).  These
+prev-record pointers chain the records of each transaction together
+so that rollback can walk a transaction's own records backwards
+without scanning the rest of the log.
 
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and REBUILD
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT and BEGIN records contain no additional data.  COMMIT
+records contain a long integer commit time in milliseconds since the
+epoch, used for point-in-time restore.
+BEGIN records always have a prev-record pointer of -1; CHECKPOINT
+records have a transaction id and prev-record pointer of -1.
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A serialized page is a
+byte page-type tag (HEAP_PAGE, BTREE_ROOT_PTR_PAGE, ...), the integer
+table id and page number of the page, an integer length and the page
+data itself.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -71,7 +85,32 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> REBUILD records consist of the integer id of a table whose file
+is about to be replaced by a new one written outside the log, such as
+by {@link BTreeRebuilder}.  The images logged for the table before the
+record are pages of the old file, so recovery and replicas skip them.
+Like CHECKPOINT records, they have a transaction id and prev-record
+pointer of -1.
+
 </ul>
+
+<p> When archiving is enabled (see {@link #startArchiving}), every
+record is also copied, before the log is truncated and whenever
+{@link #archive} is called, into WAL segment files of an archive
+directory.  The archive is a single append-only stream of records
+addressed by log sequence numbers (LSNs): the byte position of a
+record in the archive.  Each segment file is named after the LSN of
+its first byte.  See {@link OnlineBackup}.
+
+<p> Truncation and the reset of the log on startup rewrite the file,
+so record offsets are not stable.  A sidecar file next to the log,
+named after it with the suffix {@link #BASE_SUFFIX}, holds a
+generation number, incremented on every rewrite, and the LSN of the
+first record of the current log, counted from the start of the
+log's history rather than of the archive.  The record at offset o
+has LSN base + o - 8 in every generation of the log, so a reader
+such as {@link StandbyReplica} can tell whether a rewrite dropped
+records it had not read yet.
 */
 public class LogFile {
 
@@ -84,16 +123,42 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int REBUILD_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
+
+    // page-type tags used when serializing page images
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+    static final byte SLOTTED_PAGE = 6;
+    static final byte PAX_PAGE = 7;
+    static final byte HASH_META_PAGE = 8;
+    static final byte HASH_BUCKET_PAGE = 9;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    static final String SEGMENT_SUFFIX = ".wal";
+    public static final String BASE_SUFFIX = ".base";
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+    // bytes logged so far by each live transaction
+    final Map<Long,Long> tidToBytesLogged = new HashMap<>();
+
+    private File archiveDir = null; // protected by this
+    private long archivedOffset;    // offset in this log up to which records are archived
+    private long archiveLsn;        // LSN of the record at archivedOffset
+
+    private long generation;        // protected by this
+    private long baseLsn;           // LSN of the record at offset LONG_SIZE
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -110,6 +175,9 @@ public class LogFile {
 	    this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        long[] base = readBase(f);
+        generation = base[0];
+        baseLsn = base[1];
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -129,17 +197,165 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
+            // the records of the old log are dropped; the new log is a new
+            // file, so that a reader of the old one can tell them apart
+            long dropped = Math.max(0, raf.length() - LONG_SIZE);
+            raf.close();
+            logFile.delete();
+            raf = new RandomAccessFile(logFile, "rw");
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            rebase(baseLsn + dropped);
         }
     }
 
+    /** Reads the generation and the LSN of the first record of the log
+        in file f from its sidecar file; both are 0 if there is none.
+
+        @return the generation and the LSN, in that order
+    */
+    static long[] readBase(File f) throws IOException {
+        File sidecar = new File(f.getPath() + BASE_SUFFIX);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(sidecar))) {
+            return new long[] { in.readLong(), in.readLong() };
+        } catch (FileNotFoundException e) {
+            return new long[] { 0, 0 };
+        }
+    }
+
+    // starts a new generation of the log, whose first record has LSN
+    // newBase; the sidecar file is replaced atomically
+    private void rebase(long newBase) throws IOException {
+        File sidecar = new File(logFile.getPath() + BASE_SUFFIX);
+        File tmp = new File(logFile.getPath() + BASE_SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(generation + 1);
+            out.writeLong(newBase);
+        }
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        baseLsn = newBase;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the file backing this log */
+    public File getFile() {
+        return logFile;
+    }
+
+    /** An UPDATE record read back by {@link #readUpdates} */
+    public static class Update {
+        public final long tid;
+        public final Page before;
+        public final Page after;
+
+        Update(long tid, Page before, Page after) {
+            this.tid = tid;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /** @return the offset at which the next record will be written */
+    public synchronized long getCurrentOffset() {
+        // the first record goes right after the checkpoint pointer
+        return currentOffset < 0 ? LONG_SIZE : currentOffset;
+    }
+
+    /** @return the transactions that have logged a BEGIN record but no
+        COMMIT or ABORT record yet, each with the offset of its BEGIN record
+    */
+    public synchronized Map<Long, Long> getLiveTransactions() {
+        return new HashMap<>(tidToFirstLogRecord);
+    }
+
+    /** Read the UPDATE records of the pages of one table, and the COMMIT
+        and ABORT records, written from offset start up to the current end
+        of the log.  The log is read through a file handle of its own, so
+        records can be appended meanwhile.  Used to capture the changes
+        made to a table while a copy of it is being built.
+
+        @param start The offset of the first record to read, such as a
+        value returned by getCurrentOffset or by a previous call
+        @param tableId The table whose updates are returned
+        @param updates Receives the updates of the table, in log order
+        @param committed Receives the ids of the transactions that committed
+        @param aborted Receives the ids of the transactions that aborted
+        @return The offset right after the last record read
+        @throws IOException if the log was truncated since start was taken
+    */
+    public long readUpdates(long start, int tableId, List<Update> updates, Set<Long> committed,
+                            Set<Long> aborted) throws IOException {
+        return readUpdates(start, getCurrentOffset(), tableId, updates, committed, aborted);
+    }
+
+    /** Read the records of {@link #readUpdates(long, int, List, Set, Set)}
+        from offset start up to offset end, which must be the offset of a
+        record or of the end of the log.
+    */
+    public long readUpdates(long start, long end, int tableId, List<Update> updates,
+                            Set<Long> committed, Set<Long> aborted) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(logFile, "r")) {
+            long offset = start;
+            while (offset < end) {
+                in.seek(offset);
+                int type = in.readInt();
+                long tid = in.readLong();
+                in.readLong(); // prev record
+                switch (type) {
+                case UPDATE_RECORD:
+                    Page before = readPageData(in, tableId);
+                    Page after = readPageData(in, tableId);
+                    if (after != null) {
+                        updates.add(new Update(tid, before, after));
+                    }
+                    break;
+                case ABORT_RECORD:
+                    aborted.add(tid);
+                    break;
+                case COMMIT_RECORD:
+                    committed.add(tid);
+                    in.readLong(); // commit time
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    in.skipBytes(numXactions * 2 * LONG_SIZE);
+                    break;
+                case REBUILD_RECORD:
+                    in.readInt(); // table id
+                    break;
+                case BEGIN_RECORD:
+                    break;
+                default:
+                    throw new IOException("log was truncated: no record at offset " + offset);
+                }
+                if (in.readLong() != offset) {
+                    throw new IOException("log was truncated: no record at offset " + offset);
+                }
+                offset = in.getFilePointer();
+            }
+            return offset;
+        }
+    }
+
+    // reads a page image, which is only parsed if it is a page of tableId
+    private Page readPageData(RandomAccessFile in, int tableId) throws IOException {
+        byte tag = in.readByte();
+        int pageTableId = in.readInt();
+        int pgNo = in.readInt();
+        int pageSize = in.readInt();
+        if (pageSize < 0 || pageSize > in.length()) {
+            throw new IOException("log was truncated: bad page image length " + pageSize);
+        }
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData);
+        return pageTableId == tableId ? newPage(tag, pageTableId, pgNo, pageData) : null;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -162,10 +378,14 @@ public class LogFile {
 
                 raf.writeInt(ABORT_RECORD);
                 raf.writeLong(tid.getId());
+                raf.writeLong(prevRecord(tid));
                 raf.writeLong(currentOffset);
+                logged(tid, currentOffset);
                 currentOffset = raf.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                Database.getWalMetrics().transactionLogged(tidToBytesLogged.remove(tid.getId()));
             }
         }
     }
@@ -176,16 +396,24 @@ public class LogFile {
         @param tid The committing transaction.
     */
     public synchronized void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
         raf.writeInt(COMMIT_RECORD);
         raf.writeLong(tid.getId());
+        raf.writeLong(prevRecord(tid));
+        raf.writeLong(System.currentTimeMillis());
         raf.writeLong(currentOffset);
+        logged(tid, currentOffset);
         currentOffset = raf.getFilePointer();
+        WalMetrics metrics = Database.getWalMetrics();
+        metrics.addCommitPhase(WalMetrics.LOG_APPEND, System.nanoTime() - start);
         force();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
+        metrics.transactionLogged(tidToBytesLogged.remove(tid.getId()));
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -199,93 +427,132 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
+        long start = System.nanoTime();
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           previous record offset of this transaction
            before page data (see writePageData)
            after page data
            start offset
         */
         raf.writeInt(UPDATE_RECORD);
         raf.writeLong(tid.getId());
+        raf.writeLong(prevRecord(tid));
 
         writePageData(raf,before);
         writePageData(raf,after);
         raf.writeLong(currentOffset);
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        logged(tid, currentOffset);
         currentOffset = raf.getFilePointer();
+        Database.getWalMetrics().addCommitPhase(WalMetrics.LOG_APPEND, System.nanoTime() - start);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    // counts the bytes of the record tid just appended at start
+    private void logged(TransactionId tid, long start) throws IOException {
+        long bytes = raf.getFilePointer() - start;
+        tidToBytesLogged.merge(tid.getId(), bytes, Long::sum);
+        Database.getWalMetrics().bytesLogged(bytes);
+    }
+
+    /** Returns the offset of the last record written by tid, or
+        NO_PREV_RECORD if it has not written one since it began. */
+    private long prevRecord(TransactionId tid) {
+        Long last = tidToLastLogRecord.get(tid.getId());
+        return last == null ? NO_PREV_RECORD : last;
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        // page type tag
+        // table id
+        // page number
+        // page data length
+        // page data
+
+        raf.writeByte(pageTag(p));
+        raf.writeInt(pid.getTableId());
+        raf.writeInt(pid.getPageNumber());
+        ByteBuffer pageData = PageBuffers.get();
+        p.writePageData(pageData);
+        raf.writeInt(pageData.position());
+        raf.write(pageData.array(), 0, pageData.position());
+        //        Debug.log ("WROTE PAGE DATA, TAG = " + pageTag(p) + ", table = " +  pid.getTableId() + ", page = " + pid.getPageNumber());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        byte tag = raf.readByte();
+        int tableId = raf.readInt();
+        int pgNo = raf.readInt();
+        int pageSize = raf.readInt();
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        //            Debug.log("READ PAGE OF TYPE " + tag + ", table = " + tableId + ", page = " + pgNo);
+        return newPage(tag, tableId, pgNo, pageData);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Returns the page-type tag under which p is serialized in the log */
+    static byte pageTag(Page p) throws IOException {
+        if (p instanceof HeapPage) {
+            return HEAP_PAGE;
+        } else if (p instanceof BTreeRootPtrPage) {
+            return BTREE_ROOT_PTR_PAGE;
+        } else if (p instanceof BTreeInternalPage) {
+            return BTREE_INTERNAL_PAGE;
+        } else if (p instanceof BTreeLeafPage) {
+            return BTREE_LEAF_PAGE;
+        } else if (p instanceof BTreeHeaderPage) {
+            return BTREE_HEADER_PAGE;
+        } else if (p instanceof SlottedPage) {
+            return SLOTTED_PAGE;
+        } else if (p instanceof PaxPage) {
+            return PAX_PAGE;
+        } else if (p instanceof HashMetaPage) {
+            return HASH_META_PAGE;
+        } else if (p instanceof HashBucketPage) {
+            return HASH_BUCKET_PAGE;
+        }
+        throw new IOException("no log page type for " + p.getClass().getName());
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Reconstructs a page from its page-type tag, id and data */
+    static Page newPage(byte tag, int tableId, int pgNo, byte[] data) throws IOException {
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(tableId, pgNo), data);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage(new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR), data);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage(new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL), data, keyField(tableId));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage(new BTreePageId(tableId, pgNo, BTreePageId.LEAF), data, keyField(tableId));
+        case BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage(new BTreePageId(tableId, pgNo, BTreePageId.HEADER), data);
+        case SLOTTED_PAGE:
+            return new SlottedPage(new HeapPageId(tableId, pgNo), data);
+        case PAX_PAGE:
+            return new PaxPage(new HeapPageId(tableId, pgNo), data);
+        case HASH_META_PAGE:
+            return new HashMetaPage(new HashPageId(tableId, pgNo), data);
+        case HASH_BUCKET_PAGE:
+            return new HashBucketPage(new HashPageId(tableId, pgNo), data);
+        default:
+            throw new IOException("unknown log page type " + tag);
         }
-        return newPage;
+    }
 
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -302,8 +569,11 @@ public class LogFile {
         preAppend();
         raf.writeInt(BEGIN_RECORD);
         raf.writeLong(tid.getId());
+        raf.writeLong(NO_PREV_RECORD);
         raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        logged(tid, currentOffset);
         currentOffset = raf.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
@@ -311,6 +581,7 @@ public class LogFile {
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
+        long start = System.nanoTime();
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
@@ -324,6 +595,7 @@ public class LogFile {
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
+                raf.writeLong(NO_PREV_RECORD);
 
                 //write list of outstanding transactions
                 raf.writeInt(keys.size());
@@ -343,17 +615,43 @@ public class LogFile {
                 raf.seek(endCpOffset);
                 raf.writeLong(currentOffset);
                 currentOffset = raf.getFilePointer();
+                Database.getWalMetrics().bytesLogged(currentOffset - startCpOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
 
         logTruncate();
+        Database.getWalMetrics().checkpointed(System.nanoTime() - start);
+    }
+
+    /** Write a REBUILD record for a table, and force the log to disk.
+        Must be called once no live transaction has logged pages of the
+        table, and before the file of the table is replaced: the images
+        logged before the record are not applied to the table anymore,
+        whether or not the file was replaced before a crash.
+
+        @param tableId The table whose file is replaced
+    */
+    public synchronized void logRebuild(int tableId) throws IOException {
+        preAppend();
+        Debug.log("REBUILD " + tableId);
+        raf.writeInt(REBUILD_RECORD);
+        raf.writeLong(-1); // no tid
+        raf.writeLong(NO_PREV_RECORD);
+        raf.writeInt(tableId);
+        raf.writeLong(currentOffset);
+        long start = currentOffset;
+        currentOffset = raf.getFilePointer();
+        Database.getWalMetrics().bytesLogged(currentOffset - start);
+        force();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        // records before minLogRecord are about to be dropped
+        archive();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -364,6 +662,7 @@ public class LogFile {
             int cpType = raf.readInt();
             @SuppressWarnings("unused")
             long cpTid = raf.readLong();
+            raf.readLong(); // prev record
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
@@ -389,17 +688,25 @@ public class LogFile {
 
         raf.seek(minLogRecord);
 
+        // records written before minLogRecord belong to finished
+        // transactions, so their prev-record pointers are never followed
+        Map<Long,Long> newOffsets = new HashMap<>();
+
         //have to rewrite log records since offsets are different after truncation
         while (true) {
             try {
+                long oldStart = raf.getFilePointer();
                 int type = raf.readInt();
                 long record_tid = raf.readLong();
+                long prev = raf.readLong();
                 long newStart = logNew.getFilePointer();
+                newOffsets.put(oldStart, newStart);
 
                 Debug.log("NEW START = " + newStart);
 
                 logNew.writeInt(type);
                 logNew.writeLong(record_tid);
+                logNew.writeLong(newOffsets.getOrDefault(prev, NO_PREV_RECORD));
 
                 switch (type) {
                 case UPDATE_RECORD:
@@ -419,10 +726,19 @@ public class LogFile {
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
                     break;
+                case COMMIT_RECORD:
+                    logNew.writeLong(raf.readLong());
+                    break;
+                case REBUILD_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    break;
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
                 }
+                if (tidToLastLogRecord.containsKey(record_tid)) {
+                    tidToLastLogRecord.put(record_tid, newStart);
+                }
 
                 //all xactions finish with a pointer
                 logNew.writeLong(newStart);
@@ -443,9 +759,127 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        archivedOffset = currentOffset;
+        // only after the new log is in place, so that a reader that sees
+        // the new generation also sees the new log
+        rebase(baseLsn + (minLogRecord - LONG_SIZE));
         //print();
     }
 
+    /** Start copying the records of this log into WAL segments in
+        archiveDir.  Archiving starts at the first record of the oldest
+        live transaction, so that the archive holds every record needed
+        to undo transactions that are running now.  The LSNs of the new
+        records continue after the segments already in archiveDir.
+
+        @param archiveDir The directory to write WAL segments to
+        @return The LSN of the first record that will be archived
+    */
+    public synchronized long startArchiving(File archiveDir) throws IOException {
+        if (!archiveDir.isDirectory() && !archiveDir.mkdirs()) {
+            throw new IOException("cannot create archive directory " + archiveDir);
+        }
+        this.archiveDir = archiveDir;
+        archiveLsn = endOfArchive(archiveDir);
+        archivedOffset = currentOffset < 0 ? LONG_SIZE : currentOffset;
+        for (long first : tidToFirstLogRecord.values()) {
+            archivedOffset = Math.min(archivedOffset, first);
+        }
+        return archiveLsn;
+    }
+
+    /** Stop archiving records. */
+    public synchronized void stopArchiving() {
+        archiveDir = null;
+    }
+
+    /** Copy the records written since the last call into a new WAL
+        segment of the archive.  Does nothing when archiving is off.
+
+        @return The LSN just past the last archived record, or -1 if
+        archiving is off
+    */
+    public synchronized long archive() throws IOException {
+        if (archiveDir == null) {
+            return -1;
+        }
+        long end = currentOffset < 0 ? LONG_SIZE : currentOffset;
+        if (end > archivedOffset) {
+            byte[] records = new byte[(int) (end - archivedOffset)];
+            long pos = raf.getFilePointer();
+            raf.seek(archivedOffset);
+            raf.readFully(records);
+            raf.seek(pos);
+
+            File segment = segmentFile(archiveDir, archiveLsn);
+            try (FileOutputStream out = new FileOutputStream(segment)) {
+                out.write(records);
+                out.getFD().sync();
+            }
+            archiveLsn += records.length;
+            archivedOffset = end;
+        }
+        return archiveLsn;
+    }
+
+    /** Archive every record written so far and return the LSN of the
+        first record of the oldest live transaction, or of the next
+        record if no transaction is live.  Replaying the archive from
+        this LSN sees every update of the live transactions.
+
+        @throws IOException if archiving is off
+    */
+    public synchronized long oldestLiveLsn() throws IOException {
+        if (archive() < 0) {
+            throw new IOException("archiving is not enabled");
+        }
+        long oldest = archivedOffset;
+        for (long first : tidToFirstLogRecord.values()) {
+            oldest = Math.min(oldest, first);
+        }
+        // the archive holds every record of the log before archivedOffset
+        // at the same distance before archiveLsn, including records that
+        // were rewritten by logTruncate
+        return archiveLsn - (archivedOffset - oldest);
+    }
+
+    /** @return the LSN the next record will have in the archive, or -1
+        if archiving is off */
+    public synchronized long getArchiveLsn() {
+        if (archiveDir == null) {
+            return -1;
+        }
+        return archiveLsn + ((currentOffset < 0 ? LONG_SIZE : currentOffset) - archivedOffset);
+    }
+
+    static File segmentFile(File archiveDir, long startLsn) {
+        return new File(archiveDir, String.format("%020d", startLsn) + SEGMENT_SUFFIX);
+    }
+
+    /** @return the WAL segments in archiveDir, ordered by LSN */
+    static File[] segments(File archiveDir) {
+        File[] segments = archiveDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, Comparator.comparingLong(LogFile::segmentLsn));
+        return segments;
+    }
+
+    static long segmentLsn(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static long endOfArchive(File archiveDir) {
+        File[] segments = segments(archiveDir);
+        if (segments.length == 0) {
+            return 0;
+        }
+        File last = segments[segments.length - 1];
+        return segmentLsn(last) + last.length();
+    }
+
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
@@ -460,53 +894,31 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
-                //移动到日志开始的地方
-                raf.seek(firstLogRecord);
-                Set<PageId> set = new HashSet<>();
-                while (true) {
-                    try {
-                        //Each log record begins with an integer type and a long integer
-                        //transaction id.
-                        int type = raf.readInt();
-                        long txid = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD :
-                                //UPDATE RECORDS consist of two entries, a before image and an
-                                //after image.  These images are serialized Page objects, and can be
-                                //accessed with the LogFile.readPageData() and LogFile.writePageData()
-                                //methods.  See LogFile.print() for an example.
-                                Page beforeImage = readPageData(raf);
-                                Page afterImage = readPageData(raf);
-                                PageId pageId = beforeImage.getId();
-                                if (txid == tid.getId() && !set.contains(pageId)) {
-                                    set.add(pageId);
-                                    Database.getBufferPool().discardPage(pageId);
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
-                                }
-                                break;
-                            case CHECKPOINT_RECORD:
-                                //CHECKPOINT records consist of active transactions at the time
-                                //the checkpoint was taken and their first log record on disk.  The format
-                                //of the record is an integer count of the number of transactions, as well
-                                //as a long integer transaction id and a long integer first record offset
-                                //for each active transaction.
-                                int txCnt = raf.readInt();
-                                while (txCnt -- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-                            default:
-                                //others
-                                break;
-                        }
-                        //Each log record ends with a long integer file offset representing the position in the log file where the record began.
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
+                Long lastLogRecord = tidToLastLogRecord.get(tid.getId());
+                if (lastLogRecord == null) {
+                    throw new NoSuchElementException("no live transaction " + tid.getId());
+                }
+                //沿着该事务自己的prev指针从后往前走，只读取它自己的日志记录
+                //越早的before-image越接近事务开始前的状态，所以后读到的覆盖先读到的
+                Map<PageId, Page> beforeImages = new HashMap<>();
+                long offset = lastLogRecord;
+                while (offset != NO_PREV_RECORD) {
+                    raf.seek(offset);
+                    int type = raf.readInt();
+                    raf.readLong(); // tid
+                    long prev = raf.readLong();
+                    if (type == UPDATE_RECORD) {
+                        Page beforeImage = readPageData(raf);
+                        beforeImages.put(beforeImage.getId(), beforeImage);
                     }
+                    offset = prev;
                 }
+                for (Page beforeImage : beforeImages.values()) {
+                    PageId pageId = beforeImage.getId();
+                    Database.getBufferPool().discardPage(pageId);
+                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
+                }
+                raf.seek(currentOffset);
             }
         }
     }
@@ -528,8 +940,11 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Since every logged page is written again from its full image,
+        this also repairs pages torn by the crash (see PageChecksums).
     */
     public void recover() throws IOException {
+        long start = System.nanoTime();
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
@@ -549,6 +964,7 @@ public class LogFile {
                     try {
                         int type = raf.readInt();
                         long txid = raf.readLong();
+                        raf.readLong(); // prev record
                         switch (type) {
                             case UPDATE_RECORD:
                                 Page beforeImage = readPageData(raf);
@@ -562,6 +978,7 @@ public class LogFile {
                                 break;
                             case COMMIT_RECORD:
                                 committedId.add(txid);
+                                raf.readLong(); // commit time
                                 break;
                             case CHECKPOINT_RECORD:
                                 int numTxs = raf.readInt();
@@ -570,6 +987,16 @@ public class LogFile {
                                     raf.readLong();
                                 }
                                 break;
+                            case REBUILD_RECORD:
+                                //之前记录的该表的页都属于被替换掉的旧文件
+                                int tableId = raf.readInt();
+                                for (List<Page> pages : beforePages.values()) {
+                                    pages.removeIf(p -> p.getId().getTableId() == tableId);
+                                }
+                                for (List<Page> pages : afterPages.values()) {
+                                    pages.removeIf(p -> p.getId().getTableId() == tableId);
+                                }
+                                break;
                             default:
                                 break;
                         }
@@ -602,6 +1029,7 @@ public class LogFile {
                 }
             }
          }
+        Database.getWalMetrics().recovered(System.nanoTime() - start);
     }
 
     /** Print out a human readable represenation of the log */
@@ -619,6 +1047,7 @@ public class LogFile {
 
                 System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
                 System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println(raf.getFilePointer() + ": PREV RECORD OFFSET: " + raf.readLong());
 
                 switch (cpType) {
                 case BEGIN_RECORD:
@@ -631,6 +1060,7 @@ public class LogFile {
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
+                    System.out.println(raf.getFilePointer() + ": COMMIT TIME: " + raf.readLong());
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
 
@@ -647,23 +1077,17 @@ public class LogFile {
                     }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case REBUILD_RECORD:
+                    System.out.println(" (REBUILD)");
+                    System.out.println(raf.getFilePointer() + ": TABLE ID: " + raf.readInt());
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    printPageData("before");
+                    printPageData("after");
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
@@ -680,8 +1104,22 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
+    // prints the fields of a page image written by writePageData
+    private void printPageData(String image) throws IOException {
+        System.out.println(raf.getFilePointer() + ": " + image + " image page type " + raf.readByte());
+        System.out.println(raf.getFilePointer() + ": " + image + " image table id " + raf.readInt());
+        System.out.println(raf.getFilePointer() + ": " + image + " image page number " + raf.readInt());
+        int pageSize = raf.readInt();
+        System.out.println((raf.getFilePointer() - INT_SIZE) + ": " + image + " image page size " + pageSize);
+        long start = raf.getFilePointer();
+        raf.seek(start + pageSize);
+        System.out.println(start + " TO " + raf.getFilePointer() + ": page data");
+    }
+
     public  synchronized void force() throws IOException {
+        long start = System.nanoTime();
         raf.getChannel().force(true);
+        Database.getWalMetrics().logForced(System.nanoTime() - start);
     }
 
 }
@@ -0,0 +1,396 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.HashFile;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * OnlineBackup takes backups of all the tables in the catalog while
+ * transactions keep running, and restores them to a chosen point in time.
+ * <p>
+ * A backup consists of a base copy of every table file and the WAL segments
+ * archived by {@link LogFile#startArchiving}.  The base copy is taken one page
+ * at a time while holding the BufferPool lock, so no page is copied while it is
+ * being written, but different pages may reflect different points in time.
+ * The backup therefore records two LSNs in its manifest: the LSN of the first
+ * record of the oldest transaction that was live when the backup started, from
+ * which restore replays the archive, and the LSN at which the base copy was
+ * complete.  Replaying the archive at least up to the second LSN makes the
+ * restored tables consistent.  The pages of a {@link CompressedHeapFile} are
+ * not at fixed offsets, so a compressed table is copied whole instead, and its
+ * replayed pages are appended to the copy as new blocks.
+ * <p>
+ * Restore copies the base files into a target directory and replays the
+ * archive like recovery does: the after images of transactions that committed
+ * before the stopping point are installed in log order, and the before images
+ * of transactions that aborted or had not committed by then are put back.
+ * Pages are written straight into the restored files, so restore does not need
+ * a catalog.
+ */
+public class OnlineBackup {
+
+    static final String MANIFEST = "backup.properties";
+    static final String BASE_DIR = "base";
+
+    /**
+     * Takes an online backup of every table in the catalog.  Starts archiving
+     * the log into archiveDir if it is not archived yet; the archive must be
+     * kept (and {@link LogFile#archive} called) until the backup is restored.
+     *
+     * @param backupDir the directory to write the base copy and manifest to
+     * @param archiveDir the directory the log is archived to
+     * @return the LSN from which the backup can be restored consistently
+     */
+    public static long backup(File backupDir, File archiveDir) throws IOException {
+        LogFile log = Database.getLogFile();
+        File baseDir = new File(backupDir, BASE_DIR);
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new IOException("cannot create backup directory " + baseDir);
+        }
+
+        Properties manifest = new Properties();
+        long startLsn;
+        synchronized (Database.getBufferPool()) {
+            if (log.getArchiveLsn() < 0) {
+                log.startArchiving(archiveDir);
+            }
+            startLsn = log.oldestLiveLsn();
+        }
+        manifest.setProperty("start.lsn", Long.toString(startLsn));
+        manifest.setProperty("start.time", Long.toString(System.currentTimeMillis()));
+        manifest.setProperty("archive.dir", archiveDir.getAbsolutePath());
+
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> it = catalog.tableIdIterator();
+        int numTables = 0;
+        while (it.hasNext()) {
+            int tableId = it.next();
+            DbFile dbFile = catalog.getDatabaseFile(tableId);
+            File file = tableFile(dbFile);
+            if (dbFile instanceof CompressedHeapFile) {
+                // restore appends blocks, which it compresses like the table
+                synchronized (Database.getBufferPool()) {
+                    ((CompressedHeapFile) dbFile).copyTo(new File(baseDir, file.getName()));
+                }
+                manifest.setProperty("compressed." + tableId, types(dbFile.getTupleDesc()));
+            } else {
+                copyPages(file, new File(baseDir, file.getName()),
+                        dbFile instanceof BTreeFile ? BTreeRootPtrPage.getPageSize() : 0);
+            }
+            manifest.setProperty("table." + tableId, file.getName());
+            numTables++;
+        }
+
+        long endLsn = log.archive();
+        manifest.setProperty("end.lsn", Long.toString(endLsn));
+        manifest.setProperty("end.time", Long.toString(System.currentTimeMillis()));
+        try (OutputStream out = new FileOutputStream(new File(backupDir, MANIFEST))) {
+            manifest.store(out, "SimpleDb online backup");
+        }
+        Debug.log("OnlineBackup: backup of %d tables, LSN %d to %d", numTables, startLsn, endLsn);
+        return endLsn;
+    }
+
+    /**
+     * Restores a backup into targetDir, replaying the archived log up to (not
+     * including) the record at stopLsn, and stopping before the first
+     * transaction committed after stopTime.  Pass Long.MAX_VALUE for either
+     * bound to replay all archived records.
+     *
+     * @param backupDir a directory written by {@link #backup}
+     * @param targetDir the directory to restore the table files into
+     * @param stopLsn the LSN at which replay stops
+     * @param stopTime the commit time, in milliseconds since the epoch, after
+     *            which replay stops
+     * @return the LSN at which replay stopped
+     * @throws IllegalArgumentException if stopLsn is before the LSN at which
+     *            the backup becomes consistent
+     * @throws IOException if replay reaches the REBUILD record of a restored
+     *            table, whose new file cannot be redone from the archive
+     */
+    public static long restore(File backupDir, File targetDir, long stopLsn, long stopTime)
+            throws IOException {
+        Properties manifest = new Properties();
+        try (InputStream in = new FileInputStream(new File(backupDir, MANIFEST))) {
+            manifest.load(in);
+        }
+        long startLsn = Long.parseLong(manifest.getProperty("start.lsn"));
+        long endLsn = Long.parseLong(manifest.getProperty("end.lsn"));
+        if (stopLsn < endLsn) {
+            throw new IllegalArgumentException("backup is only consistent from LSN " + endLsn);
+        }
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            throw new IOException("cannot create restore directory " + targetDir);
+        }
+
+        Map<Integer, RandomAccessFile> files = new HashMap<>();
+        Map<Integer, TupleDesc> compressed = new HashMap<>();
+        try {
+            for (String key : manifest.stringPropertyNames()) {
+                if (key.startsWith("compressed.")) {
+                    compressed.put(Integer.parseInt(key.substring("compressed.".length())),
+                            tupleDesc(manifest.getProperty(key)));
+                }
+                if (!key.startsWith("table.")) {
+                    continue;
+                }
+                String name = manifest.getProperty(key);
+                File restored = new File(targetDir, name);
+                Files.copy(new File(new File(backupDir, BASE_DIR), name).toPath(), restored.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                // the pages are written without their DbFile
+                PageChecksums.discard(restored);
+                files.put(Integer.parseInt(key.substring("table.".length())), new RandomAccessFile(restored, "rw"));
+            }
+            return replay(new File(manifest.getProperty("archive.dir")), files, compressed,
+                    startLsn, endLsn, stopLsn, stopTime);
+        } finally {
+            for (RandomAccessFile f : files.values()) {
+                f.close();
+            }
+        }
+    }
+
+    static File tableFile(DbFile dbFile) throws IOException {
+        if (dbFile instanceof HeapFile) {
+            return ((HeapFile) dbFile).getFile();
+        } else if (dbFile instanceof BTreeFile) {
+            return ((BTreeFile) dbFile).getFile();
+        } else if (dbFile instanceof HashFile) {
+            return ((HashFile) dbFile).getFile();
+        }
+        throw new IOException("cannot back up " + dbFile.getClass().getName());
+    }
+
+    // the types of td as a comma-separated list of Type names
+    private static String types(TupleDesc td) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < td.numFields(); i++) {
+            sb.append(i == 0 ? "" : ",").append(td.getFieldType(i).name());
+        }
+        return sb.toString();
+    }
+
+    private static TupleDesc tupleDesc(String types) {
+        String[] names = types.split(",");
+        Type[] typeAr = new Type[names.length];
+        for (int i = 0; i < names.length; i++) {
+            typeAr[i] = Type.valueOf(names[i]);
+        }
+        return new TupleDesc(typeAr);
+    }
+
+    // copies source one page at a time, each under the BufferPool lock; the
+    // first page of a B+ tree file is the root pointer page
+    private static void copyPages(File source, File target, int firstPageSize) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] page = new byte[pageSize];
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             FileOutputStream out = new FileOutputStream(target)) {
+            long pos = 0;
+            while (true) {
+                int len = pos == 0 && firstPageSize > 0 ? firstPageSize : pageSize;
+                int read;
+                synchronized (Database.getBufferPool()) {
+                    if (pos + len > in.length()) {
+                        break;
+                    }
+                    in.seek(pos);
+                    in.readFully(page, 0, len);
+                    read = len;
+                }
+                out.write(page, 0, read);
+                pos += read;
+            }
+            out.getFD().sync();
+        }
+    }
+
+    private static class Update {
+        final PageImage before;
+        final PageImage after;
+
+        Update(PageImage before, PageImage after) {
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private static class PageImage {
+        final byte tag;
+        final int tableId;
+        final int pgNo;
+        final byte[] data;
+
+        PageImage(DataInputStream in) throws IOException {
+            tag = in.readByte();
+            tableId = in.readInt();
+            pgNo = in.readInt();
+            data = new byte[in.readInt()];
+            in.readFully(data);
+        }
+
+        int size() {
+            return 1 + 3 * LogFile.INT_SIZE + data.length;
+        }
+    }
+
+    private static long replay(File archiveDir, Map<Integer, RandomAccessFile> files,
+                               Map<Integer, TupleDesc> compressed,
+                               long startLsn, long endLsn, long stopLsn, long stopTime)
+            throws IOException {
+        Map<Long, List<Update>> pending = new HashMap<>();
+        long lsn = startLsn;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(openArchive(archiveDir, startLsn)))) {
+            while (lsn < stopLsn) {
+                long recordLsn = lsn;
+                int type;
+                try {
+                    type = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long tid = in.readLong();
+                in.readLong(); // prev record
+                lsn += LogFile.INT_SIZE + 3 * LogFile.LONG_SIZE;
+                switch (type) {
+                case LogFile.UPDATE_RECORD:
+                    PageImage before = new PageImage(in);
+                    PageImage after = new PageImage(in);
+                    lsn += before.size() + after.size();
+                    pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(new Update(before, after));
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    long commitTime = in.readLong();
+                    lsn += LogFile.LONG_SIZE;
+                    if (commitTime > stopTime && recordLsn >= endLsn) {
+                        return finish(files, compressed, pending, recordLsn);
+                    }
+                    List<Update> committed = pending.remove(tid);
+                    if (committed != null) {
+                        for (Update u : committed) {
+                            writePage(files, compressed, u.after);
+                        }
+                    }
+                    break;
+                case LogFile.ABORT_RECORD:
+                    undo(files, compressed, pending.remove(tid));
+                    break;
+                case LogFile.CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    in.skipBytes(numXactions * 2 * LogFile.LONG_SIZE);
+                    lsn += LogFile.INT_SIZE + numXactions * 2L * LogFile.LONG_SIZE;
+                    break;
+                case LogFile.REBUILD_RECORD:
+                    int tableId = in.readInt();
+                    lsn += LogFile.INT_SIZE;
+                    if (files.containsKey(tableId)) {
+                        throw new IOException("table " + tableId + " was rebuilt at LSN " + recordLsn
+                                + "; restore it from a backup taken after that");
+                    }
+                    break;
+                default:
+                    break;
+                }
+                in.readLong(); // record start
+            }
+        }
+        return finish(files, compressed, pending, lsn);
+    }
+
+    // puts back the before images of the transactions that did not commit
+    private static long finish(Map<Integer, RandomAccessFile> files, Map<Integer, TupleDesc> compressed,
+                               Map<Long, List<Update>> pending, long lsn)
+            throws IOException {
+        for (List<Update> updates : pending.values()) {
+            undo(files, compressed, updates);
+        }
+        return lsn;
+    }
+
+    // writes the before images newest first, so each page ends up with the
+    // image it had before the transaction first changed it
+    private static void undo(Map<Integer, RandomAccessFile> files, Map<Integer, TupleDesc> compressed,
+                             List<Update> updates) throws IOException {
+        if (updates == null) {
+            return;
+        }
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            writePage(files, compressed, updates.get(i).before);
+        }
+    }
+
+    private static void writePage(Map<Integer, RandomAccessFile> files, Map<Integer, TupleDesc> compressed,
+                                  PageImage image) throws IOException {
+        RandomAccessFile f = files.get(image.tableId);
+        if (f == null) {
+            return;
+        }
+        TupleDesc td = compressed.get(image.tableId);
+        if (td != null) {
+            // the last block of a page is its current version; pages
+            // appended empty after the base copy are not in the log
+            for (int pgNo = CompressedHeapFile.readBlocks(f).size(); pgNo < image.pgNo; pgNo++) {
+                CompressedHeapFile.appendBlock(f, td, pgNo, HeapPage.createEmptyPageData());
+            }
+            CompressedHeapFile.appendBlock(f, td, image.pgNo, image.data);
+            return;
+        }
+        long offset;
+        switch (image.tag) {
+        case LogFile.HEAP_PAGE:
+        case LogFile.SLOTTED_PAGE:
+        case LogFile.PAX_PAGE:
+        case LogFile.HASH_META_PAGE:
+        case LogFile.HASH_BUCKET_PAGE:
+            offset = (long) image.pgNo * image.data.length;
+            break;
+        case LogFile.BTREE_ROOT_PTR_PAGE:
+            offset = 0;
+            break;
+        default:
+            offset = BTreeRootPtrPage.getPageSize() + (long) (image.pgNo - 1) * image.data.length;
+            break;
+        }
+        f.seek(offset);
+        f.write(image.data);
+    }
+
+    // the archived records from startLsn on, across segment files
+    private static InputStream openArchive(File archiveDir, long startLsn) throws IOException {
+        Vector<InputStream> streams = new Vector<>();
+        long next = -1;
+        for (File segment : LogFile.segments(archiveDir)) {
+            long segmentLsn = LogFile.segmentLsn(segment);
+            if (segmentLsn + segment.length() <= startLsn) {
+                continue;
+            }
+            if (next >= 0 && segmentLsn != next) {
+                throw new IOException("WAL archive is missing records from LSN " + next);
+            }
+            if (next < 0 && segmentLsn > startLsn) {
+                throw new IOException("WAL archive is missing records from LSN " + startLsn);
+            }
+            InputStream in = new FileInputStream(segment);
+            if (next < 0) {
+                long skip = startLsn - segmentLsn;
+                if (in.skip(skip) != skip) {
+                    in.close();
+                    throw new IOException("cannot seek to LSN " + startLsn + " in " + segment);
+                }
+            }
+            streams.add(in);
+            next = segmentLsn + segment.length();
+        }
+        return new SequenceInputStream(streams.elements());
+    }
+}
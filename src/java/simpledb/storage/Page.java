@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -9,8 +11,8 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, every page class MUST have a page-type tag in
+ * LogFile, which reconstructs logged page images from their tag, id and data.
  */
 public interface Page {
 
@@ -48,14 +50,29 @@ public interface Page {
 
   byte[] getPageData();
 
+  /**
+   * Puts the bytes returned by {@link #getPageData} into buf at its current
+   * position.  Pages override this to serialize without allocating; the
+   * caller typically passes a buffer from {@link PageBuffers#get}.
+   *
+   * @param buf The buffer to write to, with room for the page
+   */
+  default void writePageData(ByteBuffer buf) {
+      buf.put(getPageData());
+  }
+
     /** Provide a representation of this page before any modifications were made
-        to it.  Used by recovery.
+        to it.  Used by recovery.  Until setBeforeImage is first called, the
+        page is unchanged since it was read and this returns its current
+        contents.
     */
     Page getBeforeImage();
 
     /*
-     * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * copy current content to the before image.  The BufferPool calls this
+     * when a transaction first fetches the page for writing, and after it
+     * flushes a committed page, so pages that are only read never copy
+     * their contents.
      */
     void setBeforeImage();
 }
@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PageBuffers hands out a reusable page-sized ByteBuffer per thread, so that
+ * pages can be serialized with {@link Page#writePageData} for writing to a
+ * table file or the log without allocating a new array each time.
+ */
+public class PageBuffers {
+
+    private static final byte[] ZEROES = new byte[1024];
+
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+
+    /**
+     * Returns this thread's page buffer, cleared.  The buffer is only valid
+     * until the next call to get() on the same thread.
+     */
+    public static ByteBuffer get() {
+        ByteBuffer buf = buffers.get();
+        if (buf == null || buf.capacity() != BufferPool.getPageSize()) {
+            buf = ByteBuffer.allocate(BufferPool.getPageSize());
+            buffers.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /** Puts n zero bytes into buf */
+    public static void putZeroes(ByteBuffer buf, int n) {
+        while (n > 0) {
+            int len = Math.min(n, ZEROES.length);
+            buf.put(ZEROES, 0, len);
+            n -= len;
+        }
+    }
+
+    /**
+     * Returns a copy of the bytes of buf up to its position.  Used by
+     * getPageData implementations that build on writePageData.
+     */
+    public static byte[] toArray(ByteBuffer buf) {
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+}
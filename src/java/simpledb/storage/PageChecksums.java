@@ -0,0 +1,174 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * PageChecksums keeps a CRC32C checksum of every page of a HeapFile or
+ * BTreeFile, so that a page torn by a crash in the middle of its write is
+ * detected when it is read back instead of being parsed as garbage tuples.
+ * <p>
+ * The checksums are stored next to the data file, in a file with the suffix
+ * {@value #SUFFIX}; keeping them out of the pages leaves the page formats and
+ * capacities unchanged.  Each page has an entry of two ints, the checksums of
+ * its previous and of its current version.  The entry is written before the
+ * page, and a page passes if it matches either checksum: a crash before or
+ * after the page write leaves a whole version of the page that passes, and
+ * only a page cut short in the middle of its write fails.  A missing entry,
+ * or a checksum of 0, means "unknown" and is not checked: files written by
+ * the encoders and pages written before checksums existed are accepted as
+ * they are, and a page whose previous version was unknown is checked from
+ * its next write on.
+ * <p>
+ * Torn pages are repaired by recovery: every page written to disk is first
+ * logged with its full after-image (see {@link BufferPool#flushPage}), and
+ * {@link LogFile#recover} writes the logged image of every such page again,
+ * which also rewrites its checksum.
+ *
+ * @see HeapFile#readPage
+ */
+public class PageChecksums {
+
+    public static final String SUFFIX = ".crc";
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+    private int[] sums = null; // previous and current checksum of each page, loaded lazily, protected by this
+    private volatile boolean verifying = true;
+
+    /**
+     * Create the checksums of the given data file.
+     *
+     * @param dataFile the file whose pages are checksummed
+     */
+    public PageChecksums(File dataFile) {
+        this.file = new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /** @return the file the checksums are stored in */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Deletes the checksums of a data file that is about to be written from
+     * scratch by something other than its DbFile, such as an encoder.
+     */
+    public static void discard(File dataFile) {
+        new File(dataFile.getPath() + SUFFIX).delete();
+    }
+
+    /**
+     * Turns the checking of pages read from disk on or off.  Checksums are
+     * still recorded while checking is off.
+     */
+    public void setVerifying(boolean verifying) {
+        this.verifying = verifying;
+    }
+
+    /** @return the CRC32C checksum of len bytes of data starting at off */
+    public static int checksum(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private int[] sums() throws IOException {
+        if (sums == null) {
+            sums = load();
+        }
+        return sums;
+    }
+
+    private int[] load() throws IOException {
+        if (!file.exists()) {
+            return new int[0];
+        }
+        byte[] data = new byte[(int) (file.length() / ENTRY_SIZE * ENTRY_SIZE)];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        int[] loaded = new int[data.length / 4];
+        ByteBuffer.wrap(data).asIntBuffer().get(loaded);
+        return loaded;
+    }
+
+    private static boolean matches(int[] sums, int pgNo, int sum) {
+        if (2 * pgNo >= sums.length) {
+            return true;
+        }
+        int previous = sums[2 * pgNo];
+        int current = sums[2 * pgNo + 1];
+        return current == 0 || current == sum || previous == 0 || previous == sum;
+    }
+
+    /**
+     * Checks the bytes of page pgNo read from disk against its checksums.
+     *
+     * @return false if the page has checksums and the bytes match neither
+     */
+    public boolean verify(int pgNo, byte[] data, int off, int len) throws IOException {
+        if (!verifying) {
+            return true;
+        }
+        int sum = checksum(data, off, len);
+        synchronized (this) {
+            if (matches(sums(), pgNo, sum)) {
+                return true;
+            }
+            // another DbFile object of the same file may have written the page
+            this.sums = load();
+            return matches(this.sums, pgNo, sum);
+        }
+    }
+
+    /**
+     * Records the checksum of page pgNo, which is about to be written over
+     * its previous version.
+     */
+    public synchronized void update(int pgNo, byte[] data, int off, int len) throws IOException {
+        int[] sums = sums();
+        int previous = 2 * pgNo + 1 < sums.length ? sums[2 * pgNo + 1] : 0;
+        store(pgNo, new int[] { previous, checksum(data, off, len) });
+    }
+
+    /**
+     * Records the checksum of page pgNo, which is about to be appended to
+     * the file and has no previous version.
+     */
+    public void append(int pgNo, byte[] data, int off, int len) throws IOException {
+        appendPages(pgNo, data, off, 1, len);
+    }
+
+    /**
+     * Records the checksums of numPages consecutive pages of pageSize bytes,
+     * the first of which is pgNo and starts at off in data, that are about to
+     * be appended to the file.
+     */
+    public void appendPages(int pgNo, byte[] data, int off, int numPages, int pageSize) throws IOException {
+        int[] pageSums = new int[2 * numPages];
+        for (int i = 0; i < numPages; i++) {
+            int sum = checksum(data, off + i * pageSize, pageSize);
+            pageSums[2 * i] = sum;
+            pageSums[2 * i + 1] = sum;
+        }
+        store(pgNo, pageSums);
+    }
+
+    private synchronized void store(int pgNo, int[] entries) throws IOException {
+        int[] sums = sums();
+        if (2 * pgNo + entries.length > sums.length) {
+            sums = this.sums = Arrays.copyOf(sums, 2 * pgNo + entries.length);
+        }
+        System.arraycopy(entries, 0, sums, 2 * pgNo, entries.length);
+        ByteBuffer buf = ByteBuffer.allocate(entries.length * 4);
+        buf.asIntBuffer().put(entries);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek((long) pgNo * ENTRY_SIZE);
+            raf.write(buf.array());
+        }
+    }
+}
@@ -4,10 +4,7 @@ package simpledb.storage;
 public interface PageId {
 
     /** Return a representation of this page id object as a collection of
-        integers (used for logging)
-
-        This class MUST have a constructor that accepts n integer parameters,
-        where n is the number of integers returned in the array from serialize.
+        integers
     */
     int[] serialize();
 
@@ -0,0 +1,318 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * ParallelHeapFileEncoder converts a delimited text file into a HeapFile,
+ * like {@link HeapFileEncoder}, using several threads.
+ * <p>
+ * The input is split into byte ranges of about {@value #CHUNK_SIZE} bytes
+ * that end on line boundaries.  A first pass over the ranges, in a
+ * ForkJoinPool, counts the records of every range, which tells each range
+ * the page and slot of its first record.  A second pass parses and encodes
+ * the ranges and writes their slots straight to their final offsets with
+ * positional FileChannel writes, so the ranges do not wait for each other.
+ * The header of a page depends only on the total number of records and is
+ * written by the range holding the first slot of the page.
+ * <p>
+ * The output is byte for byte what HeapFileEncoder produces, except that a
+ * line with the wrong number of fields or an unparsable int is reported as
+ * an IOException instead of corrupting the page, and a last line without a
+ * newline is converted.  Empty lines and carriage returns are ignored, and
+ * input bytes are taken as ISO-8859-1 characters.
+ */
+public class ParallelHeapFileEncoder {
+
+    /** the approximate number of input bytes parsed by one task */
+    public static final int CHUNK_SIZE = 8 << 20;
+
+    /**
+     * Convert the specified input text file into a binary page file, using
+     * one thread per available processor.
+     *
+     * @see HeapFileEncoder#convert(File, File, int, int, Type[], char)
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator) throws IOException {
+        convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+                Runtime.getRuntime().availableProcessors(), CHUNK_SIZE);
+    }
+
+    /**
+     * Convert the specified input text file into a binary page file.
+     *
+     * @param inFile The input file to read data from
+     * @param outFile The output file to write data to
+     * @param npagebytes The number of bytes per page in the output file
+     * @param numFields the number of fields in each input line/output tuple
+     * @param typeAr the types of the fields
+     * @param fieldSeparator the character separating the fields of a line
+     * @param parallelism the number of threads to use
+     * @param chunkSize the approximate number of input bytes parsed by one task
+     * @throws IOException if the input/output file can't be opened or a
+     *   malformed input line is encountered
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator,
+                               int parallelism, int chunkSize) throws IOException {
+        Layout layout = new Layout(npagebytes, numFields, typeAr, (byte) fieldSeparator);
+        PageChecksums.discard(outFile);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Long> bounds = split(in, chunkSize);
+            int numChunks = bounds.size() - 1;
+
+            // pass 1: count the records of every range
+            List<Callable<Long>> counters = new ArrayList<>();
+            for (int i = 0; i < numChunks; i++) {
+                long start = bounds.get(i);
+                long end = bounds.get(i + 1);
+                counters.add(() -> layout.countRecords(read(in, start, end)));
+            }
+            long[] firstRecord = new long[numChunks + 1];
+            List<Future<Long>> counts = pool.invokeAll(counters);
+            for (int i = 0; i < numChunks; i++) {
+                firstRecord[i + 1] = firstRecord[i] + get(counts.get(i));
+            }
+            long total = firstRecord[numChunks];
+
+            // an empty input still gets one empty page
+            long numPages = Math.max(1, (total + layout.nrecords - 1) / layout.nrecords);
+            out.write(ByteBuffer.allocate(1), numPages * npagebytes - 1);
+
+            // pass 2: encode every range into its slots
+            List<Callable<Void>> encoders = new ArrayList<>();
+            for (int i = 0; i < numChunks; i++) {
+                long start = bounds.get(i);
+                long end = bounds.get(i + 1);
+                long first = firstRecord[i];
+                encoders.add(() -> {
+                    layout.encode(read(in, start, end), first, total, out);
+                    return null;
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(encoders)) {
+                get(f);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("conversion of " + inFile + " was interrupted");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // the offsets at which ranges start, each just after a newline, followed
+    // by the length of the file
+    private static List<Long> split(FileChannel in, int chunkSize) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        long length = in.size();
+        bounds.add(0L);
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long pos = chunkSize;
+        while (pos < length) {
+            // find the first newline at or after pos - 1
+            long scan = pos - 1;
+            long bound = length;
+            while (scan < length && bound == length) {
+                buf.clear();
+                int n = in.read(buf, scan);
+                for (int i = 0; i < n; i++) {
+                    if (buf.get(i) == '\n') {
+                        bound = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += n;
+            }
+            if (bound >= length) {
+                break;
+            }
+            bounds.add(bound);
+            pos = bound + chunkSize;
+        }
+        bounds.add(length);
+        return bounds;
+    }
+
+    private static byte[] read(FileChannel in, long start, long end) throws IOException {
+        byte[] data = new byte[(int) (end - start)];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, start + buf.position()) < 0) {
+                throw new EOFException("input file shrank during conversion");
+            }
+        }
+        return data;
+    }
+
+    private static <T> T get(Future<T> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** the page layout of the output, and the parsing of input lines */
+    private static class Layout {
+        final int npagebytes;
+        final Type[] typeAr;
+        final byte separator;
+        final int nrecbytes;
+        final int nrecords;
+        final int nheaderbytes;
+
+        Layout(int npagebytes, int numFields, Type[] typeAr, byte separator) {
+            this.npagebytes = npagebytes;
+            this.typeAr = typeAr;
+            this.separator = separator;
+            int size = 0;
+            for (int i = 0; i < numFields; i++) {
+                size += typeAr[i].getLen();
+            }
+            this.nrecbytes = size;
+            this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+            this.nheaderbytes = (nrecords + 7) / 8;
+        }
+
+        // a line is a record if it has a character other than a carriage return
+        private static boolean isRecord(byte[] data, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (data[i] != '\r') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int lineEnd(byte[] data, int start) {
+            int end = start;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            return end;
+        }
+
+        long countRecords(byte[] data) {
+            long count = 0;
+            for (int pos = 0; pos < data.length; ) {
+                int end = lineEnd(data, pos);
+                if (isRecord(data, pos, end)) {
+                    count++;
+                }
+                pos = end + 1;
+            }
+            return count;
+        }
+
+        /**
+         * Encodes the records in data, the first of which is record number
+         * first of total, and writes them to out.
+         */
+        void encode(byte[] data, long first, long total, FileChannel out) throws IOException {
+            ByteBuffer page = ByteBuffer.allocate(npagebytes);
+            long record = first;
+            long pageNo = -1;
+            int firstSlot = 0;
+            for (int pos = 0; pos < data.length; ) {
+                int end = lineEnd(data, pos);
+                if (isRecord(data, pos, end)) {
+                    if (record / nrecords != pageNo) {
+                        writeSlots(out, page, pageNo, firstSlot);
+                        pageNo = record / nrecords;
+                        firstSlot = (int) (record % nrecords);
+                        page.clear();
+                        if (firstSlot == 0) {
+                            writeHeader(page, Math.min(nrecords, total - record));
+                        }
+                    }
+                    encodeRecord(data, pos, end, page);
+                    record++;
+                }
+                pos = end + 1;
+            }
+            writeSlots(out, page, pageNo, firstSlot);
+        }
+
+        private void writeHeader(ByteBuffer page, long count) {
+            for (int i = 0; i < nheaderbytes; i++) {
+                int bits = (int) Math.max(0, Math.min(8, count - i * 8L));
+                page.put((byte) ((1 << bits) - 1));
+            }
+        }
+
+        // writes the header (if firstSlot is 0) and slots in page to their offset
+        private void writeSlots(FileChannel out, ByteBuffer page, long pageNo, int firstSlot) throws IOException {
+            if (pageNo < 0) {
+                return;
+            }
+            long offset = pageNo * npagebytes + (firstSlot == 0 ? 0 : nheaderbytes + (long) firstSlot * nrecbytes);
+            page.flip();
+            while (page.hasRemaining()) {
+                out.write(page, offset + page.position());
+            }
+        }
+
+        private void encodeRecord(byte[] data, int start, int end, ByteBuffer page) throws IOException {
+            int field = 0;
+            int fieldStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i == end || data[i] == separator) {
+                    if (field >= typeAr.length) {
+                        throw new IOException("line has more than " + typeAr.length + " fields: " + line(data, start, end));
+                    }
+                    String s = value(data, fieldStart, i);
+                    if (typeAr[field] == Type.INT_TYPE) {
+                        try {
+                            page.putInt(Integer.parseInt(s));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("bad int " + s + " in line: " + line(data, start, end));
+                        }
+                    } else {
+                        if (s.length() > Type.STRING_LEN) {
+                            s = s.substring(0, Type.STRING_LEN);
+                        }
+                        page.putInt(s.length());
+                        for (int j = 0; j < s.length(); j++) {
+                            page.put((byte) s.charAt(j));
+                        }
+                        PageBuffers.putZeroes(page, Type.STRING_LEN - s.length());
+                    }
+                    field++;
+                    fieldStart = i + 1;
+                }
+            }
+            if (field < typeAr.length) {
+                throw new IOException("line has fewer than " + typeAr.length + " fields: " + line(data, start, end));
+            }
+        }
+
+        // the trimmed field value, without carriage returns
+        private static String value(byte[] data, int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                if (data[i] != '\r') {
+                    sb.append((char) (data[i] & 0xFF));
+                }
+            }
+            return sb.toString().trim();
+        }
+
+        private static String line(byte[] data, int start, int end) {
+            return value(data, start, end);
+        }
+    }
+}
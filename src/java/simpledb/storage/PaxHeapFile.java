@@ -0,0 +1,30 @@
+package simpledb.storage;
+
+import java.io.*;
+
+/**
+ * PaxHeapFile is a HeapFile whose pages are PaxPages, which store each
+ * column of the page's tuples in its own mini-block.  Scans that read a few
+ * columns of a wide table only decode, and only touch the memory of, those
+ * columns.
+ *
+ * @see PaxPage#PaxPage
+ */
+public class PaxHeapFile extends HeapFile {
+
+    /**
+     * Constructs a PAX heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public PaxHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    protected TuplePage createPage(HeapPageId id, byte[] data) throws IOException {
+        return new PaxPage(id, data);
+    }
+}
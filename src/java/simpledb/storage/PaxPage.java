@@ -0,0 +1,283 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PaxPage is a page of a PaxHeapFile that stores its tuples column by column
+ * (the PAX layout, "Partition Attributes Across").  It has the same header
+ * bitmap and number of slots as a HeapPage, but instead of storing each tuple
+ * contiguously, the page holds one mini-block per field with that field's
+ * value for every slot: field j of slot i is at
+ * <p>
+ *      header size + numSlots * (offset of field j in a tuple) + i * (size of field j)
+ * <p>
+ * Tuples decode their fields from the page bytes on demand, so a scan that
+ * reads two columns of a wide table only touches those columns' mini-blocks,
+ * and the values of an INT_TYPE column are adjacent in memory.  Like
+ * HeapPage, the first write after a tuple was handed out copies the bytes.
+ *
+ * @see PaxHeapFile
+ * @see HeapPage
+ */
+public class PaxPage implements TuplePage {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final byte[] header;
+    final Tuple[] tuples; // tuples handed out so far, by slot
+    final int numSlots;
+
+    private byte[] data; // the page bytes the columns are read from; the header is kept in header
+    private boolean dataShared; // data may be referenced by tuples or the caller
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private volatile boolean isDirty;
+    private volatile TransactionId dirtyId;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.  The page
+     * has as many slots and header bytes as a HeapPage of the same table.
+     *
+     * @see HeapPage#HeapPage
+     * @see BufferPool#getPageSize()
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        header = new byte[(numSlots + 7) / 8];
+        if (data.length < header.length + numSlots * td.getSize()) {
+            throw new IOException("page " + id.getPageNumber() + " is too short");
+        }
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        // the fields are decoded from data when they are first used
+        tuples = new Tuple[numSlots];
+        this.data = data;
+        this.dataShared = true;
+    }
+
+    /**
+     * @return the offset in the page of the mini-block of the given field
+     */
+    private int columnOffset(int field) {
+        return header.length + numSlots * td.getFieldOffset(field);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) {
+                // not fetched for writing since it was read
+                oldDataRef = getPageData();
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Returns the tuple in the given slot, which must be used, creating it on
+     * first use.
+     */
+    private Tuple tuple(int slotId) {
+        if (tuples[slotId] == null) {
+            Tuple t = new Tuple(td, data, header.length, slotId, numSlots);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+            dataShared = true;
+        }
+        return tuples[slotId];
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the fields of empty slots zeroed.
+     *
+     * @see #PaxPage
+     */
+    public byte[] getPageData() {
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        writePageData(buf);
+        return buf.array();
+    }
+
+    public void writePageData(ByteBuffer buf) {
+        buf.put(header);
+
+        // copy each column, skipping empty slots
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            int column = columnOffset(j);
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    buf.put(data, column + i * len, len);
+                } else {
+                    PageBuffers.putZeroes(buf, len);
+                }
+            }
+        }
+        PageBuffers.putZeroes(buf, BufferPool.getPageSize() - (header.length + numSlots * td.getSize()));
+    }
+
+    /**
+     * Delete the specified tuple from the page; the corresponding header bit
+     * is cleared.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slotId = rid.getTupleNumber();
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            throw new DbException("slot is already empty");
+        }
+        markSlotUsed(slotId, false);
+        tuples[slotId] = null;
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot of the page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (t == null || !td.equals(t.getTupleDesc())) {
+            throw new DbException("the TupleDesc of t is mismatch!--PaxPage");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                writeTuple(i, t);
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("the page is full!--PaxPage");
+    }
+
+    /**
+     * Serializes each field of t into its column's mini-block.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        if (dataShared) {
+            // handed-out tuples keep the bytes they were created from
+            data = data.clone();
+            dataShared = false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int j = 0; j < td.numFields(); j++) {
+            buf.position(columnOffset(j) + slotId * td.getFieldType(j).getLen());
+            t.getField(j).serialize(buf);
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.isDirty = dirty;
+        this.dirtyId = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return isDirty ? dirtyId : null;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int count = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    public boolean isFull() {
+        return getNumEmptySlots() == 0;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return ((header[i / 8] >> (i % 8)) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        int mask = 1 << (i % 8);
+        if (value) {
+            header[i / 8] = (byte) (header[i / 8] | mask);
+        } else {
+            header[i / 8] = (byte) (header[i / 8] & ~mask);
+        }
+    }
+
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            return null;
+        }
+        return tuple(slot);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        List<Tuple> list = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                list.add(tuple(i));
+            }
+        }
+        return Collections.unmodifiableList(list).iterator();
+    }
+}
@@ -0,0 +1,30 @@
+package simpledb.storage;
+
+import java.io.*;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedPages, which store
+ * variable-length tuples behind a slot directory instead of fixed-width
+ * slots.  Tables with strings much shorter than {@link simpledb.common.Type#STRING_LEN}
+ * take several times fewer pages, and so less I/O to scan.
+ *
+ * @see SlottedPage#SlottedPage
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    protected TuplePage createPage(HeapPageId id, byte[] data) throws IOException {
+        return new SlottedPage(id, data);
+    }
+}
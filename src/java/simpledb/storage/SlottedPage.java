@@ -0,0 +1,323 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedPage is a page of a SlottedHeapFile that stores variable-length
+ * tuples.  Unlike HeapPage, which gives every tuple a fixed-width slot of
+ * {@link TupleDesc#getSize()} bytes, a string takes only as many bytes as it
+ * has characters, so tables with short strings need far fewer pages.
+ * <p>
+ * The page starts with the number of slots (an unsigned short), followed by
+ * the slot directory: for every slot, the offset (0 for an empty slot) and
+ * the length of its tuple, both unsigned shorts.  Tuples are packed at the end
+ * of the page, growing towards the slot directory.  An INT_TYPE field takes 4
+ * bytes and a STRING_TYPE field an unsigned short length followed by its
+ * characters.  A page of zeroes is an empty page.
+ * <p>
+ * Slot numbers, and hence RecordIds, stay the same while a tuple is on the
+ * page.  Deleting a tuple returns its bytes to the free space immediately:
+ * the remaining tuples are compacted when the page is serialized.  Pages can
+ * be at most 64KB.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedPage implements TuplePage {
+
+    static final int HEADER_SIZE = 2;
+    static final int SLOT_SIZE = 4;
+    private static final int STRING_HEADER_SIZE = 2;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final List<Tuple> tuples = new ArrayList<>(); // null for an empty slot
+    private final List<Integer> sizes = new ArrayList<>(); // encoded size of each tuple
+    private int usedBytes = 0;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private volatile boolean isDirty;
+    private volatile TransactionId dirtyId;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        if (data.length > 0xFFFF) {
+            throw new IllegalArgumentException("slotted pages can be at most 64KB");
+        }
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int numSlots = dis.readUnsignedShort();
+        for (int i = 0; i < numSlots; i++) {
+            int offset = dis.readUnsignedShort();
+            int length = dis.readUnsignedShort();
+            if (offset == 0) {
+                tuples.add(null);
+                sizes.add(0);
+                continue;
+            }
+            if (offset + length > data.length) {
+                throw new IOException("slot " + i + " of page " + id.getPageNumber() + " is invalid");
+            }
+            Tuple t = readTuple(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+            t.setRecordId(new RecordId(pid, i));
+            tuples.add(t);
+            sizes.add(length);
+            usedBytes += length;
+        }
+        dis.close();
+    }
+
+    private Tuple readTuple(DataInputStream dis) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                t.setField(j, new IntField(dis.readInt()));
+            } else {
+                byte[] bs = new byte[dis.readUnsignedShort()];
+                dis.readFully(bs);
+                t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    private static void writeTuple(ByteBuffer buf, Tuple t) {
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.getType() == Type.INT_TYPE) {
+                buf.putInt(((IntField) f).getValue());
+            } else {
+                String s = ((StringField) f).getValue();
+                buf.putShort((short) s.length());
+                // like DataOutputStream.writeBytes, keep the low byte of each char
+                for (int i = 0; i < s.length(); i++) {
+                    buf.put((byte) s.charAt(i));
+                }
+            }
+        }
+    }
+
+    /** @return the number of bytes t takes on a SlottedPage */
+    static int tupleSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.getType() == Type.INT_TYPE) {
+                size += Type.INT_TYPE.getLen();
+            } else {
+                size += STRING_HEADER_SIZE + ((StringField) f).getValue().length();
+            }
+        }
+        return size;
+    }
+
+    /** @return the number of bytes the largest tuple of td takes on a SlottedPage */
+    static int maxTupleSize(TupleDesc td) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            size += td.getFieldType(j) == Type.INT_TYPE ? Type.INT_TYPE.getLen()
+                    : STRING_HEADER_SIZE + Type.STRING_LEN;
+        }
+        return size;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) {
+                // not fetched for writing since it was read
+                oldDataRef = getPageData();
+            }
+            return new SlottedPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with the
+     * tuples packed at the end of the page.
+     *
+     * @see #SlottedPage
+     */
+    public byte[] getPageData() {
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        writePageData(buf);
+        return buf.array();
+    }
+
+    public void writePageData(ByteBuffer buf) {
+        int numSlots = tuples.size();
+        buf.putShort((short) numSlots);
+        // the tuples are packed in slot order and end at the end of the page
+        int offset = BufferPool.getPageSize() - usedBytes;
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples.get(i) != null) {
+                buf.putShort((short) offset);
+                buf.putShort((short) (int) sizes.get(i));
+                offset += sizes.get(i);
+            } else {
+                buf.putInt(0);
+            }
+        }
+        PageBuffers.putZeroes(buf, getFreeSpace());
+        for (Tuple t : tuples) {
+            if (t != null) {
+                writeTuple(buf, t);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes on this page that are not used by the slot
+     *         directory or by tuples
+     */
+    public int getFreeSpace() {
+        return BufferPool.getPageSize() - HEADER_SIZE - SLOT_SIZE * tuples.size() - usedBytes;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int needed = tupleSize(t) + (tuples.contains(null) ? 0 : SLOT_SIZE);
+        return needed <= getFreeSpace();
+    }
+
+    public boolean isFull() {
+        return maxTupleSize(td) + SLOT_SIZE > getFreeSpace();
+    }
+
+    /**
+     * Delete the specified tuple from the page; its bytes become free space
+     * and its slot can be reused.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slotId = rid.getTupleNumber();
+        if (slotId < 0 || slotId >= tuples.size() || tuples.get(slotId) == null) {
+            throw new DbException("slot is already empty");
+        }
+        usedBytes -= sizes.get(slotId);
+        tuples.set(slotId, null);
+        sizes.set(slotId, 0);
+        // drop empty slots from the end of the directory
+        int last = tuples.size() - 1;
+        while (last >= 0 && tuples.get(last) == null) {
+            tuples.remove(last);
+            sizes.remove(last);
+            last--;
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or a new
+     * one.
+     * @throws DbException if the tuple does not fit or its TupleDesc
+     *         does not match.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (t == null || !td.equals(t.getTupleDesc())) {
+            throw new DbException("the TupleDesc of t is mismatch!--SlottedPage");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("the page is full!--SlottedPage");
+        }
+        int slotId = tuples.indexOf(null);
+        int size = tupleSize(t);
+        if (slotId < 0) {
+            slotId = tuples.size();
+            tuples.add(t);
+            sizes.add(size);
+        } else {
+            tuples.set(slotId, t);
+            sizes.set(slotId, size);
+        }
+        usedBytes += size;
+        t.setRecordId(new RecordId(pid, slotId));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.isDirty = dirty;
+        this.dirtyId = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return isDirty ? dirtyId : null;
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public int getNumTuples() {
+        int count = 0;
+        for (Tuple t : tuples) {
+            if (t != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public Tuple getTuple(int slot) {
+        return slot >= 0 && slot < tuples.size() ? tuples.get(slot) : null;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        List<Tuple> list = new ArrayList<>();
+        for (Tuple t : tuples) {
+            if (t != null) {
+                list.add(t);
+            }
+        }
+        return Collections.unmodifiableList(list).iterator();
+    }
+}
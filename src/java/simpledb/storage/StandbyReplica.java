@@ -0,0 +1,457 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.Debug;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * StandbyReplica keeps a warm standby copy of a primary database up to date
+ * by tailing the primary's log file (through a shared directory) and
+ * redoing the after images of every committed transaction against the
+ * tables of the local catalog.
+ * <p>
+ * The standby must be started from a copy of the primary's table files.
+ * Log records carry the table ids of the primary, which are hashes of the
+ * primary's file names, so the replica is given a map from primary table ids
+ * to local table ids; {@link #tableIdsByName} builds it from the primary's
+ * catalog file.  Pages of tables that are not in the map are skipped.
+ * <p>
+ * UPDATE records are buffered per transaction and only installed when the
+ * transaction's COMMIT record is read; ABORT records put back their before
+ * images, which undoes pages the primary wrote before the transaction
+ * aborted, such as pages flushed by a checkpoint.  Redo installs whole page
+ * images in log order, so replaying a suffix of the log again converges to
+ * the same state.
+ * <p>
+ * A REBUILD record means the primary replaced the file of a table with one
+ * written outside the log, whose pages the replica cannot redo from images
+ * of the old file: the replica drops the images of the table it has not
+ * installed yet and copies the primary's file of the table again, if it was
+ * given it, or else fails with an IOException.
+ * <p>
+ * The primary rewrites its log on truncation and on restart.  The replica
+ * keeps its position as an LSN (see {@link LogFile#BASE_SUFFIX}), so it
+ * continues at the same record in the rewritten log.  If the rewrite dropped
+ * records the replica had not read yet, the replica is out of date in ways
+ * the log cannot repair: it copies the primary's table files again, if it
+ * was given them, and replays the new log from its first record, or else
+ * fails with an IOException.
+ * <p>
+ * Read-only queries can be run against the local tables while the replica
+ * is applying the log; they see each committed transaction's pages as soon
+ * as they are installed.
+ */
+public class StandbyReplica implements Runnable {
+
+    /** Default time to wait for new log records before polling again */
+    public static final long DEFAULT_POLL_MILLIS = 100;
+
+    private final File primaryLog;
+    private final Map<Integer, Integer> tableIds;
+    private final Map<Integer, File> primaryFiles;
+    private final long pollMillis;
+
+    private RandomAccessFile raf;
+    private Object logFileKey;
+    private long offset;
+    private long generation = -1; // of the log being read, -1 before it is opened
+    private long baseLsn;         // LSN of the first record of the log being read
+    private long appliedTransactions;
+    private long copies;
+    private volatile boolean stopped = false;
+
+    // raw images of transactions that have not committed yet, in log order
+    private final Map<Long, List<PageImage[]>> pending = new HashMap<>();
+
+    private static class PageImage {
+        final byte tag;
+        final int tableId;
+        final int pgNo;
+        final byte[] data;
+
+        PageImage(byte tag, int tableId, int pgNo, byte[] data) {
+            this.tag = tag;
+            this.tableId = tableId;
+            this.pgNo = pgNo;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param primaryLog the log file written by the primary's LogFile
+     * @param tableIds a map from table ids of the primary to the ids of the
+     *            corresponding tables in the local catalog
+     * @param primaryFiles a map from table ids of the primary to the
+     *            primary's table files, which are copied again if the
+     *            replica falls behind a truncation of the log; may be null
+     * @param pollMillis how long {@link #run} waits for new records
+     */
+    public StandbyReplica(File primaryLog, Map<Integer, Integer> tableIds,
+                          Map<Integer, File> primaryFiles, long pollMillis) {
+        this.primaryLog = primaryLog;
+        this.tableIds = new HashMap<>(tableIds);
+        this.primaryFiles = primaryFiles == null ? null : new HashMap<>(primaryFiles);
+        this.pollMillis = pollMillis;
+    }
+
+    public StandbyReplica(File primaryLog, Map<Integer, Integer> tableIds, Map<Integer, File> primaryFiles) {
+        this(primaryLog, tableIds, primaryFiles, DEFAULT_POLL_MILLIS);
+    }
+
+    public StandbyReplica(File primaryLog, Map<Integer, Integer> tableIds) {
+        this(primaryLog, tableIds, null, DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * Builds the map from primary table ids to local table ids for every table
+     * of the local catalog, matching tables by name.  The primary's table ids
+     * are computed the same way {@link Catalog#loadSchema} names table files.
+     *
+     * @param primaryCatalogFile the catalog file the primary was started with
+     */
+    public static Map<Integer, Integer> tableIdsByName(File primaryCatalogFile) {
+        String baseFolder = primaryCatalogFile.getAbsoluteFile().getParent();
+        Map<Integer, Integer> ids = new HashMap<>();
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> it = catalog.tableIdIterator();
+        while (it.hasNext()) {
+            int localId = it.next();
+            String name = catalog.getTableName(localId);
+            int primaryId = new File(baseFolder + "/" + name + ".dat").getAbsoluteFile().hashCode();
+            ids.put(primaryId, localId);
+        }
+        return ids;
+    }
+
+    /**
+     * Builds the map from primary table ids to the primary's table files for
+     * every table of the local catalog, matching tables by name like
+     * {@link #tableIdsByName}.
+     *
+     * @param primaryCatalogFile the catalog file the primary was started with
+     */
+    public static Map<Integer, File> primaryFilesByName(File primaryCatalogFile) {
+        String baseFolder = primaryCatalogFile.getAbsoluteFile().getParent();
+        Map<Integer, File> files = new HashMap<>();
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> it = catalog.tableIdIterator();
+        while (it.hasNext()) {
+            File file = new File(baseFolder + "/" + catalog.getTableName(it.next()) + ".dat").getAbsoluteFile();
+            files.put(file.hashCode(), file);
+        }
+        return files;
+    }
+
+    /** @return the offset in the primary's current log up to which records have been read */
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /** @return the number of committed transactions whose pages have been installed so far */
+    public synchronized long getAppliedTransactions() {
+        return appliedTransactions;
+    }
+
+    /** @return the number of times the primary's table files were copied
+        because the replica fell behind a truncation of the log */
+    public synchronized long getCopies() {
+        return copies;
+    }
+
+    /**
+     * Reads every complete record the primary has written since the last call
+     * and installs the pages of the transactions that committed.
+     *
+     * @return the number of transactions whose pages were installed by this call
+     */
+    public synchronized int applyAvailable() throws IOException {
+        if (!reopenIfChanged()) {
+            return 0;
+        }
+        int applied = 0;
+        while (true) {
+            raf.seek(offset);
+            try {
+                int type = raf.readInt();
+                if (type < LogFile.ABORT_RECORD || type > LogFile.REBUILD_RECORD) {
+                    if (offset == LogFile.LONG_SIZE || !followRewrite() || !open()) {
+                        break; // the primary is rewriting its log
+                    }
+                    continue;
+                }
+                long tid = raf.readLong();
+                raf.readLong(); // prev record
+                int rebuilt = -1;
+                switch (type) {
+                case LogFile.UPDATE_RECORD:
+                    PageImage before = readPageImage();
+                    PageImage after = readPageImage();
+                    pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(new PageImage[] { before, after });
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    raf.readLong(); // commit time
+                    break;
+                case LogFile.CHECKPOINT_RECORD:
+                    int numXactions = raf.readInt();
+                    raf.skipBytes(numXactions * 2 * LogFile.LONG_SIZE);
+                    break;
+                case LogFile.REBUILD_RECORD:
+                    rebuilt = raf.readInt();
+                    break;
+                default:
+                    break;
+                }
+                if (raf.readLong() != offset) {
+                    // the primary truncated its log in place and has written
+                    // past the point we had read up to
+                    if (offset == LogFile.LONG_SIZE || !followRewrite() || !open()) {
+                        break;
+                    }
+                    continue;
+                }
+                // only act on a record once it is completely on disk
+                if (type == LogFile.COMMIT_RECORD) {
+                    List<PageImage[]> images = pending.remove(tid);
+                    if (images != null) {
+                        List<PageImage> after = new ArrayList<>();
+                        for (PageImage[] image : images) {
+                            after.add(image[1]);
+                        }
+                        install(after);
+                        appliedTransactions++;
+                        applied++;
+                    }
+                } else if (type == LogFile.ABORT_RECORD) {
+                    List<PageImage[]> images = pending.remove(tid);
+                    if (images != null) {
+                        // newest first, so each page gets its oldest before image
+                        List<PageImage> before = new ArrayList<>();
+                        for (int i = images.size() - 1; i >= 0; i--) {
+                            before.add(images.get(i)[0]);
+                        }
+                        install(before);
+                    }
+                } else if (type == LogFile.REBUILD_RECORD) {
+                    recopy(rebuilt);
+                }
+                offset = raf.getFilePointer();
+            } catch (EOFException e) {
+                // the primary is still writing this record
+                break;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Applies the log until {@link #stop} is called, waiting pollMillis
+     * between attempts when no new records are available.
+     */
+    public void run() {
+        while (!stopped) {
+            try {
+                if (applyAvailable() == 0) {
+                    Thread.sleep(pollMillis);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                stopped = true;
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+        close();
+    }
+
+    /** Asks {@link #run} to return after its current pass */
+    public void stop() {
+        stopped = true;
+    }
+
+    /** Closes the primary's log file */
+    public synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            raf = null;
+        }
+    }
+
+    // (re)opens the primary's log if it has been replaced or truncated since
+    // it was last read; returns false if there is no log to read yet, or
+    // the primary is in the middle of rewriting it
+    private boolean reopenIfChanged() throws IOException {
+        if (!primaryLog.exists()) {
+            return false;
+        }
+        Object key = Files.readAttributes(primaryLog.toPath(), BasicFileAttributes.class).fileKey();
+        boolean replaced = raf == null || (key != null && !key.equals(logFileKey));
+        if (!replaced && raf.length() >= offset) {
+            return true;
+        }
+        if (raf != null && !followRewrite()) {
+            return false;
+        }
+        return open();
+    }
+
+    private boolean open() throws IOException {
+        close();
+        Object previousKey = logFileKey;
+        Object key = Files.readAttributes(primaryLog.toPath(), BasicFileAttributes.class).fileKey();
+        raf = new RandomAccessFile(primaryLog, "r");
+        logFileKey = key;
+        long[] base = LogFile.readBase(primaryLog);
+        if (base[0] == generation && previousKey != null && key != null && !key.equals(previousKey)) {
+            // a new log whose generation has not been written yet
+            close();
+            logFileKey = previousKey;
+            return false;
+        }
+        if (raf.length() < LogFile.LONG_SIZE) {
+            close();
+            return false;
+        }
+        if (generation < 0) {
+            // the local tables are a copy of the primary's as of its current log
+            generation = base[0];
+            baseLsn = base[1];
+            offset = LogFile.LONG_SIZE;
+        } else if (base[0] != generation) {
+            // rewritten while the log was closed
+            return followRewrite() && open();
+        }
+        return true;
+    }
+
+    // called when the log no longer holds the records at offset; moves offset
+    // to the same record in the rewritten log, or copies the primary's tables
+    // if the rewrite dropped records that had not been read yet.  Returns
+    // false if the primary has not finished rewriting its log.
+    private boolean followRewrite() throws IOException {
+        long[] base = LogFile.readBase(primaryLog);
+        if (base[0] == generation) {
+            return false;
+        }
+        long lsn = baseLsn + (offset - LogFile.LONG_SIZE);
+        if (lsn < base[1]) {
+            copyTables();
+        } else {
+            Debug.log("StandbyReplica: following %s to generation %d at LSN %d", primaryLog, base[0], lsn);
+            generation = base[0];
+            baseLsn = base[1];
+            offset = LogFile.LONG_SIZE + (lsn - base[1]);
+        }
+        // the log of the new generation is a new file
+        logFileKey = null;
+        return true;
+    }
+
+    // copies the primary's table files over the local ones and replays the
+    // current log from its first record.  The copy may catch pages in the
+    // middle of a write, but every page the primary writes after its log was
+    // last rewritten is in the log, so replaying it repairs them.
+    private void copyTables() throws IOException {
+        if (primaryFiles == null) {
+            throw new IOException("the primary truncated log records the standby had not read;"
+                    + " the standby needs a new copy of the primary's tables");
+        }
+        while (true) {
+            long[] base = LogFile.readBase(primaryLog);
+            Debug.log("StandbyReplica: copying the tables of the primary at generation %d", base[0]);
+            for (Map.Entry<Integer, Integer> e : tableIds.entrySet()) {
+                File source = primaryFiles.get(e.getKey());
+                if (source != null) {
+                    copyTable(source, e.getValue());
+                }
+            }
+            if (LogFile.readBase(primaryLog)[0] == base[0]) {
+                generation = base[0];
+                baseLsn = base[1];
+                offset = LogFile.LONG_SIZE;
+                pending.clear();
+                copies++;
+                return;
+            }
+            // the log was rewritten during the copy, which may have dropped
+            // records of pages written during the copy
+        }
+    }
+
+    // copies the primary's file of a table that was rebuilt; the images of
+    // the table read so far are of the file it replaced
+    private void recopy(int primaryId) throws IOException {
+        for (List<PageImage[]> images : pending.values()) {
+            images.removeIf(image -> image[1].tableId == primaryId);
+        }
+        Integer localId = tableIds.get(primaryId);
+        if (localId == null) {
+            return;
+        }
+        File source = primaryFiles == null ? null : primaryFiles.get(primaryId);
+        if (source == null) {
+            throw new IOException("the primary rebuilt table " + primaryId
+                    + "; the standby needs a new copy of the primary's table");
+        }
+        Debug.log("StandbyReplica: copying table %d, rebuilt by the primary", primaryId);
+        copyTable(source, localId);
+        copies++;
+    }
+
+    private void copyTable(File source, int localId) throws IOException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(localId);
+        File target = OnlineBackup.tableFile(dbFile);
+        File sourceSums = new File(source.getPath() + PageChecksums.SUFFIX);
+        synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().discardPages(localId);
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (sourceSums.exists()) {
+                Files.copy(sourceSums.toPath(), new File(target.getPath() + PageChecksums.SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                PageChecksums.discard(target);
+            }
+            if (dbFile instanceof CompressedHeapFile) {
+                ((CompressedHeapFile) dbFile).reload();
+            }
+        }
+    }
+
+    private PageImage readPageImage() throws IOException {
+        byte tag = raf.readByte();
+        int tableId = raf.readInt();
+        int pgNo = raf.readInt();
+        int len = raf.readInt();
+        if (len < 0 || len > raf.length() - raf.getFilePointer()) {
+            throw new EOFException();
+        }
+        byte[] data = new byte[len];
+        raf.readFully(data);
+        return new PageImage(tag, tableId, pgNo, data);
+    }
+
+    private void install(List<PageImage> images) throws IOException {
+        synchronized (Database.getBufferPool()) {
+            for (PageImage image : images) {
+                Integer localId = tableIds.get(image.tableId);
+                if (localId == null) {
+                    continue;
+                }
+                Page page = LogFile.newPage(image.tag, localId, image.pgNo, image.data);
+                Database.getBufferPool().discardPage(page.getId());
+                Database.getCatalog().getDatabaseFile(localId).writePage(page);
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb.storage;
 
+import simpledb.common.Type;
+
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -10,6 +13,10 @@ import java.util.Objects;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page can be backed by the page's bytes, in which case
+ * each Field is only decoded the first time it is asked for, and
+ * {@link #getInt} reads int fields without decoding them at all.
  */
 public class Tuple implements Serializable {
 
@@ -18,6 +25,11 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private RecordId recordId;
     private final Field[] fields;
+    // serialized fields that have not been decoded yet, or null
+    private final byte[] data;
+    private final int offset;
+    private final int slot;
+    private final int numSlots;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -28,8 +40,39 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         // some code goes here
+        this(td, null, 0);
+    }
+
+    /**
+     * Create a tuple whose fields are decoded on demand from data, where they
+     * are serialized one after the other starting at offset.  The caller must
+     * not change those bytes while the tuple is in use.
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td, data, offset, 0, 1);
+    }
+
+    /**
+     * Create a tuple whose fields are decoded on demand from data, where the
+     * fields of numSlots tuples are stored column by column starting at
+     * offset, and this tuple is the one in the given slot.
+     *
+     * @see PaxPage
+     */
+    Tuple(TupleDesc td, byte[] data, int offset, int slot, int numSlots) {
         tupleDesc = td;
         fields = new Field[td.numFields()];
+        this.data = data;
+        this.offset = offset;
+        this.slot = slot;
+        this.numSlots = numSlots;
+    }
+
+    /**
+     * @return the position of the ith field in data
+     */
+    private int fieldPosition(int i) {
+        return offset + numSlots * tupleDesc.getFieldOffset(i) + slot * tupleDesc.getFieldType(i).getLen();
     }
 
     /**
@@ -87,9 +130,28 @@ public class Tuple implements Serializable {
         if(i < 0 || i >= fields.length){
             throw new NoSuchElementException("wrong index!");
         }
+        if (fields[i] == null && data != null) {
+            try {
+                fields[i] = tupleDesc.getFieldType(i).parse(data, fieldPosition(i));
+            } catch (ParseException e) {
+                throw new IllegalStateException("field " + i + " of the page data is corrupt: " + e.getMessage());
+            }
+        }
         return fields[i];
     }
 
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field.
+     *         Reads the value straight from the page data if the field has
+     *         not been decoded.
+     */
+    public int getInt(int i) {
+        if (i >= 0 && i < fields.length && fields[i] == null && data != null) {
+            return Type.readInt(data, fieldPosition(i));
+        }
+        return ((IntField) getField(i)).getValue();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -102,9 +164,9 @@ public class Tuple implements Serializable {
         // some code goes here
         StringBuilder sb = new StringBuilder();
         for(int i = 0; i < fields.length - 1; ++i){
-            sb.append(fields[i].toString() + "\t");
+            sb.append(getField(i).toString() + "\t");
         }
-        sb.append(fields[tupleDesc.numFields() - 1].toString() + "\n");
+        sb.append(getField(tupleDesc.numFields() - 1).toString() + "\n");
         return sb.toString();
     }
 
@@ -115,6 +177,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        decodeAll();
         return Arrays.asList(fields).iterator();
     }
 
@@ -127,11 +190,21 @@ public class Tuple implements Serializable {
         tupleDesc = td;
     }
 
+    private void decodeAll() {
+        if (data != null) {
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Tuple tuple = (Tuple) o;
+        decodeAll();
+        tuple.decodeAll();
         return Objects.equals(tupleDesc, tuple.tupleDesc) &&
                 Objects.equals(recordId, tuple.recordId) &&
                 Arrays.equals(fields, tuple.fields);
@@ -12,6 +12,8 @@ import java.util.*;
 public class TupleDesc implements Serializable {
 
     private final TDItem[] tdItems;
+    // byte offset of each field in a serialized tuple, computed lazily
+    private transient int[] fieldOffsets;
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -167,6 +169,22 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return the offset (in bytes) of the ith field in a serialized tuple of
+     *         this TupleDesc.
+     */
+    public int getFieldOffset(int i) {
+        int[] offsets = fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[tdItems.length];
+            for (int j = 1; j < tdItems.length; j++) {
+                offsets[j] = offsets[j - 1] + tdItems[j - 1].fieldType.getLen();
+            }
+            fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
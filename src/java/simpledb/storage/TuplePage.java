@@ -0,0 +1,56 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.util.Iterator;
+
+/**
+ * TuplePage is a page of a HeapFile: it stores an unordered set of tuples
+ * that are addressed by their slot number.  HeapFile works with any
+ * implementation of TuplePage, so different tables can use different page
+ * formats.
+ *
+ * @see HeapPage
+ * @see SlottedPage
+ * @see PaxPage
+ * @see HeapFile#createPage
+ */
+public interface TuplePage extends Page {
+
+    HeapPageId getId();
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     * @throws DbException if the tuple does not fit or the TupleDesc does
+     *         not match
+     */
+    void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page
+     */
+    void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return true if {@link #insertTuple} can add t to this page
+     */
+    boolean hasRoomFor(Tuple t);
+
+    /**
+     * @return true if no tuple of this page's table is guaranteed to fit.
+     *         Recorded in the file's FreeSpaceMap.
+     */
+    boolean isFull();
+
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty or
+     *         does not exist
+     */
+    Tuple getTuple(int slot);
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    Iterator<Tuple> iterator();
+}
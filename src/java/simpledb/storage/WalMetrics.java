@@ -0,0 +1,344 @@
+package simpledb.storage;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * WalMetrics records where commit time goes and how much the log writes.
+ * <p>
+ * Each commit is broken down into the time spent appending log records, waiting
+ * for the log to be forced to disk, writing dirty pages to their files and
+ * releasing locks.  The phases of a commit are accumulated per thread between
+ * {@link #beginCommit} and {@link #endCommit}, which the committing thread calls
+ * around {@link simpledb.transaction.Transaction#commit} (a commit that fails
+ * is dropped with {@link #cancelCommit}); time spent outside a
+ * commit still counts towards the totals below but not towards the per-commit
+ * histograms.  In addition, WalMetrics counts the bytes logged (in total and
+ * per finished transaction) and the number of log forces, and times
+ * checkpoints and recovery.
+ * <p>
+ * Histograms use power-of-two buckets updated with atomic counters, so
+ * recording a value costs a few atomic increments.  Monitoring can poll
+ * {@link #getSnapshot} directly or through JMX.
+ *
+ * @see simpledb.common.Database#getWalMetrics
+ */
+public class WalMetrics implements WalMetricsMXBean {
+
+    public static final String OBJECT_NAME = "simpledb:type=WalMetrics";
+
+    // commit phases
+    static final int LOG_APPEND = 0;
+    static final int FSYNC_WAIT = 1;
+    static final int PAGE_FLUSH = 2;
+    static final int LOCK_RELEASE = 3;
+    private static final int NUM_PHASES = 4;
+
+    private final Histogram[] commitPhases = new Histogram[NUM_PHASES];
+    private final Histogram commitTotal = new Histogram();
+    private final Histogram bytesPerTransaction = new Histogram();
+    private final Histogram checkpoint = new Histogram();
+    private final LongAdder bytesLogged = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final AtomicLong lastRecoveryNanos = new AtomicLong(-1);
+    private volatile long resetNanos = System.nanoTime();
+
+    // phase nanos of the commit running on this thread, or null if none is
+    private final ThreadLocal<long[]> currentCommit = new ThreadLocal<>();
+
+    public WalMetrics() {
+        for (int i = 0; i < NUM_PHASES; i++) {
+            commitPhases[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Register this object with the platform MBean server, replacing any
+     * WalMetrics registered before (e.g. by a previous Database instance).
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            // monitoring is optional
+            e.printStackTrace();
+        }
+    }
+
+    /** Start timing the phases of a commit on the calling thread */
+    public void beginCommit() {
+        currentCommit.set(new long[NUM_PHASES + 1]);
+        currentCommit.get()[NUM_PHASES] = System.nanoTime();
+    }
+
+    /** Finish timing the commit started on the calling thread and record it */
+    public void endCommit() {
+        long[] phases = currentCommit.get();
+        if (phases == null) {
+            return;
+        }
+        currentCommit.remove();
+        for (int i = 0; i < NUM_PHASES; i++) {
+            commitPhases[i].record(phases[i]);
+        }
+        commitTotal.record(System.nanoTime() - phases[NUM_PHASES]);
+    }
+
+    /** Drop the commit started on the calling thread without recording it */
+    public void cancelCommit() {
+        currentCommit.remove();
+    }
+
+    /** Add nanos to a phase of the commit running on the calling thread */
+    void addCommitPhase(int phase, long nanos) {
+        long[] phases = currentCommit.get();
+        if (phases != null) {
+            phases[phase] += nanos;
+        }
+    }
+
+    void logForced(long nanos) {
+        fsyncs.increment();
+        addCommitPhase(FSYNC_WAIT, nanos);
+    }
+
+    void bytesLogged(long bytes) {
+        bytesLogged.add(bytes);
+    }
+
+    void transactionLogged(long bytes) {
+        bytesPerTransaction.record(bytes);
+    }
+
+    void checkpointed(long nanos) {
+        checkpoint.record(nanos);
+    }
+
+    void recovered(long nanos) {
+        lastRecoveryNanos.set(nanos);
+    }
+
+    public void reset() {
+        for (Histogram h : commitPhases) {
+            h.reset();
+        }
+        commitTotal.reset();
+        bytesPerTransaction.reset();
+        checkpoint.reset();
+        bytesLogged.reset();
+        fsyncs.reset();
+        lastRecoveryNanos.set(-1);
+        resetNanos = System.nanoTime();
+    }
+
+    public Snapshot getSnapshot() {
+        double seconds = (System.nanoTime() - resetNanos) / 1e9;
+        long numFsyncs = fsyncs.sum();
+        return new Snapshot(commitTotal.snapshot(),
+                commitPhases[LOG_APPEND].snapshot(), commitPhases[FSYNC_WAIT].snapshot(),
+                commitPhases[PAGE_FLUSH].snapshot(), commitPhases[LOCK_RELEASE].snapshot(),
+                bytesLogged.sum(), bytesPerTransaction.snapshot(), numFsyncs,
+                seconds > 0 ? numFsyncs / seconds : 0, checkpoint.snapshot(), lastRecoveryNanos.get());
+    }
+
+    /**
+     * A histogram of non-negative values in power-of-two buckets: bucket i
+     * holds the values whose highest set bit is bit i - 1 (bucket 0 holds 0).
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // retry
+            }
+        }
+
+        public void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        // upper bound of the bucket holding the value at quantile q
+        private long quantile(long n, double q) {
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        public HistogramSnapshot snapshot() {
+            long n = count.sum();
+            if (n == 0) {
+                return new HistogramSnapshot(0, 0, 0, 0, 0, 0);
+            }
+            long m = max.get();
+            return new HistogramSnapshot(n, sum.sum(), (double) sum.sum() / n,
+                    Math.min(quantile(n, 0.5), m), Math.min(quantile(n, 0.99), m), m);
+        }
+    }
+
+    /**
+     * The state of a histogram at the time of a snapshot.  Latencies are in
+     * nanoseconds; quantiles are rounded up to the next power of two minus one.
+     */
+    public static class HistogramSnapshot {
+        private final long count;
+        private final long sum;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        public HistogramSnapshot(long count, long sum, double mean, long p50, long p99, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public String toString() {
+            return "count=" + count + " mean=" + mean + " p50=" + p50 + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    /** The commit-latency and WAL metrics at the time of a snapshot */
+    public static class Snapshot {
+        private final HistogramSnapshot commit;
+        private final HistogramSnapshot commitLogAppend;
+        private final HistogramSnapshot commitFsyncWait;
+        private final HistogramSnapshot commitPageFlush;
+        private final HistogramSnapshot commitLockRelease;
+        private final long bytesLogged;
+        private final HistogramSnapshot bytesPerTransaction;
+        private final long fsyncs;
+        private final double fsyncsPerSecond;
+        private final HistogramSnapshot checkpoint;
+        private final long lastRecoveryNanos;
+
+        public Snapshot(HistogramSnapshot commit, HistogramSnapshot commitLogAppend,
+                        HistogramSnapshot commitFsyncWait, HistogramSnapshot commitPageFlush,
+                        HistogramSnapshot commitLockRelease, long bytesLogged,
+                        HistogramSnapshot bytesPerTransaction, long fsyncs, double fsyncsPerSecond,
+                        HistogramSnapshot checkpoint, long lastRecoveryNanos) {
+            this.commit = commit;
+            this.commitLogAppend = commitLogAppend;
+            this.commitFsyncWait = commitFsyncWait;
+            this.commitPageFlush = commitPageFlush;
+            this.commitLockRelease = commitLockRelease;
+            this.bytesLogged = bytesLogged;
+            this.bytesPerTransaction = bytesPerTransaction;
+            this.fsyncs = fsyncs;
+            this.fsyncsPerSecond = fsyncsPerSecond;
+            this.checkpoint = checkpoint;
+            this.lastRecoveryNanos = lastRecoveryNanos;
+        }
+
+        /** @return total commit latency */
+        public HistogramSnapshot getCommit() {
+            return commit;
+        }
+
+        /** @return time per commit spent appending UPDATE and COMMIT records */
+        public HistogramSnapshot getCommitLogAppend() {
+            return commitLogAppend;
+        }
+
+        /** @return time per commit spent waiting for the log to be forced */
+        public HistogramSnapshot getCommitFsyncWait() {
+            return commitFsyncWait;
+        }
+
+        /** @return time per commit spent writing dirty pages to their files */
+        public HistogramSnapshot getCommitPageFlush() {
+            return commitPageFlush;
+        }
+
+        /** @return time per commit spent releasing locks */
+        public HistogramSnapshot getCommitLockRelease() {
+            return commitLockRelease;
+        }
+
+        /** @return bytes appended to the log */
+        public long getBytesLogged() {
+            return bytesLogged;
+        }
+
+        /** @return bytes logged by each committed or aborted transaction */
+        public HistogramSnapshot getBytesPerTransaction() {
+            return bytesPerTransaction;
+        }
+
+        /** @return number of times the log was forced to disk */
+        public long getFsyncs() {
+            return fsyncs;
+        }
+
+        /** @return log forces per second since the metrics were last reset */
+        public double getFsyncsPerSecond() {
+            return fsyncsPerSecond;
+        }
+
+        /** @return checkpoint duration, including log truncation */
+        public HistogramSnapshot getCheckpoint() {
+            return checkpoint;
+        }
+
+        /** @return duration of the last recovery in nanoseconds, or -1 if none ran */
+        public long getLastRecoveryNanos() {
+            return lastRecoveryNanos;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package simpledb.storage;
+
+/**
+ * Management interface of {@link WalMetrics}, registered with the platform
+ * MBean server as {@value WalMetrics#OBJECT_NAME}.
+ */
+public interface WalMetricsMXBean {
+
+    /** @return a snapshot of the commit-latency and WAL metrics */
+    WalMetrics.Snapshot getSnapshot();
+
+    /** Clear all metrics */
+    void reset();
+}
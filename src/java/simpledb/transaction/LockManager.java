@@ -12,16 +12,41 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class LockManager {
     private ConcurrentMap<PageId, ConcurrentMap<TransactionId, PageLock>> pageLocks;
+    /**
+     * 表级写锁（批量插入使用），持有者独占整张表
+     */
+    private ConcurrentMap<Integer, TransactionId> tableLocks;
 
 
     public LockManager() {
         pageLocks = new ConcurrentHashMap<>();
+        tableLocks = new ConcurrentHashMap<>();
     }
 
     public synchronized boolean requireLock(PageId pid, TransactionId tid, int requireType) throws InterruptedException, TransactionAbortedException {
+        return requireLock(pid, tid, requireType, true);
+    }
+
+    /**
+     * 请求锁，block为false时冲突不在LockManager上等待，直接返回false
+     * @param pid
+     * @param tid
+     * @param requireType
+     * @param block
+     * @return 是否加锁成功
+     */
+    public synchronized boolean requireLock(PageId pid, TransactionId tid, int requireType, boolean block) throws InterruptedException, TransactionAbortedException {
         final String lockType = requireType == 0 ? "read lock" : "write lock";
         final String thread = Thread.currentThread().getName();
 
+        //其他事务持有表锁，等待
+        TransactionId owner = tableLocks.get(pid.getTableId());
+        if (owner != null && !owner.equals(tid)) {
+            System.out.println(thread + ": the table of " + pid + " is locked by transaction" + owner + ", transaction" + tid + " require " + lockType + ", await...");
+            if (block) wait(10);
+            return false;
+        }
+
         ConcurrentMap<TransactionId, PageLock> pageLock = pageLocks.get(pid);
         //页面上没有锁
         if (pageLocks.size() == 0 || pageLock == null) {
@@ -88,14 +113,14 @@ public class LockManager {
                 //原先有一个写锁，请求读锁失败
                 if (pageLock.size() == 1 && one.getType() == PageLock.EXCLUSIVE) {
                     System.out.println(thread + ": the " + pid + " have one write lock with diff txid, transaction" + tid + " require read lock, await...");
-                    wait(50);
+                    if (block) wait(50);
                     return false;
                 }
             }
             //原先有锁，请求写锁一定失败
             if (requireType == PageLock.EXCLUSIVE) {
                 System.out.println(thread + ": the " + pid + " have lock with diff txid, transaction" + tid + " require write lock, await...");
-                wait(10);
+                if (block) wait(10);
                 return false;
             }
         }
@@ -103,6 +128,58 @@ public class LockManager {
         return true;
     }
 
+    /**
+     * 不等待地请求锁：其他事务持有冲突的锁（包括表锁）时立即返回false
+     * @param pid
+     * @param tid
+     * @param requireType
+     * @return 是否加锁成功
+     */
+    public synchronized boolean tryRequireLock(PageId pid, TransactionId tid, int requireType) {
+        TransactionId owner = tableLocks.get(pid.getTableId());
+        if (owner != null && !owner.equals(tid)) return false;
+        ConcurrentMap<TransactionId, PageLock> pageLock = pageLocks.get(pid);
+        if (pageLock != null) {
+            for (ConcurrentMap.Entry<TransactionId, PageLock> entry : pageLock.entrySet()) {
+                if (!entry.getKey().equals(tid)
+                        && (requireType == PageLock.EXCLUSIVE || entry.getValue().getType() == PageLock.EXCLUSIVE)) {
+                    return false;
+                }
+            }
+        }
+        try {
+            return requireLock(pid, tid, requireType, false);
+        } catch (InterruptedException | TransactionAbortedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 请求表级写锁。表上有其他事务的表锁或页锁时失败
+     * @param tableId
+     * @param tid
+     * @return 是否加锁成功
+     */
+    public synchronized boolean requireTableLock(int tableId, TransactionId tid) throws InterruptedException {
+        TransactionId owner = tableLocks.get(tableId);
+        if (owner != null) {
+            if (owner.equals(tid)) return true;
+            wait(10);
+            return false;
+        }
+        for (ConcurrentMap.Entry<PageId, ConcurrentMap<TransactionId, PageLock>> entry : pageLocks.entrySet()) {
+            if (entry.getKey().getTableId() != tableId) continue;
+            for (TransactionId holder : entry.getValue().keySet()) {
+                if (!holder.equals(tid)) {
+                    wait(10);
+                    return false;
+                }
+            }
+        }
+        tableLocks.put(tableId, tid);
+        return true;
+    }
+
     /**
      * 查看指定页面是否被指定事务锁定
      * @param pid
@@ -111,10 +188,38 @@ public class LockManager {
      */
     public synchronized boolean isHoldLock(PageId pid, TransactionId tid) {
         ConcurrentMap<TransactionId, PageLock> map = pageLocks.get(pid);
+        if (tid.equals(tableLocks.get(pid.getTableId()))) return true;
         if (map == null) return false;
         return map.get(tid) != null;
     }
 
+    /**
+     * 查看指定页面是否被指定事务以外的事务锁定（包括表锁）
+     * @param pid
+     * @param tid
+     * @return
+     */
+    public synchronized boolean isLockedByOthers(PageId pid, TransactionId tid) {
+        TransactionId owner = tableLocks.get(pid.getTableId());
+        if (owner != null && !owner.equals(tid)) return true;
+        ConcurrentMap<TransactionId, PageLock> map = pageLocks.get(pid);
+        if (map == null) return false;
+        return map.size() > (map.containsKey(tid) ? 1 : 0);
+    }
+
+    /**
+     * 查看指定页面是否被指定事务加了写锁
+     * @param pid
+     * @param tid
+     * @return
+     */
+    public synchronized boolean holdsWriteLock(PageId pid, TransactionId tid) {
+        ConcurrentMap<TransactionId, PageLock> map = pageLocks.get(pid);
+        if (map == null) return false;
+        PageLock lock = map.get(tid);
+        return lock != null && lock.getType() == PageLock.EXCLUSIVE;
+    }
+
     /**
      * 释放指定页面的指定事务加的锁
      * @param pid
@@ -143,5 +248,8 @@ public class LockManager {
         for (PageId pageId : ids) {
             releaseLock(pageId, tid);
         }
+        if (tableLocks.values().removeIf(tid::equals)) {
+            this.notifyAll();
+        }
     }
 }
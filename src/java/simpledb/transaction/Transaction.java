@@ -48,14 +48,25 @@ public class Transaction {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
-            } 
+            } else {
+                Database.getWalMetrics().beginCommit();
+            }
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            boolean committed = false;
+            try {
+                // Release locks and flush pages if needed
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                // write commit log record
+                if (!abort) {
+                    Database.getLogFile().logCommit(tid);
+                    Database.getWalMetrics().endCommit();
+                    committed = true;
+                }
+            } finally {
+                if (!abort && !committed) {
+                    Database.getWalMetrics().cancelCommit();
+                }
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
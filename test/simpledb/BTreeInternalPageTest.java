@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -15,11 +16,13 @@ import simpledb.systemtest.SystemTestUtil;
 
 //import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -85,6 +88,19 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 	/**
 	 * Unit test for BTreeInternalPage.getId()
 	 */
+	/**
+	 * Unit test for BTreeInternalPage.writePageData()
+	 */
+	@Test public void writePageData() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ByteBuffer buf = ByteBuffer.allocate(EXAMPLE_DATA.length + 3);
+		buf.position(3);
+		page.writePageData(buf);
+		assertEquals(buf.capacity(), buf.position());
+		assertArrayEquals(EXAMPLE_DATA, Arrays.copyOfRange(buf.array(), 3, buf.capacity()));
+		assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+	}
+
 	@Test public void getId() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
 		assertEquals(pid, page.getId());
@@ -321,6 +337,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildIndex()
+	 */
+	@Test public void findChildIndex() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		// leave empty slots between the entries
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+			else
+				entries.add(e);
+		}
+		assertEquals(0, page.findChildIndex(null));
+		for (int key = 0; key < 65536; key += 97) {
+			IntField f = new IntField(key);
+			// the left child of the first entry with a key >= f is the right
+			// child of the entry before it
+			int expected = entries.get(entries.size() - 1).getRecordId().getTupleNumber();
+			for (int i = 0; i < entries.size(); i++) {
+				if (entries.get(i).getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+					expected = i == 0 ? 0 : entries.get(i - 1).getRecordId().getTupleNumber();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChildIndex(f));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
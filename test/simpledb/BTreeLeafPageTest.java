@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -18,6 +19,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 //import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
@@ -86,6 +88,19 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 	/**
 	 * Unit test for BTreeLeafPage.getId()
 	 */
+	/**
+	 * Unit test for BTreeLeafPage.writePageData()
+	 */
+	@Test public void writePageData() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		ByteBuffer buf = ByteBuffer.allocate(EXAMPLE_DATA.length + 3);
+		buf.position(3);
+		page.writePageData(buf);
+		assertEquals(buf.capacity(), buf.position());
+		assertArrayEquals(EXAMPLE_DATA, Arrays.copyOfRange(buf.array(), 3, buf.capacity()));
+		assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+	}
+
 	@Test public void getId() throws Exception {
 		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
 		assertEquals(pid, page.getId());
@@ -347,6 +362,41 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() and iterator(int)
+	 */
+	@Test public void lowerBound() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		// leave empty slots between the tuples
+		List<Tuple> tuples = new ArrayList<>();
+		Iterator<Tuple> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple t = it.next();
+			if (i % 3 == 1)
+				page.deleteTuple(t);
+			else
+				tuples.add(t);
+		}
+		for (int key = 0; key < 65536; key += 97) {
+			IntField f = new IntField(key);
+			int expected = page.getMaxTuples();
+			List<Tuple> tail = new ArrayList<>();
+			for (Tuple t : tuples) {
+				if (t.getField(0).compare(Op.GREATER_THAN_OR_EQ, f)) {
+					if (tail.isEmpty())
+						expected = t.getRecordId().getTupleNumber();
+					tail.add(t);
+				}
+			}
+			int slot = page.lowerBound(f);
+			assertEquals(expected, slot);
+			Iterator<Tuple> fromSlot = page.iterator(slot);
+			for (Tuple t : tail)
+				assertEquals(t, fromSlot.next());
+			assertFalse(fromSlot.hasNext());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -140,6 +140,35 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Before images are taken when a page is first fetched for writing, and
+     * committing one transaction leaves another's before images alone
+     */
+    @Test public void beforeImages() throws Exception {
+        HeapFile hf1 = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile hf2 = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid1 = new HeapPageId(hf1.getId(), 0);
+        HeapPageId pid2 = new HeapPageId(hf2.getId(), 0);
+
+        // a page that is only read is its own before image
+        HeapPage p1 = (HeapPage) Database.getBufferPool().getPage(tid, pid1, Permissions.READ_ONLY);
+        assertArrayEquals(p1.getPageData(), p1.getBeforeImage().getPageData());
+
+        Database.getBufferPool().insertTuple(tid, hf1.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(504 - 10, p1.getBeforeImage().getNumEmptySlots());
+        assertEquals(504 - 11, p1.getNumEmptySlots());
+
+        TransactionId other = new TransactionId();
+        Database.getBufferPool().insertTuple(other, hf2.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(other);
+        assertEquals(504 - 10, p1.getBeforeImage().getNumEmptySlots());
+
+        // after the commit, the committed page is its own before image again
+        HeapPage p2 = (HeapPage) Database.getBufferPool().getPage(tid, pid2, Permissions.READ_ONLY);
+        assertArrayEquals(p2.getPageData(), p2.getBeforeImage().getPageData());
+        assertEquals(504 - 11, p2.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "region", "name", "amount" });
+
+    private File f;
+    private CompressedHeapFile file;
+
+    @Before public void createFile() throws Exception {
+        f = File.createTempFile("compressed", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        file = new CompressedHeapFile(f, TD);
+        file.getFreeSpaceMap().getFile().deleteOnExit();
+        file.getPageChecksums().getFile().deleteOnExit();
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, int region, String name, int amount) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(region));
+        t.setField(2, new StringField(name, Type.STRING_LEN));
+        t.setField(3, new IntField(amount));
+        return t;
+    }
+
+    /**
+     * Pages read back are identical to the pages written, whatever encoding
+     * their columns get
+     */
+    @Test public void roundTrip() throws Exception {
+        Random random = new Random(42);
+        HeapPage page = new HeapPage(new HeapPageId(file.getId(), 0), HeapPage.createEmptyPageData());
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            // ids are sorted, regions repeat, names come from a few values,
+            // and amounts are random
+            page.insertTuple(tuple(i, i / 10, "customer " + (i % 3), random.nextInt()));
+        }
+        Tuple deleted = page.iterator().next();
+        page.deleteTuple(deleted);
+        file.writePage(page);
+        assertEquals(1, file.numPages());
+        assertArrayEquals(page.getPageData(), file.readPage(page.getId()).getPageData());
+
+        HeapPage empty = new HeapPage(new HeapPageId(file.getId(), 1), HeapPage.createEmptyPageData());
+        file.writePage(empty);
+        assertArrayEquals(empty.getPageData(), file.readPage(empty.getId()).getPageData());
+    }
+
+    /**
+     * Low-cardinality tables take several times fewer bytes on disk, and the
+     * file can be reopened and compacted
+     */
+    @Test public void compressedTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(),
+                    tuple(i, i % 4, "region " + (i % 4), i % 7 * 100));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        int numPages = file.numPages();
+        assertTrue(numPages > 30);
+        long length = f.length();
+        assertTrue(length * 5 < (long) numPages * BufferPool.getPageSize());
+
+        // a new file object finds the pages from the block headers
+        CompressedHeapFile reopened = new CompressedHeapFile(f, TD);
+        assertEquals(numPages, reopened.numPages());
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(file.getId(), i);
+            assertArrayEquals(file.readPage(pid).getPageData(), reopened.readPage(pid).getPageData());
+        }
+
+        // pages that shrink are rewritten in place, and compacting the file
+        // drops the bytes they no longer use
+        tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("region " + t.getInt(1), t.getField(2).toString());
+            if (t.getInt(0) % 2 == 0) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            }
+            count++;
+        }
+        it.close();
+        assertEquals(1000, count);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(length, f.length());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file.compact();
+        assertTrue(f.length() < length);
+        assertEquals(numPages, new CompressedHeapFile(f, TD).numPages());
+        tid = new TransactionId();
+        it = file.iterator(tid);
+        it.open();
+        count = 0;
+        while (it.hasNext()) {
+            assertEquals(1, it.next().getInt(0) % 2);
+            count++;
+        }
+        it.close();
+        assertEquals(500, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A page that outgrows its block gets a new one, and the file compacts
+     * itself before the old blocks take more bytes than the current ones
+     */
+    @Test public void growingPages() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, file.getId(),
+                    tuple(i, i, "name " + i, i * 1000));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        long length = f.length();
+        file.compact();
+        assertTrue(length + " bytes, " + f.length() + " compacted", length <= 2 * f.length());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        Set<Integer> ids = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("name " + t.getInt(0), t.getField(2).toString());
+            ids.add(t.getInt(0));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(300, ids.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -90,6 +90,47 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for the free-space map consulted by HeapFile.insertTuple()
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        smallFile.getFreeSpaceMap().getFile().deleteOnExit();
+        int tableId = smallFile.getId();
+        byte[] full = new byte[BufferPool.getPageSize()];
+        Arrays.fill(full, (byte) 0xFF);
+        for (int i = 0; i < 3; i++) {
+            smallFile.writePage(new HeapPage(new HeapPageId(tableId, i), full));
+        }
+        smallFile.writePage(new HeapPage(new HeapPageId(tableId, 3), HeapPage.createEmptyPageData()));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(smallFile.getFreeSpaceMap().isFull(i));
+        }
+        assertFalse(smallFile.getFreeSpaceMap().isFull(3));
+
+        // the insert goes straight to the first page with room
+        Page page = smallFile.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0);
+        assertEquals(3, page.getId().getPageNumber());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(tableId, i)));
+        }
+
+        // a lost map is rebuilt as inserts find full pages
+        assertTrue(smallFile.getFreeSpaceMap().getFile().delete());
+        HeapFile reopened = new HeapFile(smallFile.getFile(), smallFile.getTupleDesc());
+        page = reopened.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0);
+        assertEquals(3, page.getId().getPageNumber());
+        assertTrue(reopened.getFreeSpaceMap().isFull(0));
+        assertTrue(new FreeSpaceMap(smallFile.getFile()).isFull(2));
+
+        // writing a page with room clears its bit
+        HeapPage p = new HeapPage(new HeapPageId(tableId, 1), full);
+        p.deleteTuple(p.iterator().next());
+        reopened.writePage(p);
+        assertFalse(new FreeSpaceMap(smallFile.getFile()).isFull(1));
+        assertEquals(1, reopened.getFreeSpaceMap().nextFreePage(0));
+    }
+
     /**
      * JUnit suite target
      */
@@ -13,6 +13,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -102,6 +103,31 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for tuples that decode their fields from the page data
+     */
+    @Test public void testLazyTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Tuple> tuples = new ArrayList<>();
+        page.iterator().forEachRemaining(tuples::add);
+        for (int row = 0; row < tuples.size(); row++) {
+            assertEquals(EXAMPLE_VALUES[row][1], tuples.get(row).getInt(1));
+        }
+
+        // writing the page does not change tuples read before
+        page.deleteTuple(tuples.get(0));
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        assertEquals(EXAMPLE_VALUES[0][0], tuples.get(0).getInt(0));
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) tuples.get(0).getField(0)).getValue());
+        assertEquals(-1, page.iterator().next().getInt(0));
+
+        // and the page serializes its own copy of the data
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(-1, ((IntField) copy.iterator().next().getField(1)).getValue());
+        assertEquals(EXAMPLE_VALUES[1][1], tuples.get(1).getInt(1));
+        assertArrayEquals(EXAMPLE_DATA, new HeapPage(pid, EXAMPLE_DATA).getPageData());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
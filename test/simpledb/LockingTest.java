@@ -4,6 +4,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -11,6 +12,7 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -103,6 +105,27 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     t.stop();
   }
 
+  /**
+   * Unit test for BufferPool.bulkAppend() assuming locking.
+   * The table lock waits for other transactions' page locks, and blocks
+   * every page of the table until the bulk append completes.
+   */
+  @Test public void bulkAppendLocksTable() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    try {
+      bp.bulkAppend(tid2, empty.getId());
+      fail("locked a table with a page locked by another transaction");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1);
+
+    bp.bulkAppend(tid2, empty.getId());
+    grabLock(tid1, p1, Permissions.READ_ONLY, false);
+    bp.transactionComplete(tid2);
+    grabLock(tid1, p1, Permissions.READ_ONLY, true);
+  }
+
   /**
    * Unit test for BufferPool.getPage() assuming locking.
    * Acquires two read locks on the same page.
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PageChecksumsTest extends SimpleDbTestBase {
+
+    private File f;
+    private HeapFile hf;
+
+    @Before public void createFile() throws Exception {
+        f = File.createTempFile("checksums", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        hf.getFreeSpaceMap().getFile().deleteOnExit();
+        hf.getPageChecksums().getFile().deleteOnExit();
+    }
+
+    private void insertTuples(TransactionId tid, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+        }
+    }
+
+    // overwrites part of a page on disk, as a write cut short by a crash would
+    private static void tear(File file, long offset) throws Exception {
+        byte[] garbage = new byte[64];
+        Arrays.fill(garbage, (byte) 0x55);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.write(garbage);
+        }
+    }
+
+    private static void assertTorn(DbFile file, PageId pid) {
+        try {
+            file.readPage(pid);
+            fail("expected the torn page " + pid.getPageNumber() + " to fail its checksum");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A heap page damaged after it was written fails its checksum
+     */
+    @Test public void tornHeapPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        insertTuples(tid, 600);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.numPages() > 1);
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        hf.readPage(pid);
+        tear(f, BufferPool.getPageSize() + BufferPool.getPageSize() / 2);
+        assertTorn(hf, pid);
+        // other pages are unaffected
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        // pages of files without checksums are not checked
+        assertTrue(hf.getPageChecksums().getFile().delete());
+        new HeapFile(f, hf.getTupleDesc()).readPage(pid);
+    }
+
+    /**
+     * A crash between writing the checksum of a page and writing the page
+     * leaves a whole version of the page, which passes its checksum
+     */
+    @Test public void crashBetweenChecksumAndPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        insertTuples(tid, 10);
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 10, -10 }));
+        byte[] after = page.getPageData();
+
+        // the checksum is written, the crash comes before the page write
+        hf.getPageChecksums().update(0, after, 0, after.length);
+        assertArrayEquals(before, new HeapFile(f, hf.getTupleDesc()).readPage(pid).getPageData());
+
+        // the page write completes
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(after);
+        }
+        assertArrayEquals(after, new HeapFile(f, hf.getTupleDesc()).readPage(pid).getPageData());
+
+        // a page cut short in the middle of the write matches neither version
+        tear(f, BufferPool.getPageSize() / 2);
+        assertTorn(new HeapFile(f, hf.getTupleDesc()), pid);
+    }
+
+    /**
+     * A compressed page damaged after it was written fails its checksum
+     */
+    @Test public void tornCompressedPage() throws Exception {
+        File cf = File.createTempFile("checksums", ".dat");
+        cf.delete();
+        cf.deleteOnExit();
+        CompressedHeapFile chf = new CompressedHeapFile(cf, Utility.getTupleDesc(2));
+        chf.getFreeSpaceMap().getFile().deleteOnExit();
+        chf.getPageChecksums().getFile().deleteOnExit();
+        Database.getCatalog().addTable(chf, "compressed");
+        Random random = new Random(1);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, chf.getId(),
+                    Utility.getHeapTuple(new int[] { i, random.nextInt() }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapPageId pid = new HeapPageId(chf.getId(), 0);
+        chf.readPage(pid);
+        // the last random value of the second column, stored as is, ends the block
+        try (RandomAccessFile raf = new RandomAccessFile(cf, "rw")) {
+            raf.seek(cf.length() - 4);
+            raf.writeInt(0x55555555);
+        }
+        CompressedHeapFile reopened = new CompressedHeapFile(cf, chf.getTupleDesc());
+        assertTorn(reopened, pid);
+        // the page still decompresses: only its checksum tells it is torn
+        reopened.getPageChecksums().setVerifying(false);
+        reopened.readPage(pid);
+    }
+
+    /**
+     * B+ tree pages, including the root pointer page, fail their checksum
+     * when damaged
+     */
+    @Test public void tornBTreePages() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        bf.getPageChecksums().getFile().deleteOnExit();
+        BTreePageId leaf = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+        bf.readPage(leaf);
+        tear(bf.getFile(), BTreeRootPtrPage.getPageSize() + 100);
+        assertTorn(bf, leaf);
+
+        BTreePageId rootPtr = BTreeRootPtrPage.getId(bf.getId());
+        bf.readPage(rootPtr);
+        tear(bf.getFile(), 1);
+        assertTorn(bf, rootPtr);
+    }
+
+    /**
+     * Recovery writes the logged image of a page torn by a crash, and the
+     * page passes its checksum again
+     */
+    @Test public void recoveryRepairsTornPage() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertTuples(t.getId(), 10);
+        t.commit();
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] committed = hf.readPage(pid).getPageData();
+        tear(f, BufferPool.getPageSize() / 2);
+        assertTorn(hf, pid);
+
+        // crash and recover
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        assertArrayEquals(committed, hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumsTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.ParallelHeapFileEncoder;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ParallelHeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+    private File in;
+    private File expected;
+    private File actual;
+
+    @Before public void createFiles() throws Exception {
+        in = File.createTempFile("table", ".txt");
+        expected = File.createTempFile("table", ".dat");
+        actual = File.createTempFile("table", ".dat");
+        in.deleteOnExit();
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+    }
+
+    private void writeInput(int rows, Random random) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(in))) {
+            for (int i = 0; i < rows; i++) {
+                StringBuilder name = new StringBuilder();
+                for (int j = random.nextInt(Type.STRING_LEN + 20); j > 0; j--) {
+                    name.append((char) ('a' + random.nextInt(26)));
+                }
+                out.print(random.nextInt() + "," + name + "," + i + "\n");
+            }
+        }
+    }
+
+    private void assertSameAsHeapFileEncoder(int parallelism, int chunkSize) throws IOException {
+        HeapFileEncoder.convert(in, expected, BufferPool.getPageSize(), TYPES.length, TYPES, ',');
+        ParallelHeapFileEncoder.convert(in, actual, BufferPool.getPageSize(), TYPES.length, TYPES, ',',
+                parallelism, chunkSize);
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    /**
+     * Small chunks put page boundaries and chunk boundaries in every possible
+     * relative position, and the pages still come out byte for byte the same
+     */
+    @Test public void sameAsHeapFileEncoder() throws Exception {
+        writeInput(5000, new Random(7));
+        assertSameAsHeapFileEncoder(4, 1000);
+        assertSameAsHeapFileEncoder(3, 37);
+        assertSameAsHeapFileEncoder(1, ParallelHeapFileEncoder.CHUNK_SIZE);
+    }
+
+    /**
+     * An empty input gives one empty page, and a table of exactly one page
+     * gives a single page
+     */
+    @Test public void pageBoundaries() throws Exception {
+        writeInput(0, new Random(1));
+        assertSameAsHeapFileEncoder(2, 16);
+        assertEquals(BufferPool.getPageSize(), actual.length());
+
+        int perPage = BufferPool.getPageSize() * 8 / ((4 + 4 + Type.STRING_LEN + 4) * 8 + 1);
+        writeInput(perPage, new Random(2));
+        assertSameAsHeapFileEncoder(2, 100);
+        assertEquals(BufferPool.getPageSize(), actual.length());
+    }
+
+    /**
+     * Malformed lines are reported instead of being written as broken tuples
+     */
+    @Test public void badLines() throws Exception {
+        for (String line : new String[] { "1,abc\n", "1,abc,2,3\n", "x,abc,2\n" }) {
+            try (FileWriter out = new FileWriter(in)) {
+                out.write("5,ok,6\n" + line);
+            }
+            try {
+                ParallelHeapFileEncoder.convert(in, actual, BufferPool.getPageSize(), TYPES.length, TYPES, ',', 2, 4);
+                fail("expected an IOException for " + line);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHeapFileEncoderTest.class);
+    }
+}
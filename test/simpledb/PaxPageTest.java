@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PaxPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "id", "name", "value" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name, int value) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        t.setField(2, new IntField(value));
+        return t;
+    }
+
+    private static List<Tuple> tuples(PaxPage page) {
+        List<Tuple> list = new ArrayList<>();
+        page.iterator().forEachRemaining(list::add);
+        return list;
+    }
+
+    /**
+     * Unit test for PaxPage round trips through getPageData
+     */
+    @Test public void roundTrip() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        int slots = page.getNumEmptySlots();
+        assertEquals(BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1), slots);
+        for (int i = 0; i < slots; i++) {
+            page.insertTuple(tuple(i, "name" + i, -i));
+        }
+        assertTrue(page.isFull());
+        try {
+            page.insertTuple(tuple(-1, "", 0));
+            fail("inserted into a full page");
+        } catch (DbException e) {
+            // expected
+        }
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        List<Tuple> read = tuples(copy);
+        assertEquals(slots, read.size());
+        for (int i = 0; i < slots; i++) {
+            Tuple t = read.get(i);
+            assertEquals(i, t.getInt(0));
+            assertEquals("name" + i, t.getField(1).toString());
+            assertEquals(-i, t.getInt(2));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * The values of a column are stored next to each other
+     */
+    @Test public void columnLayout() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a", 10));
+        page.insertTuple(tuple(2, "b", 20));
+        page.insertTuple(tuple(3, "c", 30));
+        byte[] data = page.getPageData();
+
+        int slots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        int headerSize = (slots + 7) / 8;
+        int ids = headerSize;
+        int values = headerSize + slots * (Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, Type.readInt(data, ids + i * Type.INT_TYPE.getLen()));
+            assertEquals((i + 1) * 10, Type.readInt(data, values + i * Type.INT_TYPE.getLen()));
+        }
+    }
+
+    /**
+     * Deleted slots are reused, and tuples handed out earlier keep their values
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        Tuple a = tuple(1, "a", 10);
+        Tuple b = tuple(2, "b", 20);
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page = new PaxPage(pid, page.getPageData());
+        Tuple readA = tuples(page).get(0);
+
+        page.deleteTuple(readA);
+        assertEquals(1, tuples(page).size());
+        try {
+            page.deleteTuple(readA);
+            fail("deleted a tuple twice");
+        } catch (DbException e) {
+            // expected
+        }
+        Tuple c = tuple(3, "c", 30);
+        page.insertTuple(c);
+        assertEquals(new RecordId(pid, 0), c.getRecordId());
+        assertEquals(1, readA.getInt(0));
+        assertEquals("a", readA.getField(1).toString());
+        assertEquals(3, tuples(page).get(0).getInt(0));
+    }
+
+    /**
+     * PaxHeapFile inserts, scans and deletes through the BufferPool
+     */
+    @Test public void paxHeapFile() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        PaxHeapFile file = new PaxHeapFile(f, TD);
+        file.getFreeSpaceMap().getFile().deleteOnExit();
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "row " + i, i * i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, file.numPages());
+        assertTrue(file.readPage(new HeapPageId(file.getId(), 0)) instanceof PaxPage);
+
+        tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(t.getInt(0) * t.getInt(0), t.getInt(2));
+            Database.getBufferPool().deleteTuple(tid, t);
+            count++;
+        }
+        it.close();
+        assertEquals(100, count);
+        Database.getBufferPool().transactionComplete(tid);
+        it = file.iterator(new TransactionId());
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "name" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> tuples(SlottedPage page) {
+        List<Tuple> list = new ArrayList<>();
+        page.iterator().forEachRemaining(list::add);
+        return list;
+    }
+
+    /**
+     * Unit test for SlottedPage round trips through getPageData
+     */
+    @Test public void roundTrip() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, page.getNumTuples());
+        page.insertTuple(tuple(1, "a"));
+        page.insertTuple(tuple(2, ""));
+        page.insertTuple(tuple(3, "a somewhat longer string"));
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        List<Tuple> read = tuples(copy);
+        assertEquals(3, read.size());
+        assertEquals("a somewhat longer string", read.get(2).getField(1).toString());
+        assertEquals(new RecordId(pid, 2), read.get(2).getRecordId());
+        assertEquals(page.getFreeSpace(), copy.getFreeSpace());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Short strings take as many bytes as they have characters
+     */
+    @Test public void variableLength() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        int count = 0;
+        while (page.hasRoomFor(tuple(count, "name" + count))) {
+            page.insertTuple(tuple(count, "name" + count));
+            count++;
+        }
+        // a HeapPage has room for 30 tuples of 136 bytes
+        int heapSlots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        assertTrue(count > 5 * heapSlots);
+        assertTrue(page.isFull());
+        try {
+            page.insertTuple(tuple(-1, "name"));
+            fail("inserted into a full page");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Deleted tuples give back their bytes and their slot
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        int empty = page.getFreeSpace();
+        Tuple a = tuple(1, "aaaaaaaa");
+        Tuple b = tuple(2, "bbbbbbbb");
+        Tuple c = tuple(3, "cccccccc");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        int full = page.getFreeSpace();
+
+        page.deleteTuple(b);
+        assertEquals(2, page.getNumTuples());
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(Arrays.asList(a.getRecordId(), c.getRecordId()),
+                Arrays.asList(tuples(copy).get(0).getRecordId(), tuples(copy).get(1).getRecordId()));
+        assertEquals("cccccccc", tuples(copy).get(1).getField(1).toString());
+
+        Tuple d = tuple(4, "dd");
+        page.insertTuple(d);
+        assertEquals(new RecordId(pid, 1), d.getRecordId());
+        assertTrue(page.getFreeSpace() > full);
+
+        page.deleteTuple(a);
+        page.deleteTuple(c);
+        page.deleteTuple(d);
+        assertEquals(empty, page.getFreeSpace());
+        try {
+            page.deleteTuple(d);
+            fail("deleted a tuple twice");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * SlottedHeapFile inserts, scans and deletes through the BufferPool
+     */
+    @Test public void slottedHeapFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        SlottedHeapFile file = new SlottedHeapFile(f, TD);
+        file.getFreeSpaceMap().getFile().deleteOnExit();
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "row " + i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, file.numPages());
+
+        tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("row " + ((IntField) t.getField(0)).getValue(), t.getField(1).toString());
+            Database.getBufferPool().deleteTuple(tid, t);
+            count++;
+        }
+        it.close();
+        assertEquals(300, count);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(new SlottedPage(new HeapPageId(file.getId(), 0), HeapPage.createEmptyPageData())
+                .getFreeSpace() <= ((SlottedPage) file.readPage(new HeapPageId(file.getId(), 0))).getFreeSpace());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
@@ -1,10 +1,16 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.text.ParseException;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
 
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -59,6 +65,29 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for Type.parse() with a string length that does not fit the field
+     */
+    @Test public void parseBadStringLength() throws Exception {
+        for (int strLen : new int[] { -1, Type.STRING_LEN + 1 }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(strLen);
+            out.write(new byte[Type.STRING_LEN]);
+            byte[] data = bytes.toByteArray();
+            try {
+                Type.STRING_TYPE.parse(data, 0);
+                fail("parsed a string of length " + strLen);
+            } catch (ParseException expected) {
+            }
+            try {
+                Type.STRING_TYPE.parse(new DataInputStream(new ByteArrayInputStream(data)));
+                fail("parsed a string of length " + strLen);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
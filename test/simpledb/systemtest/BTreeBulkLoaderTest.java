@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+	}
+
+	private static File tempIndexFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+		return f;
+	}
+
+	private static int count(Iterator<Integer> it) {
+		int n = 0;
+		for (; it.hasNext(); it.next()) {
+			n++;
+		}
+		return n;
+	}
+
+	private static List<Integer> keys(DbFileIterator it, int keyField) throws Exception {
+		List<Integer> keys = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			keys.add(((IntField) it.next().getField(keyField)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * An unsorted table larger than a sort run gives a valid three level tree
+	 * with the requested occupancy, whose scans and searches see every tuple
+	 */
+	@Test public void unsortedInput() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples);
+		TransactionId tid = new TransactionId();
+
+		// runs of 1000 tuples
+		int runBytes = 1000 * BTreeBulkLoader.tupleBytes(hf.getTupleDesc());
+		BTreeFile bf = new BTreeBulkLoader(tid, hf, 1).fillFactor(0.75).runBytes(runBytes)
+				.build(tempIndexFile(), "bulk");
+		assertSame(bf, Database.getCatalog().getDatabaseFile(bf.getId()));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// 124 tuples per leaf, filled to 93: 216 leaves, under 3 internal pages and a root
+		assertEquals(216 + 3 + 1, bf.numPages());
+
+		List<Integer> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			expected.add(t.get(1));
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys(bf.iterator(tid), 1));
+
+		int key = expected.get(expected.size() / 2);
+		List<Integer> found = keys(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))), 1);
+		assertEquals(Collections.frequency(expected, key), found.size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Sorted input is loaded without a sort, an empty table gives an empty
+	 * tree, and unsorted input declared sorted is rejected without leaving a
+	 * file behind or replacing the table of the same name
+	 */
+	@Test public void sortedInput() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		TransactionId tid = new TransactionId();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+		BTreeFile sorted = new BTreeBulkLoader(tid, hf, 0).build(tempIndexFile(), "sorted");
+
+		BTreeFile bf = new BTreeBulkLoader(tid, sorted, 0).sorted(true).fillFactor(0.5)
+				.build(tempIndexFile(), "resorted");
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(keys(sorted.iterator(tid), 0), keys(bf.iterator(tid), 0));
+
+		HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeFile none = new BTreeBulkLoader(tid, empty, 0).build(tempIndexFile(), "empty");
+		assertEquals(1, none.numPages());
+		assertTrue(keys(none.iterator(tid), 0).isEmpty());
+
+		File unsorted = tempIndexFile();
+		int tables = count(Database.getCatalog().tableIdIterator());
+		try {
+			new BTreeBulkLoader(tid, hf, 0).sorted(true).build(unsorted, "sorted");
+			fail("expected a DbException for unsorted input");
+		} catch (DbException e) {
+			// expected
+		}
+		assertFalse(unsorted.exists());
+		assertEquals(sorted.getId(), Database.getCatalog().getTableId("sorted"));
+		assertEquals(tables, count(Database.getCatalog().tableIdIterator()));
+		try {
+			new BTreeBulkLoader(tid, hf, 0).fillFactor(0.4);
+			fail("expected an IllegalArgumentException for a fill factor below one half");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,338 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRebuilder;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class BTreeRebuildTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = Utility.getTupleDesc(2, "c");
+
+	// deletes that merge pages dirty many pages in one transaction
+	@Before public void setUp() {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(500);
+	}
+
+	@After public void tearDown() {
+		BufferPool.resetPageSize();
+	}
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("rebuild", ".dat");
+		f.deleteOnExit();
+		new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+		return f;
+	}
+
+	// a full tree of the tuples (i, i) for i from 0 to rows, named "t"
+	private static BTreeFile load(int rows) throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			tuples.add(Arrays.asList(i, i));
+		}
+		File heap = tempFile();
+		HeapFileEncoder.convert(tuples, heap, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, "c", heap);
+
+		File f = tempFile();
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = new BTreeBulkLoader(tid, hf, 0).build(f, "t");
+		Database.getBufferPool().transactionComplete(tid);
+		return bf;
+	}
+
+	private static Tuple tuple(int key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new IntField(key));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	// deletes the tuple with the given key in transaction tid
+	private static void delete(TransactionId tid, int tableId, int key) throws Exception {
+		BTreeFile bf = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		assertTrue("no tuple with key " + key, it.hasNext());
+		Tuple t = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+	}
+
+	private static List<List<Integer>> contents(BTreeFile bf) throws Exception {
+		TransactionId tid = new TransactionId();
+		List<List<Integer>> tuples = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			tuples.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		return tuples;
+	}
+
+	/**
+	 * Rebuilding a tree whose pages were emptied by deletes gives a smaller
+	 * tree of the same tuples, under the same table id and name
+	 */
+	@Test public void compaction() throws Exception {
+		BTreeFile bf = load(8000);
+		int tableId = bf.getId();
+		for (int batch = 0; batch < 8000; batch += 500) {
+			Transaction t = new Transaction();
+			t.start();
+			for (int i = batch; i < batch + 500; i++) {
+				if (i % 4 != 0) {
+					delete(t.getId(), tableId, i);
+				}
+			}
+			t.commit();
+		}
+		List<List<Integer>> expected = contents(bf);
+		assertEquals(2000, expected.size());
+		int pages = bf.numPages();
+
+		BTreeFile rebuilt = new BTreeRebuilder(bf).rebuild();
+		assertEquals(tableId, rebuilt.getId());
+		assertSame(rebuilt, Database.getCatalog().getDatabaseFile(tableId));
+		assertEquals(tableId, Database.getCatalog().getTableId("t"));
+		assertTrue(rebuilt.numPages() + " pages, " + pages + " before", rebuilt.numPages() < pages / 2);
+		assertEquals(expected, contents(rebuilt));
+
+		// the rebuilt tree takes new writes
+		Transaction t = new Transaction();
+		t.start();
+		Database.getBufferPool().insertTuple(t.getId(), tableId, tuple(1, 1));
+		delete(t.getId(), tableId, 4);
+		t.commit();
+		expected.remove(Arrays.asList(4, 4));
+		expected.add(1, Arrays.asList(1, 1));
+		assertEquals(expected, contents(rebuilt));
+	}
+
+	// inserts the tuples (key, -key) for keys from "from" up to "to" in transaction tid
+	private static void insertRange(TransactionId tid, int tableId, int from, int to) throws Exception {
+		for (int key = from; key < to; key++) {
+			Database.getBufferPool().insertTuple(tid, tableId, tuple(key, -key));
+		}
+	}
+
+	private static void deleteRange(TransactionId tid, int tableId, int from, int to) throws Exception {
+		for (int key = from; key < to; key++) {
+			delete(tid, tableId, key);
+		}
+	}
+
+	/**
+	 * The tuples written by transactions that commit while the tree is
+	 * rebuilt are all in the rebuilt tree, and none of those written by
+	 * transactions that abort, also when their pages were stolen into the
+	 * snapshot of the tree
+	 */
+	@Test public void concurrentWrites() throws Exception {
+		BTreeFile bf = load(20000);
+		int tableId = bf.getId();
+		Map<Integer, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < 20000; i++) {
+			expected.put(i, i);
+		}
+
+		// two transactions steal pages before the snapshot; neither splits
+		// nor merges a page, so they share the internal pages
+		Transaction committing = new Transaction();
+		committing.start();
+		deleteRange(committing.getId(), tableId, 0, 40);
+		insertRange(committing.getId(), tableId, 10, 30);
+		Transaction aborting = new Transaction();
+		aborting.start();
+		deleteRange(aborting.getId(), tableId, 2000, 2030);
+		insertRange(aborting.getId(), tableId, 2010, 2020);
+		Database.getBufferPool().flushAllPages();
+
+		BTreeFile rebuilt = new BTreeRebuilder(bf) {
+			private Transaction stealing;
+
+			@Override protected void progress(int round) {
+				try {
+					if (round == 0) {
+						deleteRange(committing.getId(), tableId, 40, 50);
+						committing.commit();
+						aborting.abort();
+
+						Transaction t = new Transaction();
+						t.start();
+						insertRange(t.getId(), tableId, 20000, 20200);
+						deleteRange(t.getId(), tableId, 5000, 5200);
+						t.commit();
+
+						// steals a page after the snapshot, and aborts in the next round
+						stealing = new Transaction();
+						stealing.start();
+						deleteRange(stealing.getId(), tableId, 8000, 8030);
+						Database.getBufferPool().flushAllPages();
+					} else if (round == 1) {
+						stealing.abort();
+
+						Transaction t = new Transaction();
+						t.start();
+						deleteRange(t.getId(), tableId, 9000, 9010);
+						t.commit();
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}.fillFactor(0.75).rebuild();
+
+		for (int key = 0; key < 50; key++) {
+			expected.remove(key);
+		}
+		for (int key = 10; key < 30; key++) {
+			expected.put(key, -key);
+		}
+		for (int key = 20000; key < 20200; key++) {
+			expected.put(key, -key);
+		}
+		for (int key = 5000; key < 5200; key++) {
+			expected.remove(key);
+		}
+		for (int key = 9000; key < 9010; key++) {
+			expected.remove(key);
+		}
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+			tuples.add(Arrays.asList(e.getKey(), e.getValue()));
+		}
+		assertEquals(tuples, contents(rebuilt));
+	}
+
+	// deletes the keys from 0 up to rows that are not multiples of 4, in
+	// committed transactions, and returns the tuples left
+	private static List<List<Integer>> deleteMost(int tableId, int rows) throws Exception {
+		List<List<Integer>> left = new ArrayList<>();
+		for (int batch = 0; batch < rows; batch += 500) {
+			Transaction t = new Transaction();
+			t.start();
+			for (int i = batch; i < batch + 500; i++) {
+				if (i % 4 != 0) {
+					delete(t.getId(), tableId, i);
+				} else {
+					left.add(Arrays.asList(i, i));
+				}
+			}
+			t.commit();
+		}
+		return left;
+	}
+
+	// restarts the database with the tree of file f as table "t", and
+	// recovers it from the log
+	private static BTreeFile crash(File f) throws Exception {
+		Database.reset();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, "t");
+		Database.getLogFile().recover();
+		return bf;
+	}
+
+	/**
+	 * Recovery after a crash does not write the images of the pages of the
+	 * old tree into the rebuilt file, also when a transaction that was live
+	 * before the rebuild keeps them in the log
+	 */
+	@Test public void crashAfterRebuild() throws Exception {
+		BTreeFile bf = load(4000);
+		File f = bf.getFile();
+		// a checkpoint keeps the log from the first record of this transaction
+		Transaction open = new Transaction();
+		open.start();
+		List<List<Integer>> expected = deleteMost(bf.getId(), 4000);
+
+		BTreeFile rebuilt = new BTreeRebuilder(bf).rebuild();
+		Database.getLogFile().logCheckpoint();
+		Transaction t = new Transaction();
+		t.start();
+		Database.getBufferPool().insertTuple(t.getId(), rebuilt.getId(), tuple(1, 1));
+		t.commit();
+		expected.add(1, Arrays.asList(1, 1));
+
+		assertEquals(expected, contents(crash(f)));
+	}
+
+	/**
+	 * A crash after the REBUILD record is logged but before the rebuilt file
+	 * is moved over the old one leaves the old tree as it was
+	 */
+	@Test public void crashBeforeSwap() throws Exception {
+		BTreeFile bf = load(4000);
+		File f = bf.getFile();
+		List<List<Integer>> expected = deleteMost(bf.getId(), 4000);
+		Database.getLogFile().logRebuild(bf.getId());
+
+		assertEquals(expected, contents(crash(f)));
+	}
+
+	/**
+	 * A standby replica of the tree copies the primary's file again when
+	 * the primary rebuilds it, and redoes the writes made after the rebuild
+	 */
+	@Test public void standbyFollowsRebuild() throws Exception {
+		BTreeFile bf = load(4000);
+		int tableId = bf.getId();
+		File standbyFile = tempFile();
+		Files.copy(bf.getFile().toPath(), standbyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		BTreeFile standby = new BTreeFile(standbyFile, 0, TD);
+		Database.getCatalog().addTable(standby, "standby");
+		deleteMost(tableId, 2000);
+		StandbyReplica replica = new StandbyReplica(Database.getLogFile().getFile(),
+				Collections.singletonMap(tableId, standby.getId()),
+				Collections.singletonMap(tableId, bf.getFile()));
+		try {
+			replica.applyAvailable();
+			long copies = replica.getCopies();
+
+			BTreeFile rebuilt = new BTreeRebuilder(bf).rebuild();
+			Transaction t = new Transaction();
+			t.start();
+			insertRange(t.getId(), tableId, 4000, 4100);
+			delete(t.getId(), tableId, 2000);
+			t.commit();
+			replica.applyAvailable();
+
+			assertEquals(copies + 1, replica.getCopies());
+			assertEquals(contents(rebuilt), contents(standby));
+		} finally {
+			replica.close();
+		}
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.JUnit4TestAdapter suite() {
+		return new JUnit4TestAdapter(BTreeRebuildTest.class);
+	}
+}
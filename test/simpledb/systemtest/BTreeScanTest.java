@@ -13,10 +13,14 @@ import org.junit.Test;
 
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeFile;
 import simpledb.index.BTreeScan;
 import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -284,6 +288,359 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    private static List<List<Integer>> readAll(DbFileIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return result;
+    }
+
+    /** Test that a descending scan returns the tuples of an ascending scan in reverse */
+    @Test public void testDescending() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+
+        List<List<Integer>> expected = readAll(f.iterator(tid));
+        Collections.reverse(expected);
+        assertEquals(expected, readAll(f.descendingIterator(tid, null)));
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", null, true);
+        assertTrue(scan.isDescending());
+        SystemTestUtil.matchTuples(scan, tuples);
+
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS }) {
+            IndexPredicate ipred = new IndexPredicate(op, new IntField(tuples.get(r.nextInt(5000)).get(keyField)));
+            expected = readAll(f.indexIterator(tid, ipred));
+            Collections.reverse(expected);
+            assertEquals(op.toString(), expected, readAll(f.descendingIterator(tid, ipred)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the first tuples of a descending scan below a bound read only the pages they need */
+    @Test public void testDescendingReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int bound = 502 + r.nextInt((LEAF_PAGES - 2) * 502);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table",
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(bound)), true);
+        scan.open();
+        int prev = Integer.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            int key = ((IntField) scan.next().getField(keyField)).getValue();
+            assertTrue(key <= bound && key <= prev);
+            prev = key;
+        }
+        scan.close();
+        // root pointer page + root + the leaf page of the bound (possibly 2 leaf pages)
+        assertTrue(table.readCount == 3 || table.readCount == 4);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that range scans return the tuples between their bounds, in both directions */
+    @Test public void testRangeScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> all = readAll(f.iterator(tid));
+
+        int a = tuples.get(r.nextInt(5000)).get(keyField);
+        int b = tuples.get(r.nextInt(5000)).get(keyField);
+        for (int[] bounds : new int[][] { { Math.min(a, b), Math.max(a, b) }, { a, a }, { a + 1, a - 1 } }) {
+            for (Op lowerOp : new Op[] { Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+                for (Op upperOp : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ }) {
+                    IndexPredicate range = new IndexPredicate(lowerOp, new IntField(bounds[0]),
+                            upperOp, new IntField(bounds[1]));
+                    List<List<Integer>> expected = new ArrayList<>();
+                    for (List<Integer> t : all) {
+                        if (new IntField(t.get(keyField)).compare(lowerOp, new IntField(bounds[0]))
+                                && new IntField(t.get(keyField)).compare(upperOp, new IntField(bounds[1]))) {
+                            expected.add(t);
+                        }
+                    }
+                    String msg = lowerOp + " " + bounds[0] + " " + upperOp + " " + bounds[1];
+                    assertEquals(msg, expected, readAll(f.indexIterator(tid, range)));
+                    Collections.reverse(expected);
+                    assertEquals(msg, expected, readAll(f.descendingIterator(tid, range)));
+                }
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a range scan stops reading at its upper bound */
+    @Test public void testRangeReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int lower = r.nextInt((LEAF_PAGES - 2) * 502);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        IndexPredicate range = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(lower),
+                Op.LESS_THAN, new IntField(lower + 300));
+        List<List<Integer>> result = readAll(table.indexIterator(tid, range));
+        for (List<Integer> t : result) {
+            assertTrue(t.get(keyField) >= lower && t.get(keyField) < lower + 300);
+        }
+        assertFalse(result.isEmpty());
+        // root pointer page + root + the leaf pages of the range and the page after it
+        assertTrue(table.readCount <= 5);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner scans the range of a key bounded on both sides instead of filtering */
+    @Test public void testRangePlan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+        BTreeFile named = BTreeUtility.openBTreeFile(2, "c", f.getFile(), 0);
+        String name = Database.getCatalog().getTableName(named.getId());
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(named.getId(), 1));
+
+        int lower = r.nextInt(BTreeUtility.MAX_RAND_VALUE / 2);
+        int upper = lower + BTreeUtility.MAX_RAND_VALUE / 4;
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.GREATER_THAN, Integer.toString(lower));
+        lp.addFilter("t.c0", Op.LESS_THAN_OR_EQ, Integer.toString(upper));
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) > lower && t.get(0) <= upper) {
+                expected.add(t);
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that the planner scans a key bounded on one side from its bound, so the first
+     * tuples of a descending scan below a threshold read only the pages they need
+     */
+    @Test public void testBoundPlan() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        String name = Database.getCatalog().getTableName(table.getId());
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(table.getId(), 1));
+
+        int bound = 502 + r.nextInt((LEAF_PAGES - 2) * 502);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.LESS_THAN, Integer.toString(bound));
+        lp.addOrderBy("t.c0", false);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        OpIterator child = ((Operator) plan).getChildren()[0];
+        assertTrue(child instanceof BTreeScan);
+        assertTrue(((BTreeScan) child).isDescending());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        plan.open();
+        int prev = bound;
+        for (int i = 0; i < 10; i++) {
+            int key = ((IntField) plan.next().getField(0)).getValue();
+            assertTrue(key < prev);
+            prev = key;
+        }
+        plan.close();
+        // root pointer page + root + the leaf page of the bound (possibly 2 leaf pages)
+        assertTrue(table.readCount == 3 || table.readCount == 4);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a lower bound alone is scanned from the bound too
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.GREATER_THAN_OR_EQ, Integer.toString(bound));
+        tid = new TransactionId();
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) >= bound) {
+                expected.add(t);
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the key ranges of a partitioned scan are disjoint, ordered, and cover the tree */
+    @Test public void testPartitionIterators() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> all = readAll(f.iterator(tid));
+
+        for (int k : new int[] { 1, 2, 4, 7, 1000 }) {
+            List<DbFileIterator> ranges = f.partitionIterators(tid, k);
+            assertTrue(ranges.size() <= k);
+            if (k <= 4) {
+                assertEquals(k, ranges.size());
+            }
+            List<List<Integer>> result = new ArrayList<>();
+            int prevMax = Integer.MIN_VALUE;
+            for (DbFileIterator range : ranges) {
+                List<List<Integer>> part = readAll(range);
+                assertFalse(part.isEmpty());
+                // every key of a range is greater than the keys of the ranges before it
+                assertTrue(part.get(0).get(keyField) > prevMax);
+                prevMax = part.get(part.size() - 1).get(keyField);
+                result.addAll(part);
+            }
+            assertEquals(all, result);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a parallel scan returns the tuples in key order, and can be rewound and closed early */
+    @Test public void testParallelIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> all = readAll(f.iterator(tid));
+
+        DbFileIterator it = f.parallelIterator(tid, 4);
+        assertEquals(all, readAll(it));
+        it.open();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(all.get(i), SystemTestUtil.tupleToList(it.next()));
+        }
+        it.rewind();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(all.get(i), SystemTestUtil.tupleToList(it.next()));
+        }
+        // closing stops the ranges that are still being read
+        it.close();
+
+        // a tree with a single leaf page is a single range
+        List<List<Integer>> small = new ArrayList<>();
+        BTreeFile leaf = BTreeUtility.createRandomBTreeFile(2, 100, null, small, keyField);
+        assertEquals(1, leaf.partitionIterators(tid, 4).size());
+        assertEquals(readAll(leaf.iterator(tid)), readAll(leaf.parallelIterator(tid, 4)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that a parallel scan reads ahead as many ranges as it has threads, and
+     * holds no locks once it is closed
+     */
+    @Test public void testParallelReadAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        // 4 threads split the tree into 4 ranges each
+        List<DbFileIterator> ranges = f.partitionIterators(tid, 16);
+        assertTrue(ranges.size() > 4);
+        List<PageId> firstPages = new ArrayList<>();
+        for (DbFileIterator range : ranges) {
+            range.open();
+            firstPages.add(range.next().getRecordId().getPageId());
+            range.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId tid2 = new TransactionId();
+        DbFileIterator it = f.parallelIterator(tid2, 4);
+        it.open();
+        it.next();
+        // the first range is far from consumed, and the fourth one has a thread of its own
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Database.getBufferPool().holdsLock(tid2, firstPages.get(3)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Database.getBufferPool().holdsLock(tid2, firstPages.get(3)));
+        // the four threads wait for their ranges to be drained
+        Thread.sleep(200);
+        assertFalse(Database.getBufferPool().holdsLock(tid2, firstPages.get(4)));
+
+        it.close();
+        Database.getBufferPool().transactionComplete(tid2);
+        TransactionId tid3 = new TransactionId();
+        for (PageId pid : firstPages) {
+            assertFalse(Database.getBufferPool().isLockedByOthers(tid3, pid));
+        }
+    }
+
+    /** Test that the threads of a parallel scan read pages from disk at the same time */
+    @Test public void testParallelReads() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, keyField);
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> all = readAll(f.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a disk that takes a while to read a page
+        int[] reading = new int[2];
+        BTreeFile slow = new BTreeFile(f.getFile(), keyField, f.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                synchronized (reading) {
+                    reading[0]++;
+                    reading[1] = Math.max(reading[1], reading[0]);
+                }
+                try {
+                    Thread.sleep(5);
+                    return super.readPage(pid);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    synchronized (reading) {
+                        reading[0]--;
+                    }
+                }
+            }
+        };
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        Database.resetBufferPool(500);
+        TransactionId tid2 = new TransactionId();
+        assertEquals(all, readAll(slow.parallelIterator(tid2, 4)));
+        Database.getBufferPool().transactionComplete(tid2);
+        assertTrue("at most " + reading[1] + " pages read at once", reading[1] > 1);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
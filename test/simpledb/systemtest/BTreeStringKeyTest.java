@@ -0,0 +1,186 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+			new String[] { "id", "name" });
+
+	private static File tempIndexFile() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+		return f;
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		BTreeFile bf = new BTreeFile(tempIndexFile(), 1, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	// keys longer than a separator, sharing their first SEPARATOR_LEN characters in runs of 1000
+	private static String key(int i) {
+		return String.format("tenant-%02d/region-eu-west-1/id-%05d", i / 1000, i);
+	}
+
+	private static List<String> keys(DbFileIterator it) throws Exception {
+		List<String> keys = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			keys.add(((StringField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private static List<String> matching(List<String> sorted, Op op, String value) {
+		List<String> result = new ArrayList<>();
+		for (String k : sorted) {
+			if (new StringField(k, Type.STRING_LEN).compare(op, new StringField(value, Type.STRING_LEN))) {
+				result.add(k);
+			}
+		}
+		return result;
+	}
+
+	private static void assertLookups(BTreeFile bf, TransactionId tid, List<String> sorted) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(sorted, keys(bf.iterator(tid)));
+		for (int i : new int[] { 0, 999, 1000, 2500, 5999 }) {
+			for (Op op : new Op[] { Op.EQUALS, Op.GREATER_THAN, Op.LESS_THAN_OR_EQ }) {
+				IndexPredicate ipred = new IndexPredicate(op, new StringField(key(i), Type.STRING_LEN));
+				assertEquals(op + " " + key(i), matching(sorted, op, key(i)), keys(bf.indexIterator(tid, ipred)));
+			}
+		}
+	}
+
+	/**
+	 * Internal pages of a string-keyed tree hold truncated separators, and
+	 * keys that share a separator are still inserted, deleted and found in
+	 * order, also after the pages are read back from disk
+	 */
+	@Test public void truncatedSeparators() throws Exception {
+		Database.resetBufferPool(1000);
+		BTreeFile bf = emptyFile();
+		TransactionId tid = new TransactionId();
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < 6000; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(45));
+		for (int i : order) {
+			Tuple t = new Tuple(TD);
+			t.setField(0, new IntField(i));
+			t.setField(1, new StringField(key(i), Type.STRING_LEN));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		List<String> sorted = new ArrayList<>();
+		for (int i = 0; i < 6000; i++) {
+			sorted.add(key(i));
+		}
+		assertLookups(bf, tid, sorted);
+
+		// separators take SEPARATOR_LEN characters instead of a whole string
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		int wholeKeyEntries = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertTrue(root.getMaxEntries() > 3 * wholeKeyEntries);
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext()) {
+			assertTrue(((StringField) it.next().getKey()).getValue().length() <= BTreeInternalPage.SEPARATOR_LEN);
+		}
+
+		// delete every other tuple, which steals from and merges pages
+		DbFileIterator all = bf.iterator(tid);
+		List<Tuple> deleted = new ArrayList<>();
+		all.open();
+		while (all.hasNext()) {
+			Tuple t = all.next();
+			if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+				deleted.add(t);
+			}
+		}
+		all.close();
+		for (Tuple t : deleted) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		sorted.removeIf(k -> Integer.parseInt(k.substring(k.length() - 5)) % 2 == 0);
+		Database.getBufferPool().transactionComplete(tid);
+
+		Database.resetBufferPool(1000);
+		TransactionId tid2 = new TransactionId();
+		assertLookups(bf, tid2, sorted);
+
+		// the bulk loader writes the same separators
+		BTreeFile loaded = new BTreeBulkLoader(tid2, bf, 1).sorted(true).build(tempIndexFile(), "loaded");
+		assertLookups(loaded, tid2, sorted);
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * A string-keyed tree whose internal pages were written with whole keys
+	 * is rejected instead of being read with the separator layout
+	 */
+	@Test public void wholeKeyFormatRejected() throws Exception {
+		Database.resetBufferPool(1000);
+		BTreeFile bf = emptyFile();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 2000; i++) {
+			Tuple t = new Tuple(TD);
+			t.setField(0, new IntField(i));
+			t.setField(1, new StringField(key(i), Type.STRING_LEN));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		// clear the format flag, as a file written before truncation has it
+		byte[] rootPtr = new byte[BTreeRootPtrPage.getPageSize()];
+		try (RandomAccessFile raf = new RandomAccessFile(bf.getFile(), "rw")) {
+			raf.readFully(rootPtr);
+			assertEquals(BTreePageId.INTERNAL | BTreeRootPtrPage.SEPARATOR_FORMAT, rootPtr[4]);
+			rootPtr[4] = BTreePageId.INTERNAL;
+			raf.seek(0);
+			raf.write(rootPtr);
+		}
+		bf.getPageChecksums().update(0, rootPtr, 0, rootPtr.length);
+
+		Database.resetBufferPool(1000);
+		TransactionId tid2 = new TransactionId();
+		DbFileIterator it = bf.iterator(tid2);
+		try {
+			it.open();
+			fail("a tree with whole keys in its internal pages was read");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
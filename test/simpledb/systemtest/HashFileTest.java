@@ -0,0 +1,477 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.HashFile;
+import simpledb.index.HashMetaPage;
+import simpledb.index.HashPageId;
+import simpledb.index.HashScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class HashFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = Utility.getTupleDesc(2, "c");
+
+    static class InstrumentedHashFile extends HashFile {
+        public InstrumentedHashFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
+    // inserts into random buckets dirty most pages of the file
+    @Before public void setUpBufferPool() {
+        Database.resetBufferPool(500);
+    }
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+        return f;
+    }
+
+    private static HashFile open(File f) {
+        HashFile hf = new InstrumentedHashFile(f, 0, TD);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    // inserts the tuples (i % keys, i) for i from 0 to rows, and returns them
+    private static List<List<Integer>> fill(HashFile hf, TransactionId tid, int rows, int keys) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            int[] values = { i % keys, i };
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(values[0]));
+            t.setField(1, new IntField(values[1]));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            tuples.add(Arrays.asList(values[0], values[1]));
+        }
+        return tuples;
+    }
+
+    // fills a file in transactions of 1000 tuples
+    private static List<List<Integer>> load(HashFile hf, int rows, int keys) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i += 1000) {
+            TransactionId tid = new TransactionId();
+            for (int j = i; j < Math.min(rows, i + 1000); j++) {
+                Tuple t = new Tuple(TD);
+                t.setField(0, new IntField(j % keys));
+                t.setField(1, new IntField(j));
+                Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+                tuples.add(Arrays.asList(j % keys, j));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return tuples;
+    }
+
+    /**
+     * @return the numbers of the pages of f marked free, read from disk
+     */
+    private static Set<Integer> freePages(File f) throws Exception {
+        Set<Integer> pages = new TreeSet<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            int pageSize = BufferPool.getPageSize();
+            for (int pgNo = 0; pgNo < f.length() / pageSize; pgNo++) {
+                int next = in.readInt();
+                if (pgNo > 0 && next == -1) {
+                    pages.add(pgNo);
+                }
+                in.skipBytes(pageSize - 4);
+            }
+        }
+        return pages;
+    }
+
+    private static List<List<Integer>> readAll(DbFileIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return result;
+    }
+
+    private static List<Tuple> lookup(HashFile hf, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        List<Tuple> found = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            found.add(it.next());
+        }
+        it.close();
+        return found;
+    }
+
+    private static List<List<Integer>> matching(List<List<Integer>> tuples, Op op, int key) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(key))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private static void assertSameTuples(List<List<Integer>> expected, List<List<Integer>> actual) {
+        Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(t -> t.get(0))
+                .thenComparingInt(t -> t.get(1));
+        List<List<Integer>> e = new ArrayList<>(expected);
+        List<List<Integer>> a = new ArrayList<>(actual);
+        e.sort(order);
+        a.sort(order);
+        assertEquals(e, a);
+    }
+
+    private static void assertLookups(HashFile hf, TransactionId tid, List<List<Integer>> tuples, int keys)
+            throws Exception {
+        assertSameTuples(tuples, readAll(hf.iterator(tid)));
+        for (int key : new int[] { 0, 1, keys / 2, keys - 1, keys + 7 }) {
+            IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(key));
+            assertSameTuples(matching(tuples, Op.EQUALS, key), readAll(hf.indexIterator(tid, ipred)));
+        }
+        IndexPredicate range = new IndexPredicate(Op.LESS_THAN, new IntField(10));
+        assertSameTuples(matching(tuples, Op.LESS_THAN, 10), readAll(hf.indexIterator(tid, range)));
+    }
+
+    /**
+     * Inserts split buckets as the file grows, and every tuple is found by
+     * a lookup of its key, also after the pages are read back from disk
+     */
+    @Test public void lookups() throws Exception {
+        File f = tempFile();
+        HashFile hf = open(f);
+        List<List<Integer>> tuples = load(hf, 20000, 5000);
+        TransactionId tid = new TransactionId();
+        assertLookups(hf, tid, tuples, 5000);
+
+        HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid, HashMetaPage.getId(hf.getId()),
+                Permissions.READ_ONLY);
+        assertTrue(meta.getMaxBucket() > 20);
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(500);
+        hf = open(f);
+        TransactionId tid2 = new TransactionId();
+        assertLookups(hf, tid2, tuples, 5000);
+
+        Database.getBufferPool().transactionComplete(tid2);
+
+        // delete the tuples with even keys, found by lookups
+        for (int key = 0; key < 5000; key += 2) {
+            TransactionId tid3 = new TransactionId();
+            for (Tuple t : lookup(hf, tid3, key)) {
+                Database.getBufferPool().deleteTuple(tid3, t);
+            }
+            Database.getBufferPool().transactionComplete(tid3);
+        }
+        tuples.removeIf(t -> t.get(0) % 2 == 0);
+        TransactionId tid4 = new TransactionId();
+        assertLookups(hf, tid4, tuples, 5000);
+        Database.getBufferPool().transactionComplete(tid4);
+    }
+
+    /**
+     * A lookup of one key reads one or two bucket pages, however many tuples
+     * the file holds
+     */
+    @Test public void pointLookupReads() throws Exception {
+        File f = tempFile();
+        HashFile hf = open(f);
+        load(hf, 40000, 40000);
+
+        Database.resetBufferPool(500);
+        InstrumentedHashFile counted = (InstrumentedHashFile) open(f);
+        TransactionId tid2 = new TransactionId();
+        Random r = new Random(48);
+        for (int i = 0; i < 200; i++) {
+            int key = r.nextInt(40000);
+            List<List<Integer>> found = readAll(counted.indexIterator(tid2, new IndexPredicate(Op.EQUALS,
+                    new IntField(key))));
+            assertEquals(Collections.singletonList(Arrays.asList(key, key)), found);
+        }
+        // the meta page is read once, and stays in the BufferPool
+        assertTrue("read " + counted.readCount + " pages", counted.readCount <= 1 + 200 * 2);
+        assertTrue("read " + counted.readCount + " pages", counted.readCount < 1 + 200 * 3 / 2);
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * Inserts copies tuples (key, copy) of every key from 0 to keys on
+     * threads threads, in a transaction per key, retried until it commits.
+     * A transaction only locks the bucket of its key, so it never waits for
+     * a lock while another transaction waits for one of its own.
+     */
+    private static void insertConcurrently(HashFile hf, int threads, int keys, int copies) throws Exception {
+        List<Thread> inserters = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < threads; i++) {
+            int start = i;
+            inserters.add(new Thread(() -> {
+                try {
+                    for (int key = start; key < keys; key += threads) {
+                        while (true) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int copy = 0; copy < copies; copy++) {
+                                    Tuple t = new Tuple(TD);
+                                    t.setField(0, new IntField(key));
+                                    t.setField(1, new IntField(copy));
+                                    Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+                                }
+                                Database.getBufferPool().transactionComplete(tid);
+                                break;
+                            } catch (TransactionAbortedException e) {
+                                Database.getBufferPool().transactionComplete(tid, false);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : inserters) {
+            t.start();
+        }
+        for (Thread t : inserters) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    // the pages read by 200 lookups of the keys of insertConcurrently, each from disk
+    private static int coldLookupReads(File f, int keys, int copies) throws Exception {
+        InstrumentedHashFile counted = (InstrumentedHashFile) open(f);
+        Random r = new Random(48);
+        for (int i = 0; i < 200; i++) {
+            Database.resetBufferPool(500);
+            TransactionId tid = new TransactionId();
+            int key = r.nextInt(keys);
+            List<List<Integer>> expected = new ArrayList<>();
+            for (int copy = 0; copy < copies; copy++) {
+                expected.add(Arrays.asList(key, copy));
+            }
+            assertSameTuples(expected, readAll(counted.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+                    new IntField(key)))));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return counted.readCount;
+    }
+
+    /**
+     * Buckets are split while other transactions that inserted are still
+     * running, so lookups after concurrent inserts read about as many pages
+     * as after the same inserts one transaction at a time
+     */
+    @Test public void concurrentInsertLookupReads() throws Exception {
+        File serial = tempFile();
+        insertConcurrently(open(serial), 1, 1000, 10);
+        int serialReads = coldLookupReads(serial, 1000, 10);
+
+        File f = tempFile();
+        insertConcurrently(open(f), 8, 1000, 10);
+        int reads = coldLookupReads(f, 1000, 10);
+        assertTrue("read " + reads + " pages, " + serialReads + " after serial inserts",
+                reads < serialReads * 5 / 4);
+    }
+
+    /**
+     * Aborting a transaction whose inserts split buckets restores the
+     * buckets it changed
+     */
+    @Test public void abort() throws Exception {
+        HashFile hf = open(tempFile());
+        List<List<Integer>> tuples = load(hf, 2000, 2000);
+
+        Transaction t = new Transaction();
+        t.start();
+        fill(hf, t.getId(), 3000, 100);
+        t.transactionComplete(true);
+
+        TransactionId tid2 = new TransactionId();
+        assertLookups(hf, tid2, tuples, 2000);
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * The overflow pages appended for a transaction that aborts are reused
+     * by the next transaction that needs them.  The buckets split while it
+     * ran are split in transactions of their own, and stay split.
+     */
+    @Test public void abortReusesPages() throws Exception {
+        File f = tempFile();
+        HashFile hf = open(f);
+        List<List<Integer>> tuples = load(hf, 2000, 2000);
+        int pages = hf.numPages();
+
+        Transaction t = new Transaction();
+        t.start();
+        fill(hf, t.getId(), 3000, 3000);
+        t.transactionComplete(true);
+        assertTrue(hf.numPages() > pages);
+        Set<Integer> free = freePages(f);
+        assertFalse(free.isEmpty());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        tuples.addAll(fill(hf, t2.getId(), 3000, 3000));
+        t2.commit();
+        Set<Integer> stillFree = freePages(f);
+        assertTrue("free before " + free + ", after " + stillFree, Collections.disjoint(free, stillFree));
+
+        TransactionId tid = new TransactionId();
+        assertLookups(hf, tid, tuples, 3000);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert that adds an overflow page while a scan of the whole file
+     * holds the meta page leaves the split to a later insert instead of
+     * aborting, and the next insert makes every split owed
+     */
+    @Test public void splitWhileMetaPageShared() throws Exception {
+        HashFile hf = open(tempFile());
+        List<List<Integer>> tuples = load(hf, 1000, 1000);
+        HashPageId metaId = HashMetaPage.getId(hf.getId());
+
+        // as a scan of the whole file does
+        TransactionId reader = new TransactionId();
+        Database.getBufferPool().getPage(reader, metaId, Permissions.READ_ONLY);
+        TransactionId tid = new TransactionId();
+        int pages = hf.numPages();
+        tuples.addAll(fill(hf, tid, 3000, 3000));
+        assertTrue(hf.numPages() > pages);
+        HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid, metaId, Permissions.READ_ONLY);
+        int buckets = meta.getMaxBucket();
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().transactionComplete(reader);
+
+        // the next insert splits
+        tuples.addAll(load(hf, 1, 1));
+        TransactionId tid2 = new TransactionId();
+        meta = (HashMetaPage) Database.getBufferPool().getPage(tid2, metaId, Permissions.READ_ONLY);
+        assertTrue(meta.getMaxBucket() > buckets + 1);
+        assertLookups(hf, tid2, tuples, 3000);
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * The planner reads the bucket of a key compared for equality instead of
+     * filtering a scan of the whole file
+     */
+    @Test public void plan() throws Exception {
+        HashFile hf = open(tempFile());
+        List<List<Integer>> tuples = load(hf, 3000, 1000);
+        String name = Database.getCatalog().getTableName(hf.getId());
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(hf.getId(), 1));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.EQUALS, "123");
+        TransactionId tid2 = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid2, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof HashScan);
+        SystemTestUtil.matchTuples(plan, matching(tuples, Op.EQUALS, 123));
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    /**
+     * A transaction that inserted a tuple and is still running holds up
+     * neither the inserts into other buckets nor their splits
+     */
+    @Test public void splitWhileInsertRuns() throws Exception {
+        HashFile hf = open(tempFile());
+        List<List<Integer>> tuples = load(hf, 1000, 1000);
+        HashPageId metaId = HashMetaPage.getId(hf.getId());
+
+        // a key of the last bucket, which is the last to be split again
+        TransactionId tid = new TransactionId();
+        HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid, metaId, Permissions.READ_ONLY);
+        int buckets = meta.getMaxBucket();
+        int runningKey = 0;
+        while (meta.bucketFor(HashFile.hash(new IntField(runningKey))) != buckets) {
+            runningKey++;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        TransactionId running = new TransactionId();
+        Tuple first = new Tuple(TD);
+        first.setField(0, new IntField(runningKey));
+        first.setField(1, new IntField(-1));
+        Database.getBufferPool().insertTuple(running, hf.getId(), first);
+        tuples.add(Arrays.asList(runningKey, -1));
+
+        // keys of other buckets, which no split moves into the bucket of running
+        int inserted = 0;
+        for (int key = 1000; inserted < 2000; key++) {
+            TransactionId lookup = new TransactionId();
+            meta = (HashMetaPage) Database.getBufferPool().getPage(lookup, metaId, Permissions.READ_ONLY);
+            int bucket = meta.bucketFor(HashFile.hash(new IntField(key)));
+            Database.getBufferPool().transactionComplete(lookup);
+            if (bucket == buckets) {
+                continue;
+            }
+            TransactionId tid2 = new TransactionId();
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(key));
+            Database.getBufferPool().insertTuple(tid2, hf.getId(), t);
+            Database.getBufferPool().transactionComplete(tid2);
+            tuples.add(Arrays.asList(key, key));
+            inserted++;
+        }
+        TransactionId tid3 = new TransactionId();
+        meta = (HashMetaPage) Database.getBufferPool().getPage(tid3, metaId, Permissions.READ_ONLY);
+        assertTrue(meta.getMaxBucket() > buckets);
+        Database.getBufferPool().transactionComplete(tid3);
+        Database.getBufferPool().transactionComplete(running);
+
+        TransactionId tid4 = new TransactionId();
+        assertLookups(hf, tid4, tuples, 3000);
+        Database.getBufferPool().transactionComplete(tid4);
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
@@ -132,6 +132,12 @@ public class LogTest extends SimpleDbTestBase {
         file2.delete();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        file1.deleteOnExit();
+        file2.deleteOnExit();
+        hf1.getFreeSpaceMap().getFile().deleteOnExit();
+        hf1.getPageChecksums().getFile().deleteOnExit();
+        hf2.getFreeSpaceMap().getFile().deleteOnExit();
+        hf2.getPageChecksums().getFile().deleteOnExit();
     }
 
     @Test public void PatchTest()
@@ -218,6 +224,40 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortAfterStealOfUncachedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // the page is read from disk by the aborting transaction, so its
+        // before image must be taken then, not when it was last cached
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        dontInsert(hf1, 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        // and recovery undoes a stolen page of an uncommitted transaction
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 5);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
     @Test public void TestAbortCommitInterleaved()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -435,6 +475,56 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // bulk-append rows first..last-1 with an Insert in bulk mode
+    void bulkInsert(HeapFile hf, Transaction t, int first, int last)
+        throws DbException, TransactionAbortedException {
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            Tuple value = new Tuple(Utility.getTupleDesc(2));
+            value.setField(0, new IntField(i));
+            value.setField(1, new IntField(0));
+            rows.add(value);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId(), true);
+        insert.open();
+        assertEquals(last - first, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    @Test public void TestBulkInsert()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // bulk-appended rows survive a crash once committed; a second bulk
+        // insert that aborts and a third that crashes leave no rows
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkInsert(hf1, t1, 100, 1200);
+        look(hf1, t1, 1199, true);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bulkInsert(hf1, t2, 2000, 2100);
+        abort(t2);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        bulkInsert(hf1, t3, 3000, 3100);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 100, true);
+        look(hf1, t, 1199, true);
+        look(hf1, t, 2000, false);
+        look(hf1, t, 3000, false);
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
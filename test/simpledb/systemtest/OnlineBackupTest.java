@@ -0,0 +1,221 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test online backups and point-in-time restore from the WAL archive.
+ */
+public class OnlineBackupTest extends SimpleDbTestBase {
+    File tableFile;
+    File backupDir;
+    File archiveDir;
+    File restoreDir;
+    HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tableFile = new File("backed_up.db");
+        tableFile.delete();
+        backupDir = new File("backup_test");
+        archiveDir = new File("backup_test_wal");
+        restoreDir = new File("backup_test_restore");
+        delete(backupDir);
+        delete(archiveDir);
+        delete(restoreDir);
+        table = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        table.getFreeSpaceMap().getFile().deleteOnExit();
+        table.getPageChecksums().getFile().deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        Database.getLogFile().stopArchiving();
+        tableFile.delete();
+        delete(backupDir);
+        delete(archiveDir);
+        delete(restoreDir);
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    void insertRow(Transaction t, int v1)
+            throws DbException, TransactionAbortedException {
+        insertRow(t, table.getId(), v1);
+    }
+
+    void insertRow(Transaction t, int tableId, int v1)
+            throws DbException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v1));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Collections.singletonList(value)), tableId);
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    void commitRows(int... values)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int v : values) {
+            insertRow(t, v);
+        }
+        t.commit();
+    }
+
+    Set<Integer> restoredRows()
+            throws DbException, TransactionAbortedException, IOException {
+        return rows(Utility.openHeapFile(2, new File(restoreDir, tableFile.getName())));
+    }
+
+    Set<Integer> rows(HeapFile restored)
+            throws DbException, TransactionAbortedException, IOException {
+        Set<Integer> rows = new HashSet<>();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), restored.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            rows.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        t.commit();
+        return rows;
+    }
+
+    @Test public void testRestoreEverything()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1, 2);
+        OnlineBackup.backup(backupDir, archiveDir);
+        commitRows(3);
+        Database.getLogFile().archive();
+
+        OnlineBackup.restore(backupDir, restoreDir, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), restoredRows());
+    }
+
+    @Test public void testRestoreToLsn()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+        OnlineBackup.backup(backupDir, archiveDir);
+        commitRows(2);
+        long lsn = Database.getLogFile().archive();
+        commitRows(3);
+        Database.getLogFile().archive();
+
+        assertEquals(lsn, OnlineBackup.restore(backupDir, restoreDir, lsn, Long.MAX_VALUE));
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), restoredRows());
+    }
+
+    @Test public void testRestoreToTime()
+            throws DbException, TransactionAbortedException, IOException, InterruptedException {
+        commitRows(1);
+        OnlineBackup.backup(backupDir, archiveDir);
+        commitRows(2);
+        Thread.sleep(10);
+        long time = System.currentTimeMillis();
+        Thread.sleep(10);
+        commitRows(3);
+        Database.getLogFile().archive();
+
+        OnlineBackup.restore(backupDir, restoreDir, Long.MAX_VALUE, time);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), restoredRows());
+    }
+
+    @Test public void testUncommittedChangesAreUndone()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+        // steal the page of an open transaction into the table file
+        Transaction open = new Transaction();
+        open.start();
+        insertRow(open, 2);
+        Database.getBufferPool().flushAllPages();
+
+        OnlineBackup.backup(backupDir, archiveDir);
+        OnlineBackup.restore(backupDir, restoreDir, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(Collections.singleton(1), restoredRows());
+    }
+
+    @Test public void testArchiveSurvivesTruncation()
+            throws DbException, TransactionAbortedException, IOException {
+        OnlineBackup.backup(backupDir, archiveDir);
+        commitRows(1);
+        Database.getLogFile().logCheckpoint();
+        commitRows(2);
+        Database.getLogFile().archive();
+
+        OnlineBackup.restore(backupDir, restoreDir, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), restoredRows());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStopBeforeConsistent()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+        long end = OnlineBackup.backup(backupDir, archiveDir);
+        OnlineBackup.restore(backupDir, restoreDir, end - 1, Long.MAX_VALUE);
+    }
+
+    @Test public void testRestoreCompressedTable()
+            throws DbException, TransactionAbortedException, IOException {
+        File compressedFile = new File("backed_up_compressed.db").getAbsoluteFile();
+        compressedFile.delete();
+        compressedFile.deleteOnExit();
+        CompressedHeapFile compressed = new CompressedHeapFile(compressedFile, Utility.getTupleDesc(2));
+        compressed.getFreeSpaceMap().getFile().deleteOnExit();
+        compressed.getPageChecksums().getFile().deleteOnExit();
+        Database.getCatalog().addTable(compressed, "compressed");
+
+        commitRows(1);
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(t, compressed.getId(), 1);
+        t.commit();
+        OnlineBackup.backup(backupDir, archiveDir);
+
+        // enough rows for new pages of both tables
+        Set<Integer> expected = new HashSet<>();
+        t = new Transaction();
+        t.start();
+        for (int v = 1; v <= 1000; v++) {
+            insertRow(t, v);
+            insertRow(t, compressed.getId(), v);
+            expected.add(v);
+        }
+        t.commit();
+        Database.getLogFile().archive();
+
+        OnlineBackup.restore(backupDir, restoreDir, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(expected, restoredRows());
+        CompressedHeapFile restored = new CompressedHeapFile(
+                new File(restoreDir, compressedFile.getName()), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(restored, "restored");
+        assertTrue(restored.numPages() > 1);
+        assertEquals(expected, rows(restored));
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Times full scans of a table with and without checking the PageChecksums of
+ * the pages read from disk.  The BufferPool is much smaller than the table,
+ * so every page of every scan is read through HeapFile.readPage; the file
+ * itself stays in the operating system's cache, which leaves the checksum as
+ * large a share of the read as it can be.
+ * <p>
+ * Run with {@code ant checksumbench}, or with
+ * {@code java simpledb.systemtest.PageChecksumsBenchmark [pages] [rounds]}.
+ */
+public class PageChecksumsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        File f = File.createTempFile("checksumbench", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        hf.getFreeSpaceMap().getFile().deleteOnExit();
+        hf.getPageChecksums().getFile().deleteOnExit();
+        int value = 0;
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            HeapPage page = new HeapPage(new HeapPageId(hf.getId(), pgNo), HeapPage.createEmptyPageData());
+            while (page.getNumEmptySlots() > 0) {
+                page.insertTuple(Utility.getHeapTuple(new int[] { value, -value }));
+                value++;
+            }
+            hf.writePage(page);
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // the lock manager logs every lock it grants to System.out
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        // warm up the JIT and the file cache
+        scan(hf, true);
+        scan(hf, false);
+
+        long[] with = new long[rounds];
+        long[] without = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            with[i] = scan(hf, true);
+            without[i] = scan(hf, false);
+        }
+        Arrays.sort(with);
+        Arrays.sort(without);
+        long withMedian = with[rounds / 2];
+        long withoutMedian = without[rounds / 2];
+        System.setOut(out);
+        System.out.printf("%d pages of %d bytes, %d tuples, median of %d scans%n",
+                numPages, BufferPool.getPageSize(), value, rounds);
+        System.out.printf("with verification:    %8.2f ms  %6d ns/page%n",
+                withMedian / 1e6, withMedian / numPages);
+        System.out.printf("without verification: %8.2f ms  %6d ns/page%n",
+                withoutMedian / 1e6, withoutMedian / numPages);
+        System.out.printf("overhead: %.1f%%%n", 100.0 * (withMedian - withoutMedian) / withoutMedian);
+    }
+
+    /** @return the nanos taken by a full scan of hf */
+    private static long scan(HeapFile hf, boolean verifying) throws Exception {
+        hf.getPageChecksums().setVerifying(verifying);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+        long nanos = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        return nanos;
+    }
+}
@@ -0,0 +1,320 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Insert;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static File tempIndexFile() throws Exception {
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+        return f;
+    }
+
+    private static List<List<Integer>> matching(List<List<Integer>> tuples, int field, Op op, int value) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private static List<List<Integer>> matchingRange(List<List<Integer>> tuples, int field, IndexPredicate range) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (range.matches(new IntField(t.get(field)))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private static void assertScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred,
+                                   List<List<Integer>> expected) throws Exception {
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, ipred), expected);
+    }
+
+    /**
+     * An index built over an existing table finds the tuples matching
+     * equality and range predicates, and all tuples without a predicate
+     */
+    @Test public void lookups() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 5000, 300, null, tuples, "c");
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = SecondaryIndex.create(tid, hf.getId(), 1, tempIndexFile());
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+
+        int key = tuples.get(0).get(1);
+        assertScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(key)),
+                matching(tuples, 1, Op.EQUALS, key));
+        assertScan(tid, index, new IndexPredicate(Op.GREATER_THAN, new IntField(250)),
+                matching(tuples, 1, Op.GREATER_THAN, 250));
+        assertScan(tid, index, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(10)),
+                matching(tuples, 1, Op.LESS_THAN_OR_EQ, 10));
+        IndexPredicate range = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(100),
+                Op.LESS_THAN, new IntField(120));
+        assertScan(tid, index, range, matchingRange(tuples, 1, range));
+        assertScan(tid, index, null, tuples);
+
+        // the tuples have the aliased field names of the scan
+        IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(key)));
+        scan.open();
+        assertTrue(scan.hasNext());
+        TupleDesc td = scan.next().getTupleDesc();
+        scan.close();
+        assertEquals(scan.getTupleDesc(), td);
+        assertEquals("t.c1", td.getFieldName(1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts and deletes through the BufferPool, and bulk inserts, keep
+     * every index of the table up to date
+     */
+    @Test public void maintenance() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples);
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index0 = SecondaryIndex.create(tid, hf.getId(), 0, tempIndexFile());
+        SecondaryIndex index1 = SecondaryIndex.create(tid, hf.getId(), 1, tempIndexFile());
+
+        for (int i = 0; i < 600; i++) {
+            int[] values = { 1000 + i, i % 7 };
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(values));
+            tuples.add(Arrays.asList(1000 + i, i % 7));
+        }
+
+        // delete every tuple with field 1 equal to 3, found through the index
+        List<Tuple> deleted = new ArrayList<>();
+        OpIterator scan = new IndexScan(tid, index1, new IndexPredicate(Op.EQUALS, new IntField(3)));
+        scan.open();
+        while (scan.hasNext()) {
+            deleted.add(scan.next());
+        }
+        scan.close();
+        assertEquals(matching(tuples, 1, Op.EQUALS, 3).size(), deleted.size());
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        tuples.removeAll(matching(tuples, 1, Op.EQUALS, 3));
+
+        // bulk insert
+        List<Tuple> more = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            more.add(Utility.getHeapTuple(new int[] { 5000 + i, 3 }));
+            tuples.add(Arrays.asList(5000 + i, 3));
+        }
+        Insert insert = new Insert(tid, new TupleIterator(Utility.getTupleDesc(2), more), hf.getId(), true);
+        insert.open();
+        insert.next();
+        insert.close();
+
+        assertScan(tid, index1, new IndexPredicate(Op.EQUALS, new IntField(3)), matching(tuples, 1, Op.EQUALS, 3));
+        assertScan(tid, index0, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1000)),
+                matching(tuples, 0, Op.GREATER_THAN_OR_EQ, 1000));
+        assertScan(tid, index0, null, tuples);
+        BTreeChecker.checkRep(index0.getFile(), tid, new HashMap<>(), false);
+        BTreeChecker.checkRep(index1.getFile(), tid, new HashMap<>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> matchingPrefix(List<List<Integer>> tuples, int prefix, Op op, int value) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : matching(tuples, 0, Op.EQUALS, prefix)) {
+            if (op == null || new IntField(t.get(1)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A two-column index keeps its entries in lexicographic order, including
+     * negative values, and answers prefix and prefix-plus-range predicates
+     */
+    @Test public void compositeKey() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, 20, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            int[] values = { -(i % 3), i - 50, i };
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(values));
+            tuples.add(Arrays.asList(values[0], values[1], values[2]));
+        }
+        for (int[] values : new int[][] { { Integer.MIN_VALUE, Integer.MAX_VALUE, 0 },
+                { Integer.MAX_VALUE, Integer.MIN_VALUE, 0 }, { -1, Integer.MIN_VALUE, 0 } }) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(values));
+            tuples.add(Arrays.asList(values[0], values[1], values[2]));
+        }
+        SecondaryIndex index = SecondaryIndex.create(tid, hf.getId(), new int[] { 0, 1 }, new int[0],
+                tempIndexFile());
+
+        // entries come out sorted on (field 0, field 1), under short keys
+        DbFileIterator it = index.entryIterator(tid, null);
+        it.open();
+        List<Integer> prev = null;
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple e = it.next();
+            assertEquals(2 * SecondaryIndex.INT_CHARS, ((StringField) e.getField(0)).getValue().length());
+            List<Integer> key = Arrays.asList(((IntField) e.getField(1)).getValue(),
+                    ((IntField) e.getField(2)).getValue());
+            if (prev != null) {
+                assertTrue(prev + " before " + key, prev.get(0) < key.get(0)
+                        || (prev.get(0).equals(key.get(0)) && prev.get(1) <= key.get(1)));
+            }
+            prev = key;
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+
+        for (int tenant : new int[] { 7, -1 }) {
+            Field[] prefix = { new IntField(tenant) };
+            assertScan(tid, index, new IndexPredicate(prefix, null, null), matchingPrefix(tuples, tenant, null, 0));
+            for (Op op : new Op[] { Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN,
+                    Op.LESS_THAN_OR_EQ }) {
+                int value = tenant == 7 ? 10 : -20;
+                assertScan(tid, index, new IndexPredicate(prefix, op, new IntField(value)),
+                        matchingPrefix(tuples, tenant, op, value));
+            }
+        }
+        assertScan(tid, index, new IndexPredicate(Op.LESS_THAN, new IntField(0)),
+                matching(tuples, 0, Op.LESS_THAN, 0));
+        IndexPredicate range = new IndexPredicate(Op.GREATER_THAN, new IntField(-2), Op.LESS_THAN_OR_EQ,
+                new IntField(5));
+        assertScan(tid, index, range, matchingRange(tuples, 0, range));
+
+        // deleting goes through the prefix of the whole key
+        List<Tuple> deleted = new ArrayList<>();
+        OpIterator scan = new IndexScan(tid, index, new IndexPredicate(new Field[] { new IntField(-2) }, null, null));
+        scan.open();
+        while (scan.hasNext()) {
+            deleted.add(scan.next());
+        }
+        scan.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        tuples.removeAll(matchingPrefix(tuples, -2, null, 0));
+        assertScan(tid, index, null, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An index declared in a catalog file is opened again with its table
+     */
+    @Test public void catalogEntry() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File catalog = new File(dir, "catalog.txt");
+        File table = new File(dir, "t.dat");
+        File indexFile = new File(dir, "t_1_idx.dat");
+        for (File f : new File[] { catalog, table, indexFile }) {
+            f.deleteOnExit();
+            new File(f.getPath() + PageChecksums.SUFFIX).deleteOnExit();
+            new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        }
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tuples.add(Arrays.asList(i, i % 50, -i));
+        }
+        HeapFileEncoder.convert(tuples, table, BufferPool.getPageSize(), 3);
+        try (PrintWriter out = new PrintWriter(new FileWriter(catalog))) {
+            out.println("t (a int, b int, c int)");
+        }
+        Database.getCatalog().loadSchema(catalog.getPath());
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = SecondaryIndex.create(tid, Database.getCatalog().getTableId("t"),
+                new int[] { 1 }, new int[] { 2 }, indexFile);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals("index t_1_idx on t (b) include (c)", index.schemaEntry());
+        try (PrintWriter out = new PrintWriter(new FileWriter(catalog, true))) {
+            out.println(index.schemaEntry());
+        }
+
+        Database.reset();
+        Database.getCatalog().loadSchema(catalog.getPath());
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(Database.getCatalog().getTableId("t"));
+        assertEquals(1, indexes.size());
+        assertArrayEquals(new int[] { 1 }, indexes.get(0).getKeyFields());
+        assertArrayEquals(new int[] { 2 }, indexes.get(0).getIncludeFields());
+        tid = new TransactionId();
+        assertScan(tid, indexes.get(0), new IndexPredicate(Op.EQUALS, new IntField(7)),
+                matching(tuples, 1, Op.EQUALS, 7));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A scan of the key and INCLUDE fields of an index is answered from the
+     * entries alone, in key order
+     */
+    @Test public void covering() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(4, 2000, 50, null, tuples);
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = SecondaryIndex.create(tid, hf.getId(), new int[] { 0, 1 }, new int[] { 3 },
+                tempIndexFile());
+        assertTrue(index.covers(new int[] { 3, 1 }));
+        assertFalse(index.covers(new int[] { 2 }));
+
+        IndexPredicate ipred = new IndexPredicate(new Field[] { new IntField(4) }, Op.LESS_THAN, new IntField(25));
+        IndexScan scan = new IndexScan(tid, index, "t", ipred, new int[] { 3, 1 });
+        assertTrue(scan.isCovering());
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : matchingPrefix(tuples, 4, Op.LESS_THAN, 25)) {
+            expected.add(Arrays.asList(t.get(3), t.get(1)));
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+
+        // the heap is not read
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        scan.open();
+        while (scan.hasNext()) {
+            assertEquals(2, scan.next().getTupleDesc().numFields());
+        }
+        scan.close();
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+
+        IndexScan notCovered = new IndexScan(tid, index, "t", ipred, new int[] { 2 });
+        assertFalse(notCovered.isCovering());
+        List<List<Integer>> expected2 = new ArrayList<>();
+        for (List<Integer> t : matchingPrefix(tuples, 4, Op.LESS_THAN, 25)) {
+            expected2.add(Collections.singletonList(t.get(2)));
+        }
+        SystemTestUtil.matchTuples(notCovered, expected2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that a StandbyReplica redoes exactly the committed transactions of
+ * the log into a copy of the primary's table.
+ */
+public class StandbyReplicaTest extends SimpleDbTestBase {
+    File primaryFile;
+    File standbyFile;
+    HeapFile primary;
+    HeapFile standby;
+    StandbyReplica replica;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        primaryFile = new File("primary.db");
+        primaryFile.delete();
+        standbyFile = new File("standby.db");
+        standbyFile.delete();
+        primary = Utility.createEmptyHeapFile(primaryFile.getAbsolutePath(), 2);
+        standby = Utility.createEmptyHeapFile(standbyFile.getAbsolutePath(), 2);
+        primary.getFreeSpaceMap().getFile().deleteOnExit();
+        primary.getPageChecksums().getFile().deleteOnExit();
+        standby.getFreeSpaceMap().getFile().deleteOnExit();
+        standby.getPageChecksums().getFile().deleteOnExit();
+        replica = new StandbyReplica(Database.getLogFile().getFile(),
+                Collections.singletonMap(primary.getId(), standby.getId()));
+    }
+
+    @After public void tearDown() {
+        replica.close();
+        primaryFile.delete();
+        standbyFile.delete();
+    }
+
+    void insertRow(Transaction t, int v1)
+            throws DbException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v1));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Collections.singletonList(value)), primary.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    void commitRows(int... values)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int v : values) {
+            insertRow(t, v);
+        }
+        t.commit();
+    }
+
+    Set<Integer> standbyRows()
+            throws DbException, TransactionAbortedException, IOException {
+        Set<Integer> rows = new HashSet<>();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), standby.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            rows.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        t.commit();
+        return rows;
+    }
+
+    @Test public void testCommittedTransactionsAreApplied()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1, 2);
+        commitRows(3);
+
+        assertEquals(2, replica.applyAvailable());
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), standbyRows());
+        assertEquals(0, replica.applyAvailable());
+    }
+
+    @Test public void testUncommittedAndAbortedAreNotApplied()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+
+        // force the pages of an open transaction into the log
+        Transaction open = new Transaction();
+        open.start();
+        insertRow(open, 2);
+        Database.getBufferPool().flushAllPages();
+        replica.applyAvailable();
+        assertEquals(Collections.singleton(1), standbyRows());
+
+        Database.getLogFile().logAbort(open.getId());
+        Database.getBufferPool().transactionComplete(open.getId(), false);
+        commitRows(3);
+        replica.applyAvailable();
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), standbyRows());
+    }
+
+    @Test public void testFollowsTruncatedLog()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+        replica.applyAvailable();
+
+        Database.getLogFile().logCheckpoint();
+        commitRows(2);
+        replica.applyAvailable();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), standbyRows());
+        assertEquals(2, replica.getAppliedTransactions());
+    }
+
+    @Test public void testFollowsTruncationDuringTransaction()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+
+        // the replica reads the pages of an open transaction, which the
+        // truncation keeps at a new offset
+        Transaction open = new Transaction();
+        open.start();
+        insertRow(open, 2);
+        Database.getBufferPool().flushAllPages();
+        replica.applyAvailable();
+        Database.getLogFile().logCheckpoint();
+        open.commit();
+
+        replica.applyAvailable();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), standbyRows());
+        assertEquals(0, replica.getCopies());
+    }
+
+    @Test public void testCopiesTablesAfterMissedTruncation()
+            throws DbException, TransactionAbortedException, IOException {
+        replica.close();
+        replica = new StandbyReplica(Database.getLogFile().getFile(),
+                Collections.singletonMap(primary.getId(), standby.getId()),
+                Collections.singletonMap(primary.getId(), primaryFile.getAbsoluteFile()));
+        commitRows(1);
+        replica.applyAvailable();
+
+        // the records of 2 are truncated before the replica reads them
+        commitRows(2);
+        Database.getLogFile().logCheckpoint();
+        commitRows(3);
+
+        replica.applyAvailable();
+        assertEquals(1, replica.getCopies());
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), standbyRows());
+        commitRows(4);
+        replica.applyAvailable();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), standbyRows());
+    }
+
+    @Test(expected = IOException.class) public void testDetectsMissedTruncation()
+            throws DbException, TransactionAbortedException, IOException {
+        commitRows(1);
+        replica.applyAvailable();
+
+        commitRows(2);
+        Database.getLogFile().logCheckpoint();
+        commitRows(3);
+        replica.applyAvailable();
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the commit-latency and WAL metrics.
+ */
+public class WalMetricsTest extends SimpleDbTestBase {
+    File tableFile;
+    HeapFile table;
+    WalMetrics metrics;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tableFile = new File("metrics.db");
+        tableFile.delete();
+        table = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        table.getFreeSpaceMap().getFile().deleteOnExit();
+        table.getPageChecksums().getFile().deleteOnExit();
+        metrics = Database.getWalMetrics();
+        metrics.reset();
+    }
+
+    @After public void tearDown() {
+        tableFile.delete();
+    }
+
+    void insertRow(Transaction t, int v1)
+            throws DbException, TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v1));
+        value.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Collections.singletonList(value)), table.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    @Test public void testCommit()
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(t, 1);
+        t.commit();
+
+        WalMetrics.Snapshot s = metrics.getSnapshot();
+        assertEquals(1, s.getCommit().getCount());
+        assertEquals(1, s.getCommitLogAppend().getCount());
+        assertEquals(1, s.getCommitFsyncWait().getCount());
+        assertEquals(1, s.getCommitPageFlush().getCount());
+        assertEquals(1, s.getCommitLockRelease().getCount());
+        assertTrue(s.getCommitPageFlush().getMax() > 0);
+        // one force for the page, one for the commit record
+        assertEquals(2, s.getFsyncs());
+        assertTrue(s.getCommit().getMax() >= s.getCommitFsyncWait().getMax());
+
+        // BEGIN, UPDATE with two page images and COMMIT
+        assertEquals(1, s.getBytesPerTransaction().getCount());
+        assertTrue(s.getBytesPerTransaction().getSum() > 2 * BufferPool.getPageSize());
+        assertEquals(s.getBytesLogged(), s.getBytesPerTransaction().getSum());
+    }
+
+    @Test public void testAbort()
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(t, 1);
+        t.abort();
+
+        WalMetrics.Snapshot s = metrics.getSnapshot();
+        assertEquals(0, s.getCommit().getCount());
+        assertEquals(1, s.getBytesPerTransaction().getCount());
+        assertTrue(s.getBytesPerTransaction().getSum() > 0);
+    }
+
+    @Test public void testFailedCommit()
+            throws DbException, TransactionAbortedException, IOException {
+        // a table whose pages cannot be written fails the commit
+        table = new HeapFile(tableFile, Utility.getTupleDesc(2)) {
+            @Override
+            public void writePage(Page page) {
+                throw new UncheckedIOException(new IOException("disk full"));
+            }
+        };
+        Database.getCatalog().addTable(table, "metrics");
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(t, 1);
+        try {
+            t.commit();
+            fail("commit should have failed");
+        } catch (UncheckedIOException expected) {
+        }
+
+        // the failed commit is not left open on this thread
+        metrics.endCommit();
+        assertEquals(0, metrics.getSnapshot().getCommit().getCount());
+    }
+
+    @Test public void testCheckpointAndRecovery() throws IOException {
+        assertEquals(-1, metrics.getSnapshot().getLastRecoveryNanos());
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().recover();
+
+        WalMetrics.Snapshot s = metrics.getSnapshot();
+        assertEquals(1, s.getCheckpoint().getCount());
+        assertTrue(s.getLastRecoveryNanos() >= 0);
+
+        metrics.reset();
+        assertEquals(0, metrics.getSnapshot().getCheckpoint().getCount());
+        assertEquals(0, metrics.getSnapshot().getBytesLogged());
+    }
+
+    @Test public void testHistogram() {
+        WalMetrics.Histogram h = new WalMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        WalMetrics.HistogramSnapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(5050, s.getSum());
+        assertEquals(50.5, s.getMean(), 0.0);
+        assertEquals(63, s.getP50());
+        assertEquals(100, s.getP99());
+        assertEquals(100, s.getMax());
+    }
+
+    @Test public void testJmx() throws Exception {
+        CompositeData snapshot = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(WalMetrics.OBJECT_NAME), "Snapshot");
+        assertEquals(0L, ((CompositeData) snapshot.get("commit")).get("count"));
+        assertEquals(-1L, snapshot.get("lastRecoveryNanos"));
+    }
+}